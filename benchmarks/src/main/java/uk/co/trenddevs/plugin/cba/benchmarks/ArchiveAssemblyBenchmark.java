@@ -0,0 +1,86 @@
+package uk.co.trenddevs.plugin.cba.benchmarks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.artifact.Artifact;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.trenddevs.plugin.cba.CbaMojo;
+
+/**
+ * End-to-end execution of the cba goal over synthetic bundles of realistic sizes, with the
+ * parallel archiver on one compression thread and on one per processor, and with the defaults a
+ * user gets, which the thread count does not affect. Every invocation builds the cba from scratch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ArchiveAssemblyBenchmark {
+
+    @Param({"20", "200"})
+    public int bundles;
+
+    @Param({"262144", "2097152"})
+    public long bundleSize;
+
+    @Param({"1", "0"})
+    public int threads;
+
+    @Param({"parallel", "defaults"})
+    public String configuration;
+
+    private List<Artifact> artifacts;
+
+    private CbaMojo mojo;
+
+    @Setup(Level.Trial)
+    public void createBundles() throws Exception {
+        artifacts = CbaMojoFixture.createBundles( bundles, bundleSize );
+    }
+
+    @Setup(Level.Invocation)
+    public void createMojo() throws Exception {
+        mojo = "defaults".equals( configuration ) ? CbaMojoFixture.createDefaultMojo( "assembly", artifacts )
+            : CbaMojoFixture.createMojo( "assembly", artifacts );
+        CbaMojoFixture.set( mojo, "compressionThreads", Integer.valueOf( threads ) );
+    }
+
+    @Benchmark
+    public CbaMojo assemble() throws Exception {
+        mojo.execute();
+        return mojo;
+    }
+}
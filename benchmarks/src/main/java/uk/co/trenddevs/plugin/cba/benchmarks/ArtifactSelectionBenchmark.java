@@ -0,0 +1,86 @@
+package uk.co.trenddevs.plugin.cba.benchmarks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.project.MavenProject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.trenddevs.plugin.cba.CbaMojo;
+
+/**
+ * Selection of the artifacts packed into the cba: the scope filtering of selectArtifacts, the
+ * archiveContent and scope filtering of getIncludedArtifacts, and the content bundles listed in
+ * the manifest. The mojo selects once per execution, so the selections are dropped before each call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArtifactSelectionBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int bundles;
+
+    @Param({"false", "true"})
+    public boolean transitive;
+
+    private CbaMojo mojo;
+
+    private Set artifacts;
+
+    @Setup
+    public void setUp() throws Exception {
+        mojo = CbaMojoFixture.createMojo( "selection-" + bundles, CbaMojoFixture.createBundles( bundles, 4 * 1024 ) );
+        CbaMojoFixture.set( mojo, "useTransitiveDependencies", Boolean.valueOf( transitive ) );
+        MavenProject project = (MavenProject) CbaMojoFixture.get( mojo, "project" );
+        artifacts = transitive ? project.getArtifacts() : project.getDependencyArtifacts();
+    }
+
+    @Benchmark
+    public Object selectArtifacts() throws Exception {
+        return CbaMojoFixture.invoke( mojo, "selectArtifacts", Set.class, artifacts );
+    }
+
+    @Benchmark
+    public Object includedArtifacts() throws Exception {
+        CbaMojoFixture.set( mojo, "includedArtifacts", null );
+        return CbaMojoFixture.invoke( mojo, "getIncludedArtifacts" );
+    }
+
+    @Benchmark
+    public Object contentArtifacts() throws Exception {
+        CbaMojoFixture.set( mojo, "contentArtifacts", null );
+        return CbaMojoFixture.invoke( mojo, "getContentArtifacts" );
+    }
+}
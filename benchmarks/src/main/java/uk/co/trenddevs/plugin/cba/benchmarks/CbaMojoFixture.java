@@ -0,0 +1,143 @@
+package uk.co.trenddevs.plugin.cba.benchmarks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.testing.SilentLog;
+import org.apache.maven.shared.osgi.DefaultMaven2OsgiConverter;
+import org.codehaus.plexus.archiver.zip.ZipArchiver;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.ReflectionUtils;
+import uk.co.trenddevs.plugin.cba.CbaMojo;
+import uk.co.trenddevs.plugin.cba.archive.ParallelZipArchiver;
+import uk.co.trenddevs.plugin.cba.stubs.CbaSyntheticProjectStub;
+import uk.co.trenddevs.plugin.cba.stubs.SyntheticBundles;
+
+/**
+ * Configures a {@link CbaMojo} outside of Maven, the way the plugin testing harness does: the
+ * parameters and components are injected into its fields and private steps are called reflectively.
+ */
+public class CbaMojoFixture {
+
+    /**
+     * Root of the generated bundles and cba files, kept between runs so that jars are generated once.
+     */
+    public static File getWorkDirectory() {
+        return new File( System.getProperty( "cba.benchmarks.dir", "target/benchmark-data" ) ).getAbsoluteFile();
+    }
+
+    /**
+     * Generates count bundles of about bytesPerBundle bytes, or reuses those generated before.
+     */
+    public static List<Artifact> createBundles( int count, long bytesPerBundle ) throws Exception {
+        File directory = new File( getWorkDirectory(), "bundles-" + count + "-" + bytesPerBundle );
+        return SyntheticBundles.create( directory, count, bytesPerBundle );
+    }
+
+    /**
+     * A mojo assembling the given artifacts into a cba with a generated manifest with the parallel
+     * archiver, rebuilt on every execution.
+     */
+    public static CbaMojo createMojo( String name, List<Artifact> artifacts ) throws Exception {
+        CbaMojo mojo = createDefaultMojo( name, artifacts );
+        set( mojo, "archiver", "parallel" );
+        return mojo;
+    }
+
+    /**
+     * A mojo assembling the given artifacts into a cba with a generated manifest, rebuilt on every
+     * execution; every other parameter keeps the default a user gets. Maven injects the default-values
+     * the mojo declares, so those without a matching field initializer are set here, with the output
+     * directory standing for ${project.build.directory}.
+     */
+    public static CbaMojo createDefaultMojo( String name, List<Artifact> artifacts ) throws Exception {
+        File output = new File( getWorkDirectory(), "cba-" + name );
+        File source = new File( output, "src/main/cba" );
+        FileUtils.deleteDirectory( output );
+        source.mkdirs();
+
+        ParallelZipArchiver archiver = new ParallelZipArchiver();
+        archiver.enableLogging( new ConsoleLogger( Logger.LEVEL_ERROR, "cba" ) );
+        ZipArchiver zipArchiver = new ZipArchiver();
+        zipArchiver.enableLogging( new ConsoleLogger( Logger.LEVEL_ERROR, "zip" ) );
+
+        // the Maven descriptor copies the pom, which the stub otherwise finds in the plugin's own tree
+        CbaSyntheticProjectStub project = new CbaSyntheticProjectStub( new ArrayList<Artifact>( artifacts ) );
+        project.setFile( new File( output, "pom.xml" ) );
+        FileUtils.fileWrite( project.getFile().getPath(), "<project/>" );
+
+        CbaMojo mojo = new CbaMojo();
+        mojo.setLog( new SilentLog() );
+        set( mojo, "project", project );
+        set( mojo, "zipArchiver", zipArchiver );
+        set( mojo, "parallelZipArchiver", archiver );
+        set( mojo, "maven2OsgiConverter", new DefaultMaven2OsgiConverter() );
+        set( mojo, "cbaSourceDirectory", source );
+        set( mojo, "workDirectory", new File( output, "work" ).getPath() );
+        set( mojo, "outputDirectory", output.getPath() );
+        set( mojo, "finalName", name );
+        set( mojo, "instructions", new LinkedHashMap() );
+        set( mojo, "includeJar", Boolean.FALSE );
+        set( mojo, "generateManifest", Boolean.TRUE );
+        set( mojo, "checkUpToDate", Boolean.FALSE );
+        set( mojo, "forceCreation", Boolean.TRUE );
+        set( mojo, "addMavenDescriptor", Boolean.TRUE );
+        set( mojo, "includeEmptyDirs", Boolean.TRUE );
+        set( mojo, "archiveContent", "applicationContent" );
+        set( mojo, "storedJarDirectory", new File( output, "cba-stored-jars" ) );
+        set( mojo, "bundleMetadataCache", new File( output, "cba-bundle-metadata.properties" ) );
+        set( mojo, "metricsFile", new File( output, "cba-metrics.json" ) );
+        return mojo;
+    }
+
+    public static void set( Object target, String field, Object value ) throws Exception {
+        ReflectionUtils.setVariableValueInObject( target, field, value );
+    }
+
+    public static Object get( Object target, String field ) throws Exception {
+        return ReflectionUtils.getValueIncludingSuperclasses( field, target );
+    }
+
+    /**
+     * Calls a private method without arguments.
+     */
+    public static Object invoke( Object target, String method ) throws Exception {
+        Method declared = target.getClass().getDeclaredMethod( method );
+        declared.setAccessible( true );
+        return declared.invoke( target );
+    }
+
+    /**
+     * Calls a private method with one argument.
+     */
+    public static Object invoke( Object target, String method, Class<?> type, Object argument ) throws Exception {
+        Method declared = target.getClass().getDeclaredMethod( method, type );
+        declared.setAccessible( true );
+        return declared.invoke( target, argument );
+    }
+}
@@ -0,0 +1,120 @@
+package uk.co.trenddevs.plugin.cba.benchmarks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import aQute.lib.osgi.Analyzer;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.shared.osgi.DefaultMaven2OsgiConverter;
+import org.apache.maven.shared.osgi.Maven2OsgiConverter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import uk.co.trenddevs.plugin.cba.bundle.BundleMetadata;
+import uk.co.trenddevs.plugin.cba.bundle.BundleMetadataCache;
+import uk.co.trenddevs.plugin.cba.stubs.CbaArtifactStub;
+
+/**
+ * Conversion of Maven coordinates to OSGi symbolic names and versions: through the converter,
+ * which opens the jar every time, through the bundle metadata read the plugin does instead, and
+ * through its cache.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+
+    private static final String[] VERSIONS = {"1.0", "1.0-SNAPSHOT", "2.3.4.RELEASE", "1.0.0-20140101.120000-3", "10"};
+
+    private final Maven2OsgiConverter converter = new DefaultMaven2OsgiConverter();
+
+    private Artifact bundle;
+
+    private Artifact plainJar;
+
+    private BundleMetadataCache cache;
+
+    @Setup
+    public void setUp() throws Exception {
+        List<Artifact> bundles = CbaMojoFixture.createBundles( 1, 256 * 1024 );
+        bundle = bundles.get( 0 );
+
+        File file = new File( CbaMojoFixture.getWorkDirectory(), "plain-1.0.jar" );
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        JarOutputStream out = new JarOutputStream( new FileOutputStream( file ), manifest );
+        out.putNextEntry( new JarEntry( "plain/Plain.class" ) );
+        out.write( new byte[4096] );
+        out.close();
+        CbaArtifactStub artifact = new CbaArtifactStub( "uk.co.trenddevs.synthetic", "plain", "1.0" );
+        artifact.setFile( file );
+        plainJar = artifact;
+
+        cache = new BundleMetadataCache();
+        cache.get( bundle, converter );
+    }
+
+    @Benchmark
+    public String converterSymbolicNameOfBundle() {
+        return converter.getBundleSymbolicName( bundle );
+    }
+
+    @Benchmark
+    public String converterSymbolicNameOfPlainJar() {
+        return converter.getBundleSymbolicName( plainJar );
+    }
+
+    @Benchmark
+    public BundleMetadata readBundleMetadata() throws Exception {
+        return BundleMetadata.read( bundle.getFile() );
+    }
+
+    @Benchmark
+    public String cachedSymbolicName() throws Exception {
+        return cache.get( bundle, converter ).getSymbolicName();
+    }
+
+    @Benchmark
+    public void cleanupVersions( Blackhole blackhole ) {
+        for ( String version : VERSIONS ) {
+            blackhole.consume( Analyzer.cleanupVersion( version ) );
+            blackhole.consume( converter.getVersion( version ) );
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package uk.co.trenddevs.plugin.cba.benchmarks;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import uk.co.trenddevs.plugin.cba.CbaMojo;
+import uk.co.trenddevs.plugin.cba.manifest.CompositeBundleManifest;
+
+/**
+ * Generation of COMPOSITEBUNDLE.MF for a growing number of content bundles. The bundle metadata
+ * cache is warm after the first invocation, as it is for every module but the first of a build.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ManifestGenerationBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int bundles;
+
+    private CbaMojo mojo;
+
+    @Setup
+    public void setUp() throws Exception {
+        mojo = CbaMojoFixture.createMojo( "manifest-" + bundles, CbaMojoFixture.createBundles( bundles, 4 * 1024 ) );
+    }
+
+    @Benchmark
+    public byte[] generateManifest() throws Exception {
+        return ( ( CompositeBundleManifest ) CbaMojoFixture.invoke( mojo, "createCompositeBundleManifest" ) ).toByteArray();
+    }
+}
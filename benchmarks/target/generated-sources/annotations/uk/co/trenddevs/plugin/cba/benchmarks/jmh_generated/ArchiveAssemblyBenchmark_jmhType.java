@@ -0,0 +1,4 @@
+package uk.co.trenddevs.plugin.cba.benchmarks.jmh_generated;
+public class ArchiveAssemblyBenchmark_jmhType extends ArchiveAssemblyBenchmark_jmhType_B3 {
+}
+
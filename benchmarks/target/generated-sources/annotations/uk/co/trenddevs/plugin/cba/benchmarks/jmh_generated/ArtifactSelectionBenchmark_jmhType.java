@@ -0,0 +1,4 @@
+package uk.co.trenddevs.plugin.cba.benchmarks.jmh_generated;
+public class ArtifactSelectionBenchmark_jmhType extends ArtifactSelectionBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package uk.co.trenddevs.plugin.cba.benchmarks.jmh_generated;
+public class ConversionBenchmark_jmhType extends ConversionBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,4 @@
+package uk.co.trenddevs.plugin.cba.benchmarks.jmh_generated;
+public class ManifestGenerationBenchmark_jmhType extends ManifestGenerationBenchmark_jmhType_B3 {
+}
+
@@ -0,0 +1,73 @@
+package uk.co.trenddevs.plugin.cba;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import uk.co.trenddevs.plugin.cba.delta.CbaDelta;
+
+/**
+ * Rebuilds a cba from its baseline and a delta written by the delta goal. The rebuilt cba is
+ * byte for byte the one the delta was made for; a baseline other than the one the delta was
+ * made against is refused. Needs no project and no network:
+ * <code>mvn cba:apply-delta -Dcba.baselineFile=... -Dcba.deltaFile=... -Dcba.file=...</code>
+ *
+ * @version $Id: $
+ * @goal apply-delta
+ * @requiresProject false
+ */
+public class CbaApplyDeltaMojo extends AbstractMojo {
+
+    /**
+     * The baseline cba the delta was made against.
+     *
+     * @parameter expression="${cba.baselineFile}"
+     * @required
+     */
+    private File baselineFile;
+
+    /**
+     * The delta.
+     *
+     * @parameter expression="${cba.deltaFile}"
+     * @required
+     */
+    private File deltaFile;
+
+    /**
+     * The cba to write; may be the baseline itself.
+     *
+     * @parameter expression="${cba.file}"
+     * @required
+     */
+    private File cbaFile;
+
+    public void execute() throws MojoExecutionException {
+        try {
+            CbaDelta.apply( baselineFile, deltaFile, cbaFile );
+        } catch ( IOException e ) {
+            throw new MojoExecutionException( "Error applying " + deltaFile + " to " + baselineFile, e );
+        }
+        getLog().info( "Rebuilt CBA " + cbaFile + " from " + baselineFile.getName() + " and " + deltaFile.getName() + "." );
+    }
+}
@@ -0,0 +1,178 @@
+package uk.co.trenddevs.plugin.cba;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.factory.ArtifactFactory;
+import org.apache.maven.artifact.repository.ArtifactRepository;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
+import uk.co.trenddevs.plugin.cba.delta.CbaDelta;
+
+/**
+ * Writes the delta between a baseline cba and the cba of the project, so that nodes holding
+ * the baseline only need the delta to rebuild the new cba with the apply-delta goal.
+ *
+ * The delta holds the added and changed entries, the names of the removed entries and how
+ * to lay out the new cba from the baseline; see {@link CbaDelta}. The baseline is either a
+ * file, or a version of the project's cba, or any cba by its coordinates, in the local
+ * repository.
+ *
+ * @version $Id: $
+ * @goal delta
+ * @phase package
+ */
+public class CbaDeltaMojo extends AbstractMojo {
+
+    /**
+     * Classifier the delta is attached with.
+     */
+    public static final String DELTA_CLASSIFIER = "delta";
+
+    /**
+     * The cba the delta leads to.
+     *
+     * @parameter expression="${cba.file}" default-value="${project.build.directory}/${project.build.finalName}.cba"
+     */
+    private File cbaFile;
+
+    /**
+     * The baseline cba file. Takes precedence over baseline.
+     *
+     * @parameter expression="${cba.baselineFile}"
+     */
+    private File baselineFile;
+
+    /**
+     * The baseline cba in the local repository, as groupId:artifactId:version, or only the version
+     * of the project's own cba.
+     *
+     * @parameter expression="${cba.baseline}"
+     */
+    private String baseline;
+
+    /**
+     * The delta to write.
+     *
+     * @parameter expression="${cba.deltaFile}" default-value="${project.build.directory}/${project.build.finalName}-delta.zip"
+     */
+    private File deltaFile;
+
+    /**
+     * Whether the delta is attached to the project with the delta classifier, to be installed and deployed with it.
+     *
+     * @parameter expression="${cba.attachDelta}" default-value="true"
+     */
+    private boolean attachDelta = true;
+
+    /**
+     * The maven project.
+     *
+     * @parameter expression="${project}"
+     * @required
+     * @readonly
+     */
+    private MavenProject project;
+
+    /**
+     * The local repository the baseline is looked up in.
+     *
+     * @parameter expression="${localRepository}"
+     * @required
+     * @readonly
+     */
+    private ArtifactRepository localRepository;
+
+    /**
+     * Creates the baseline artifact from its coordinates.
+     *
+     * @component
+     */
+    private ArtifactFactory artifactFactory;
+
+    /**
+     * Attaches the delta to the project.
+     *
+     * @component
+     */
+    private MavenProjectHelper projectHelper;
+
+    public void execute() throws MojoExecutionException {
+        File baselineCba = getBaselineFile();
+        if (!baselineCba.isFile()) {
+            throw new MojoExecutionException( "Baseline CBA " + baselineCba + " does not exist." );
+        }
+        if (!cbaFile.isFile()) {
+            throw new MojoExecutionException( "CBA " + cbaFile + " does not exist, run the cba goal first." );
+        }
+
+        CbaDelta.Result result;
+        try {
+            result = CbaDelta.create( baselineCba, cbaFile, deltaFile );
+        } catch ( IOException e ) {
+            throw new MojoExecutionException( "Error writing the delta from " + baselineCba + " to " + cbaFile, e );
+        }
+        getLog().info( "CBA delta " + deltaFile.getName() + ": " + result.getAdded().size() + " added, "
+                       + result.getChanged().size() + " changed, " + result.getRemoved().size() + " removed, "
+                       + result.getUnchanged() + " unchanged entries; " + deltaFile.length() + " bytes instead of "
+                       + cbaFile.length() + "." );
+        for (String name : result.getAdded()) {
+            getLog().debug( "added " + name );
+        }
+        for (String name : result.getChanged()) {
+            getLog().debug( "changed " + name );
+        }
+        for (String name : result.getRemoved()) {
+            getLog().debug( "removed " + name );
+        }
+        if (attachDelta) {
+            projectHelper.attachArtifact( project, "zip", DELTA_CLASSIFIER, deltaFile );
+        }
+    }
+
+    /**
+     * Returns baselineFile, or the file of baseline in the local repository
+     * @return
+     * @throws MojoExecutionException when no baseline is configured
+     */
+    private File getBaselineFile() throws MojoExecutionException {
+        if (baselineFile != null) {
+            return baselineFile;
+        }
+        if (baseline == null || baseline.trim().length() == 0) {
+            throw new MojoExecutionException( "No baseline CBA, set baselineFile or baseline (groupId:artifactId:version)." );
+        }
+        String[] coordinates = baseline.trim().split( ":" );
+        Artifact artifact;
+        if (coordinates.length == 1) {
+            artifact = artifactFactory.createArtifact( project.getGroupId(), project.getArtifactId(), coordinates[0], null, "cba" );
+        } else if (coordinates.length == 3) {
+            artifact = artifactFactory.createArtifact( coordinates[0], coordinates[1], coordinates[2], null, "cba" );
+        } else {
+            throw new MojoExecutionException( "Invalid baseline '" + baseline + "', use groupId:artifactId:version or a version." );
+        }
+        return new File( localRepository.getBasedir(), localRepository.pathOf( artifact ) );
+    }
+}
@@ -19,34 +19,77 @@ package uk.co.trenddevs.plugin.cba;
  * under the License.
  */
 
-import org.apache.maven.archiver.PomPropertiesUtil;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.artifact.resolver.filter.ScopeArtifactFilter;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.project.MavenProject;
+import org.apache.maven.project.MavenProjectHelper;
+import org.codehaus.plexus.archiver.Archiver;
 import org.codehaus.plexus.archiver.ArchiverException;
+import org.codehaus.plexus.archiver.manager.ArchiverManager;
+import org.codehaus.plexus.archiver.manager.NoSuchArchiverException;
 import org.codehaus.plexus.archiver.zip.ZipArchiver;
 import org.codehaus.plexus.util.DirectoryScanner;
 import org.codehaus.plexus.util.FileUtils;
 import org.apache.maven.shared.osgi.DefaultMaven2OsgiConverter;
 import org.apache.maven.shared.osgi.Maven2OsgiConverter;
+import uk.co.trenddevs.plugin.cba.archive.ChecksumOutputStream;
+import uk.co.trenddevs.plugin.cba.archive.CompressedEntryCache;
+import uk.co.trenddevs.plugin.cba.archive.CompressionPolicy;
+import uk.co.trenddevs.plugin.cba.archive.ContentArchiver;
+import uk.co.trenddevs.plugin.cba.archive.ExplodedArchiver;
+import uk.co.trenddevs.plugin.cba.archive.NestedJarNormalizer;
+import uk.co.trenddevs.plugin.cba.archive.ParallelZipArchiver;
+import uk.co.trenddevs.plugin.cba.archive.ZipWriter;
+import uk.co.trenddevs.plugin.cba.bundle.ArtifactDeduplicator;
+import uk.co.trenddevs.plugin.cba.bundle.BundleAnalyzer;
+import uk.co.trenddevs.plugin.cba.bundle.BundleIndex;
+import uk.co.trenddevs.plugin.cba.bundle.BundleMetadata;
+import uk.co.trenddevs.plugin.cba.bundle.BundleMetadataCache;
+import uk.co.trenddevs.plugin.cba.bundle.BundleValidator;
+import uk.co.trenddevs.plugin.cba.bundle.PackageResolver;
+import uk.co.trenddevs.plugin.cba.incremental.BuildFingerprint;
+import uk.co.trenddevs.plugin.cba.manifest.Clause;
+import uk.co.trenddevs.plugin.cba.manifest.CompositeBundleManifest;
+import uk.co.trenddevs.plugin.cba.metrics.BuildMetrics;
 import aQute.lib.osgi.Analyzer;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.StringReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.zip.Deflater;
 
 /**
  * Builds Component Bundle Archive (cba) files for Websphere Application Server.
  *
+ * The goal keeps no state between executions and leaves the project model untouched, so
+ * modules of a parallel reactor build can assemble their cba files at the same time. Bundle
+ * metadata and compressed entries are shared between those modules through session caches.
+ *
  * @version $Id: $
  * @goal cba
  * @phase package
  * @requiresDependencyResolution test
+ * @threadSafe
  */
 public class CbaMojo  extends AbstractMojo  {
 
@@ -54,23 +97,28 @@ public class CbaMojo  extends AbstractMojo  {
 
     private static final String[] DEFAULT_INCLUDES = {"**/**"};
 
+    /**
+     * Classifier of the attached checksum files, since attached artifacts need one.
+     */
+    private static final String CHECKSUM_CLASSIFIER = "checksum";
+
     /**
      * CompositeBundle.MF manifest headers
      *
      * Please see <a href="https://www-01.ibm.com/support/knowledgecenter/#!/was_beta/com.ibm.websphere.wdt.doc/topics/ccba.htm">IBM documentation</a> for further detail
      *
      */
-    public static final String MANIFEST_VERSION = "Manifest-Version";
-    public static final String COMPOSITE_BUNDLE_MANIFEST_VERSION = "CompositeBundle-ManifestVersion";
-    public static final String BUNDLE_NAME = "Bundle-Name";
-    public static final String BUNDLE_DESCRIPTION = "Bundle-Description";
-    public static final String BUNDLE_SYMBOLIC_NAME = "Bundle-SymbolicName";
-    public static final String BUNDLE_VERSION = "Bundle-Version";
-    public static final String COMPOSITE_BUNDLE_CONTENT = "CompositeBundle-Content";
-    public static final String COMPOSITE_BUNDLE_EXPORT_SERVICE = "CompositeBundle-ExportService";
-    public static final String COMPOSITE_BUNDLE_IMPORT_SERVICE = "CompositeBundle-ImportService";
-    public static final String COMPOSITE_BUNDLE_EXPORT_PACKAGE = "Export-Package";
-    public static final String COMPOSITE_BUNDLE_IMPORT_PACKAGE = "Import-Package";
+    public static final String MANIFEST_VERSION = CompositeBundleManifest.MANIFEST_VERSION;
+    public static final String COMPOSITE_BUNDLE_MANIFEST_VERSION = CompositeBundleManifest.COMPOSITE_BUNDLE_MANIFEST_VERSION;
+    public static final String BUNDLE_NAME = CompositeBundleManifest.BUNDLE_NAME;
+    public static final String BUNDLE_DESCRIPTION = CompositeBundleManifest.BUNDLE_DESCRIPTION;
+    public static final String BUNDLE_SYMBOLIC_NAME = CompositeBundleManifest.BUNDLE_SYMBOLIC_NAME;
+    public static final String BUNDLE_VERSION = CompositeBundleManifest.BUNDLE_VERSION;
+    public static final String COMPOSITE_BUNDLE_CONTENT = CompositeBundleManifest.COMPOSITE_BUNDLE_CONTENT;
+    public static final String COMPOSITE_BUNDLE_EXPORT_SERVICE = CompositeBundleManifest.COMPOSITE_BUNDLE_EXPORT_SERVICE;
+    public static final String COMPOSITE_BUNDLE_IMPORT_SERVICE = CompositeBundleManifest.COMPOSITE_BUNDLE_IMPORT_SERVICE;
+    public static final String COMPOSITE_BUNDLE_EXPORT_PACKAGE = CompositeBundleManifest.EXPORT_PACKAGE;
+    public static final String COMPOSITE_BUNDLE_IMPORT_PACKAGE = CompositeBundleManifest.IMPORT_PACKAGE;
 
 
     /**
@@ -140,6 +188,169 @@ public class CbaMojo  extends AbstractMojo  {
      */
     private ZipArchiver zipArchiver;
 
+    /**
+     * The multi-threaded zip archiver.
+     *
+     * @component role="org.codehaus.plexus.archiver.Archiver" roleHint="cba-parallel"
+     * @required
+     */
+    private ParallelZipArchiver parallelZipArchiver;
+
+    /**
+     * The archiver laying the cba out in a directory.
+     *
+     * @component role="org.codehaus.plexus.archiver.Archiver" roleHint="cba-exploded"
+     * @required
+     */
+    private ExplodedArchiver explodedArchiver;
+
+    /**
+     * Gives fresh archivers to executions that build more than once.
+     *
+     * @component role="org.codehaus.plexus.archiver.manager.ArchiverManager"
+     * @required
+     */
+    private ArchiverManager archiverManager;
+
+    /**
+     * Attaches the checksum files to the project.
+     *
+     * @component
+     */
+    private MavenProjectHelper projectHelper;
+
+    /**
+     * Which archiver assembles the cba.
+     *   zip - the single-threaded plexus zip archiver
+     *   parallel - entries are deflated concurrently on compressionThreads threads; needed by
+     *              compressionRules, incremental, reproducible, the entry cache and the checksums
+     *              computed while writing
+     *   exploded - nothing is packed, the cba is laid out in explodedDirectory for runtimes
+     *              that deploy it unpacked, see linkMode
+     *
+     * @parameter expression="${archiver}" default-value="zip"
+     */
+    private String archiver = "zip";
+
+    /**
+     * Number of threads used by the parallel archiver; 0 uses one thread per available processor.
+     *
+     * @parameter expression="${compressionThreads}" default-value="0"
+     */
+    private int compressionThreads;
+
+    /**
+     * Number of threads of the parallel archiver reading files ahead of their compression, so that
+     * reads from a slow local repository overlap with compression and writing; 0 reads files on the
+     * compression threads.
+     *
+     * @parameter expression="${prefetchThreads}" default-value="2"
+     */
+    private int prefetchThreads = ParallelZipArchiver.DEFAULT_PREFETCH_THREADS;
+
+    /**
+     * Megabytes of entries the parallel archiver holds between reading and writing them, whether
+     * prefetched, compressed or waiting to be written. A single larger entry is still archived, on its own.
+     *
+     * @parameter expression="${maxBufferedMemory}" default-value="64"
+     */
+    private int maxBufferedMemory = 64;
+
+    /**
+     * Directory the exploded archiver lays the cba out in. Defaults to finalName-exploded in
+     * outputDirectory, apart from workDirectory, whose staged resources would otherwise be mixed
+     * with the cba.
+     *
+     * @parameter expression="${explodedDirectory}"
+     */
+    private File explodedDirectory;
+
+    /**
+     * How the exploded archiver places bundle jars and other files in explodedDirectory:
+     *   hard - hard links to the files, such as the jars in the local repository
+     *   symbolic - symbolic links to the files
+     *   copy - copies
+     * Links the file system refuses fall back to copies. Files already in place are left alone, so a
+     * repeated build only updates what changed. Linked jars share their content with the local
+     * repository and must not be modified in place.
+     *
+     * @parameter expression="${linkMode}" default-value="hard"
+     */
+    private String linkMode = "hard";
+
+    /**
+     * Per-entry compression, first matching rule wins. When no rules are configured, jar, war and zip
+     * entries are stored since they are compressed already, and everything else is deflated.
+     * Only applied by the parallel archiver.
+     *
+     * @parameter
+     */
+    private List compressionRules;
+
+    /**
+     * Deflate level (0-9) for entries not matching any compression rule; -1 selects the zlib default.
+     *
+     * @parameter expression="${compressionLevel}" default-value="-1"
+     */
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /**
+     * Whether deflated entries are stored instead when deflating a sample of them saves less than
+     * adaptiveMinSavings percent.
+     *
+     * @parameter expression="${adaptiveCompression}" default-value="false"
+     */
+    private boolean adaptiveCompression;
+
+    /**
+     * Number of leading bytes of an entry deflated to decide in adaptive mode.
+     *
+     * @parameter expression="${adaptiveSampleSize}" default-value="65536"
+     */
+    private int adaptiveSampleSize = CompressionPolicy.DEFAULT_SAMPLE_SIZE;
+
+    /**
+     * Minimum saving, in percent, for an entry to be deflated in adaptive mode.
+     *
+     * @parameter expression="${adaptiveMinSavings}" default-value="10"
+     */
+    private int adaptiveMinSavings = CompressionPolicy.DEFAULT_MIN_SAVINGS_PERCENT;
+
+    /**
+     * Whether the project jar and bundle jars are rewritten with their entries stored, into
+     * storedJarDirectory, and deflated as a whole at storedJarLevel in the cba. Classes and resources
+     * common to the entries of a bundle then compress together, which usually makes the cba smaller
+     * at the cost of the rewrite and of a slower compression; the "nested jar storing" and "archive"
+     * phases of the metrics report show both. Signed jars are left as they are. Applied by the parallel
+     * archiver; the zip archiver deflates the stored jars at its default level.
+     *
+     * @parameter expression="${storeNestedJars}" default-value="false"
+     */
+    private boolean storeNestedJars;
+
+    /**
+     * Deflate level (0-9) of the stored nested jars in the cba.
+     *
+     * @parameter expression="${storedJarLevel}" default-value="9"
+     */
+    private int storedJarLevel = Deflater.BEST_COMPRESSION;
+
+    /**
+     * Directory the stored nested jars are written to, and reused from while their jars are unchanged.
+     *
+     * @parameter expression="${storedJarDirectory}" default-value="${project.build.directory}/cba-stored-jars"
+     */
+    private File storedJarDirectory;
+
+    /**
+     * Whether to write META-INF/cba-index.json, listing for every nested jar its entry name, artifact,
+     * size, SHA-1, Bundle-SymbolicName, Bundle-Version, exports and imports, so tools can inventory the
+     * cba without opening its nested jars. Headers and hashes come from the bundle metadata cache.
+     *
+     * @parameter expression="${cba.bundleIndex}" default-value="false"
+     */
+    private boolean bundleIndex;
+
     /**
      * Whether to generate a manifest based on maven configuration.
      *
@@ -147,6 +358,14 @@ public class CbaMojo  extends AbstractMojo  {
      */
     private boolean generateManifest;
 
+    /**
+     * Whether a generated manifest is merged into compositeBundleManifestFile, when that file exists,
+     * instead of replacing it. Headers and content clauses present in the file take precedence.
+     *
+     * @parameter expression="${mergeManifest}" default-value="false"
+     */
+    private boolean mergeManifest;
+
     /**
      * Configuration for the plugin.
      *
@@ -175,6 +394,25 @@ public class CbaMojo  extends AbstractMojo  {
      */
     private boolean forceCreation;
 
+    /**
+     * Whether to build a reproducible cba: entries in name order, all with the outputTimestamp
+     * (or 1980-01-01T00:00:02Z when it is not set), permissions 644 for files and 755 for
+     * directories, manifest headers and clauses in a fixed order and no date in pom.properties.
+     * The same inputs then give a byte-identical cba. Used by the parallel archiver only.
+     *
+     * @parameter expression="${reproducible}" default-value="false"
+     */
+    private boolean reproducible;
+
+    /**
+     * Time of the entries of a reproducible cba, as ISO-8601 (e.g. 2020-01-01T00:00:00Z) or seconds
+     * since the epoch. Only used when reproducible is set, so that projects setting the property
+     * for other plugins keep their cba as it was.
+     *
+     * @parameter expression="${project.build.outputTimestamp}"
+     */
+    private String outputTimestamp;
+
     /**
      * Whether to follow transitive dependencies or use explicit dependencies.
      *
@@ -192,10 +430,184 @@ public class CbaMojo  extends AbstractMojo  {
      */
     private String archiveContent;
 
-    private File buildDir;
+    /**
+     * Whether to skip assembling the cba when none of its inputs changed since it was last built.
+     * Inputs are the included artifacts, the files under cbaSourceDirectory, the manifest instructions
+     * and the plugin parameters. Ignored when forceCreation is set.
+     *
+     * @parameter expression="${checkUpToDate}" default-value="true"
+     */
+    private boolean checkUpToDate = true;
+
+    /**
+     * Whether the up-to-date check also hashes the content of every input file instead of relying
+     * on size and modification time only.
+     *
+     * @parameter expression="${fingerprintContents}" default-value="false"
+     */
+    private boolean fingerprintContents;
+
+    /**
+     * Whether cba resources, the manifest and the maven descriptor are first copied into workDirectory and
+     * archived from there, as earlier versions did. By default the parallel and exploded archivers read
+     * resources from cbaSourceDirectory and generated entries from memory, so nothing is written besides
+     * the cba itself.
+     * The zip archiver always uses the work directory.
+     *
+     * @parameter expression="${useWorkDirectory}" default-value="false"
+     */
+    private boolean useWorkDirectory;
+
+    /**
+     * Whether the cba is updated from the previous build: entries whose input has the same size and
+     * modification time as before, and the same CRC when fingerprintContents is set, are copied from the
+     * existing cba without being compressed again. Only applied by the parallel archiver, and not when
+     * forceCreation is set. A changed compressionLevel only affects entries that are compressed again.
+     *
+     * @parameter expression="${incremental}" default-value="false"
+     */
+    private boolean incremental;
+
+    /**
+     * File in which the symbolic names and OSGi headers read from content bundles are kept between builds,
+     * so unchanged jars are not opened again. Within a build the metadata is shared by all modules anyway.
+     * Point it into the local repository to share it between projects, or leave it empty to keep
+     * the metadata in memory only.
+     *
+     * @parameter expression="${bundleMetadataCache}" default-value="${project.build.directory}/cba-bundle-metadata.properties"
+     */
+    private File bundleMetadataCache;
+
+    /**
+     * What to do when content artifacts are not OSGi bundles, checked before anything is archived.
+     *   fail - fail the build, listing every offending artifact
+     *   warn - log the offending artifacts and carry on
+     *   skip - do not check
+     * Checking opens every content jar, so it is off unless asked for.
+     *
+     * @parameter expression="${bundleValidation}" default-value="skip"
+     */
+    private String bundleValidation = "skip";
+
+    /**
+     * Whether to check, before archiving, that every package imported by a content bundle is exported
+     * by a content bundle in a matching version or listed in the Import-Package instruction.
+     *   fail - fail the build, listing every unresolved import
+     *   warn - log the unresolved imports and carry on
+     *   skip - do not check
+     * Optional imports and java.* packages are not checked.
+     *
+     * @parameter expression="${wiringCheck}" default-value="skip"
+     */
+    private String wiringCheck = "skip";
+
+    /**
+     * Packages provided by the runtime that the wiring check ignores, as names or prefixes such as javax.*
+     *
+     * @parameter
+     */
+    private List wiringIgnoredPackages;
+
+    /**
+     * Whether artifacts whose jar is byte-identical to that of another included artifact, such as
+     * relocated artifacts or classifier aliases, are left out of the cba and its CompositeBundle-Content.
+     * The first of the identical artifacts is kept. Only jars of the same size are hashed.
+     *
+     * @parameter expression="${deduplicateArtifacts}" default-value="false"
+     */
+    private boolean deduplicateArtifacts;
+
+    /**
+     * What to do when artifacts share a symbolic name in different versions:
+     *   highest - only include the highest version
+     *   fail - fail the build, listing every conflict
+     *   keep-all - include every version without looking for conflicts, so no jar is opened
+     *
+     * @parameter expression="${versionConflicts}" default-value="keep-all"
+     */
+    private String versionConflicts = "keep-all";
+
+    /**
+     * Report of the artifacts left out by deduplication and version conflict resolution, the bytes
+     * saved and the version conflicts found, written after every execution, for instance
+     * ${project.build.directory}/cba-deduplication.txt. Not set by default, findings are then only logged.
+     *
+     * @parameter expression="${deduplicationReport}"
+     */
+    private File deduplicationReport;
+
+    /**
+     * Whether the Export-Package and Import-Package headers of a generated manifest are computed by
+     * analyzing the content bundles with bnd: the composite exports the packages its bundles export
+     * and imports those they import but no content bundle exports. Packages named in the
+     * Export-Package and Import-Package instructions keep their configured clauses.
+     *
+     * @parameter expression="${computePackageHeaders}" default-value="false"
+     */
+    private boolean computePackageHeaders;
+
+    /**
+     * Megabytes of compressed entries kept in memory for the whole build, so that a bundle included by
+     * several cba files or executions is compressed only once. The least recently used entries are
+     * dropped beyond it; 0, the default, keeps none. Entries the compression rules store, such as
+     * nested jars by default, are never cached. Used by the parallel archiver only.
+     *
+     * @parameter expression="${entryCacheSize}" default-value="0"
+     */
+    private int entryCacheSize;
+
+    /**
+     * Directory where compressed entries are also kept between builds, for instance
+     * ${project.build.directory}/cba-entry-cache. Entries are addressed by content, so the
+     * directory may be shared by several executions. Not set by default, entries are then only
+     * kept in memory for the build.
+     *
+     * @parameter expression="${entryCacheDirectory}"
+     */
+    private File entryCacheDirectory;
+
+    /**
+     * JSON report of the wall time, CPU time, bytes read and written, entries and compression ratio of
+     * each phase of the build, written after every execution. A summary is logged at info level.
+     *
+     * @parameter expression="${cba.metricsFile}" default-value="${project.build.directory}/cba-metrics.json"
+     */
+    private File metricsFile;
+
+    /**
+     * Comma separated checksums, such as SHA-256,SHA-512, written next to the cba as .sha1, .sha256,
+     * .sha512 (or .md5) files and attached to the project with the checksum classifier, so they are
+     * installed and deployed with it. The parallel archiver computes them from the bytes as it writes the
+     * cba; the zip archiver's cba is read once more. Empty by default: install and deploy still compute
+     * their own .sha1 and .md5 of the cba, which these do not replace. Not written for an exploded cba.
+     *
+     * @parameter expression="${cba.checksums}" default-value=""
+     */
+    private String checksums = "";
+
+    /**
+     * This build's view of the bundle metadata cache, loaded on first use.
+     */
+    private BundleMetadataCache buildMetadataCache;
 
+    /**
+     * The included and content artifacts, selected once per execution.
+     */
+    private ArtifactDeduplicator.Result includedArtifacts;
+    private ArtifactDeduplicator.Result contentArtifacts;
 
     public void execute() throws MojoExecutionException {
+        buildMetadataCache = null;
+        includedArtifacts = null;
+        contentArtifacts = null;
+        try {
+            assemble();
+        } finally {
+            storeBundleMetadataCache();
+        }
+    }
+
+    private void assemble() throws MojoExecutionException {
 
         getLog().debug( " ======= CbaMojo settings =======" );
         getLog().debug( "cbaSourceDirectory[" + cbaSourceDirectory + "]" );
@@ -205,229 +617,868 @@ public class CbaMojo  extends AbstractMojo  {
         getLog().debug( "finalName[" + finalName + "]" );
         getLog().debug( "generateManifest[" + generateManifest + "]" );
 
-        if (archiveContent == null) {
-        	archiveContent = new String("applicationContent");
-        }
+        getLog().debug( "archiveContent[" + getArchiveContent() + "]" );
+        getLog().info( "archiveContent[" + getArchiveContent() + "]" );
         
-        getLog().debug( "archiveContent[" + archiveContent + "]" );        
-        getLog().info( "archiveContent[" + archiveContent + "]" );        
-        
-        zipArchiver.setIncludeEmptyDirs( includeEmptyDirs );
-        zipArchiver.setCompress( true );
-        zipArchiver.setForced( forceCreation );
-
-        // Include project artifact
-        try {
-            if (includeJar.booleanValue()) {
-                File generatedJarFile = new File( outputDirectory, finalName + ".jar" );
-                if (generatedJarFile.exists()) {
-                    getLog().info( "Including generated jar file["+generatedJarFile.getName()+"]");
-                    zipArchiver.addFile(generatedJarFile, finalName + ".jar");
-                }
+        BuildMetrics metrics = new BuildMetrics( project.getGroupId() + ":" + project.getArtifactId() + ":" + project.getVersion() );
+        File cbaFile = isExploded() ? getExplodedDirectory() : new File( outputDirectory, finalName + ".cba" );
+        BuildFingerprint fingerprint = null;
+        // an exploded cba is brought up to date entry by entry instead
+        if (checkUpToDate && !isExploded()) {
+            BuildMetrics.Phase phase = metrics.start( "up-to-date check" );
+            fingerprint = createFingerprint();
+            boolean upToDate = !forceCreation && fingerprint.isUpToDate(getFingerprintFile(), cbaFile);
+            phase.end();
+            if (upToDate) {
+                getLog().info( "CBA " + cbaFile.getName() + " is up to date, skipping assembly." );
+                project.getArtifact().setFile( cbaFile );
+                writeChecksums( cbaFile, null );
+                metrics.setSkipped( true );
+                reportMetrics( metrics );
+                return;
             }
         }
-        catch ( ArchiverException e ) {
-            throw new MojoExecutionException( "Error adding generated Jar file", e );
-        }
-
-        // Copy dependencies
-        try {
 
-            Set<Artifact> artifacts = null;
-            if (useTransitiveDependencies) {
+        BuildMetrics.Phase phase = metrics.start( "bundle validation" );
+        validateContentBundles();
+        phase.end();
+        phase = metrics.start( "wiring check" );
+        checkPackageWiring();
+        phase.end();
 
-                // if use transitive is set (i.e. true) then we need to make sure archiveContent does not contradict (i.e. is set to the same compatible value or is the default).
-            	if ("none".equals(archiveContent)) {
-                    throw new MojoExecutionException("<useTransitiveDependencies/> and <archiveContent/> incompatibly configured.  <useTransitiveDependencies/> is deprecated in favor of <archiveContent/>." );            		
-            	}
-            	else {
-                    artifacts = project.getArtifacts();            		
-            	}
+        phase = metrics.start( "dependency selection" );
+        Archiver cbaArchiver = getArchiver( cbaFile );
+        cbaArchiver.setIncludeEmptyDirs( includeEmptyDirs );
+        cbaArchiver.setForced( forceCreation );
 
-            } else {
-            	// check that archiveContent is compatible
-            	if ("applicationContent".equals(archiveContent)) {
-                    artifacts = project.getDependencyArtifacts();            		
-            	}
-            	else {
-                	// the only remaining options should be applicationContent="none"
-                    getLog().info("archiveContent=none: application arvhive will not contain any bundles.");            		
-            	}
-            }
-            if (artifacts != null) {
-                for (Artifact artifact : artifacts) {
-                    ScopeArtifactFilter filter = new ScopeArtifactFilter(Artifact.SCOPE_RUNTIME);
-                    if (!artifact.isOptional() && filter.include(artifact)) {
-                        getLog().info("Copying artifact[" + artifact.getGroupId() + ", " + artifact.getId() + ", " +
-                                artifact.getScope() + "]");
-                        zipArchiver.addFile(artifact.getFile(), artifact.getArtifactId() + "-" + artifact.getVersion() + "." + (artifact.getType() == null ? "jar" : artifact.getType()));
-                    }
-                }            	
+        // Include project artifact
+        Map<String, File> nestedJars = new LinkedHashMap<String, File>();
+        if (includeJar.booleanValue()) {
+            File generatedJarFile = new File( outputDirectory, finalName + ".jar" );
+            if (generatedJarFile.exists()) {
+                getLog().info( "Including generated jar file["+generatedJarFile.getName()+"]");
+                nestedJars.put( finalName + ".jar", generatedJarFile );
             }
         }
-        catch ( ArchiverException e ) {
-            throw new MojoExecutionException( "Error copying EBA dependencies", e );
-        }
-
-        // Copy source files
-        try
-        {
-            File cbaSourceDir =  cbaSourceDirectory;
-            if ( cbaSourceDir.exists() )
-            {
-                getLog().info( "Copy cba resources to " + getBuildDir().getAbsolutePath() );
 
-                DirectoryScanner scanner = new DirectoryScanner();
-                scanner.setBasedir( cbaSourceDir.getAbsolutePath() );
-                scanner.setIncludes( DEFAULT_INCLUDES );
-                scanner.addDefaultExcludes();
-                scanner.scan();
-
-                String[] dirs = scanner.getIncludedDirectories();
-
-                for ( int j = 0; j < dirs.length; j++ ) {
-                    new File( getBuildDir(), dirs[j] ).mkdirs();
-                }
-
-                String[] files = scanner.getIncludedFiles();
-
-                for ( int j = 0; j < files.length; j++ )  {
-                    File targetFile = new File( getBuildDir(), files[j] );
-                    targetFile.getParentFile().mkdirs();
-                    File file = new File( cbaSourceDir, files[j] );
-                    FileUtils.copyFileToDirectory( file, targetFile.getParentFile() );
-                }
-            }
+        // Copy dependencies
+        ArtifactDeduplicator.Result included = selectIncludedArtifacts();
+        reportDeduplication( included );
+        for (Artifact artifact : included.getSelected()) {
+            getLog().info("Copying artifact[" + artifact.getGroupId() + ", " + artifact.getId() + ", " +
+                    artifact.getScope() + "]");
+            nestedJars.put( getArchiveEntryName(artifact), artifact.getFile() );
         }
-        catch ( Exception e )
-        {
-            throw new MojoExecutionException( "Error copying CBA resources", e );
+        phase.setEntries( nestedJars.size() ).end();
+
+        if (storeNestedJars && isExploded()) {
+            getLog().warn( "storeNestedJars is ignored by the exploded archiver, jars are linked as they are." );
+        } else if (storeNestedJars) {
+            phase = metrics.start( "nested jar storing" );
+            NestedJarNormalizer normalizer = new NestedJarNormalizer( getStoredJarDirectory() );
+            storeNestedJars( nestedJars, normalizer, cbaArchiver );
+            phase.setBytesRead( normalizer.getBytesRead() ).setBytesWritten( normalizer.getBytesWritten() )
+                 .setEntries( normalizer.getStoredCount() ).end();
         }
 
-        // Include custom manifest if necessary
-        try
-        {
-            if (!generateManifest) {
-            	includeCustomApplicationManifestFile();
+        for (Map.Entry<String, File> nestedJar : nestedJars.entrySet()) {
+            try {
+                cbaArchiver.addFile( nestedJar.getValue(), nestedJar.getKey() );
+            } catch ( ArchiverException e ) {
+                throw new MojoExecutionException( "Error adding " + nestedJar.getKey() + " to the CBA", e );
             }
         }
-        catch ( IOException e )
-        {
-            throw new MojoExecutionException( "Error copying COMPONENTBUNDLE.MF file", e );
-        }
 
-		// Generate application manifest if requested
-		if (generateManifest) {
-			String fileName = new String(getBuildDir() + "/" + COMPOSITE_BUNDLE_MF_URI);
-			File appMfFile = new File(fileName);
+        CompositeBundleManifest manifest = null;
+        if (generateManifest) {
+            phase = metrics.start( "manifest generation" );
+            manifest = createCompositeBundleManifest();
+            phase.end();
+        }
 
-			try {
-				// Delete any old manifest
-				if (appMfFile.exists()) {
-					FileUtils.fileDelete(fileName);
-				}
-
-				appMfFile.getParentFile().mkdirs();
-				if (appMfFile.createNewFile()) {
-                    writeCompositeBundleManifest(fileName);
-				}
-			} catch (IOException e) {
-				throw new MojoExecutionException("Error generating APPLICATION.MF file: " + fileName, e);
-			}
-		}
-        
-        // Check if connector deployment descriptor is there
-        File ddFile = new File( getBuildDir(), COMPOSITE_BUNDLE_MF_URI);
-        if ( !ddFile.exists() ) {
-            getLog().warn("Application manifest: " + ddFile.getAbsolutePath() + " does not exist." );
+        ContentArchiver directArchiver = null;
+        if (!useWorkDirectory && cbaArchiver instanceof ContentArchiver) {
+            phase = metrics.start( "resources" );
+            directArchiver = (ContentArchiver) cbaArchiver;
+            addResourcesDirectly( directArchiver, manifest );
+            phase.end();
+        } else {
+            phase = metrics.start( "resource staging" );
+            long staged = stageResources( manifest );
+            phase.setBytesRead( staged ).setBytesWritten( staged ).end();
         }
 
-        try  {
-            if (addMavenDescriptor) {
-                if (project.getArtifact().isSnapshot()) {
-                    project.setVersion(project.getArtifact().getVersion());
+        File stagedIndex = new File( getBuildDir(), BundleIndex.ENTRY_NAME );
+        if (bundleIndex) {
+            phase = metrics.start( "bundle index" );
+            byte[] index = createBundleIndex( nestedJars, included.getSelected() ).toByteArray();
+            try {
+                if (directArchiver != null) {
+                    directArchiver.addContent( index, BundleIndex.ENTRY_NAME );
+                } else {
+                    stagedIndex.getParentFile().mkdirs();
+                    FileUtils.fileWrite( stagedIndex.getAbsolutePath(), "UTF-8", new String( index, "UTF-8" ) );
                 }
+            } catch ( Exception e ) {
+                throw new MojoExecutionException( "Error adding " + BundleIndex.ENTRY_NAME + " to the CBA", e );
+            }
+            phase.setBytesWritten( index.length ).setEntries( nestedJars.size() ).end();
+        } else if (directArchiver == null) {
+            // left over from an earlier build
+            stagedIndex.delete();
+        }
 
-                String groupId = project.getGroupId();
-
-                String artifactId = project.getArtifactId();
-
-                zipArchiver.addFile(project.getFile(), "META-INF/maven/" + groupId + "/" + artifactId + "/pom.xml");
-                PomPropertiesUtil pomPropertiesUtil = new PomPropertiesUtil();
+        phase = metrics.start( "archive" );
+        try  {
+            if (addMavenDescriptor && directArchiver != null) {
+                cbaArchiver.addFile(project.getFile(), getMavenDescriptorDir() + "pom.xml");
+                directArchiver.addContent(createPomProperties(), getMavenDescriptorDir() + "pom.properties");
+            } else if (addMavenDescriptor) {
+                cbaArchiver.addFile(project.getFile(), getMavenDescriptorDir() + "pom.xml");
                 File dir = new File(project.getBuild().getDirectory(), "maven-zip-plugin");
                 File pomPropertiesFile = new File(dir, "pom.properties");
-                pomPropertiesUtil.createPomProperties(project, zipArchiver, pomPropertiesFile, forceCreation);
+                dir.mkdirs();
+                FileUtils.fileWrite(pomPropertiesFile.getAbsolutePath(), "ISO-8859-1", new String(createPomProperties(), "ISO-8859-1"));
+                cbaArchiver.addFile(pomPropertiesFile, getMavenDescriptorDir() + "pom.properties");
             }
 
-            File cbaFile = new File( outputDirectory, finalName + ".cba" );
-            zipArchiver.setDestFile(cbaFile);
+            cbaArchiver.setDestFile(cbaFile);
 
             File buildDir = getBuildDir();
-            if (buildDir.isDirectory()) {
-                zipArchiver.addDirectory(buildDir);
+            if (directArchiver == null && buildDir.isDirectory()) {
+                cbaArchiver.addDirectory(buildDir);
             }
 
-            zipArchiver.createArchive();
+            cbaArchiver.createArchive();
 
             project.getArtifact().setFile( cbaFile );
 
         } catch ( Exception e )  {
             throw new MojoExecutionException( "Error assembling eba", e );
         }
+        if (cbaArchiver instanceof ParallelZipArchiver) {
+            ParallelZipArchiver parallel = (ParallelZipArchiver) cbaArchiver;
+            phase.setBytesRead( parallel.getBytesRead() ).setBytesWritten( parallel.getBytesWritten() )
+                 .setEntries( parallel.getEntryCount() )
+                 .setCompression( parallel.getUncompressedSize(), parallel.getCompressedSize() )
+                 .addCpuTime( parallel.getCompressionCpuTime() );
+        } else if (cbaArchiver instanceof ExplodedArchiver) {
+            ExplodedArchiver exploded = (ExplodedArchiver) cbaArchiver;
+            phase.setBytesWritten( exploded.getBytesWritten() )
+                 .setEntries( exploded.getLinkedCount() + exploded.getCopiedCount() + exploded.getUnchangedCount() );
+        } else {
+            phase.setBytesWritten( cbaFile.length() );
+        }
+        phase.end();
 
-    }
+        if (!isExploded()) {
+            phase = metrics.start( "checksums" );
+            writeChecksums( cbaFile, cbaArchiver instanceof ParallelZipArchiver
+                ? ((ParallelZipArchiver) cbaArchiver).getChecksums() : null );
+            phase.end();
+        }
 
+        if (fingerprint != null) {
+            try {
+                fingerprint.store(getFingerprintFile(), cbaFile);
+            } catch ( IOException e ) {
+                getLog().warn( "Unable to record CBA input fingerprint, the next build will not be skipped: " + e.getMessage() );
+            }
+        }
+        reportMetrics( metrics );
+    }
 
     /**
-     * Write CompositeBundle manifest file
-     * @param fileName
-     * @throws MojoExecutionException
+     * Indexes the nested jars as they are included in the cba, the project jar and the selected artifacts
+     * @param nestedJars the jars by entry name
+     * @param artifacts the selected artifacts
+     * @throws MojoExecutionException when a jar cannot be read
      */
-	private void writeCompositeBundleManifest(String fileName) throws MojoExecutionException {
-		try {
-
-			// TODO: add support for dependency version ranges. Need to pick them up from the pom and convert them to OSGi version ranges.
-			FileUtils.fileAppend(fileName, MANIFEST_VERSION + ": " + "1" + "\n");
-			FileUtils.fileAppend(fileName, COMPOSITE_BUNDLE_MANIFEST_VERSION + ": " + "1" + "\n");
-			FileUtils.fileAppend(fileName, BUNDLE_SYMBOLIC_NAME + ": " + getApplicationSymbolicName(project.getArtifact()) + "\n");
-			FileUtils.fileAppend(fileName, BUNDLE_VERSION + ": " + getBundleVersion() + "\n");
-			FileUtils.fileAppend(fileName, BUNDLE_NAME + ": " + project.getName() + "\n");
-			FileUtils.fileAppend(fileName, BUNDLE_DESCRIPTION + ": " + project.getDescription() + "\n");
-
-			// Write the APPLICATION-CONTENT
-			// TODO: check that the dependencies are bundles (currently, the converter will throw an exception)
-			Set<Artifact> artifacts = useTransitiveDependencies ? selectArtifacts(project.getArtifacts()) : selectArtifacts(project.getDependencyArtifacts());
-			Iterator<Artifact> iter = artifacts.iterator();
-
-			FileUtils.fileAppend(fileName, COMPOSITE_BUNDLE_CONTENT + ": ");
-			if (iter.hasNext()) {
-				Artifact artifact = iter.next();
-				FileUtils.fileAppend(fileName, maven2OsgiConverter.getBundleSymbolicName(artifact) + ";version=\"" + Analyzer.cleanupVersion(artifact.getVersion()) + "\"");
-			}
+    private BundleIndex createBundleIndex(Map<String, File> nestedJars, Collection<Artifact> artifacts)
+        throws MojoExecutionException {
+        BundleMetadataCache metadataCache = getBundleMetadataCache();
+        Map<String, Artifact> artifactsByEntry = new HashMap<String, Artifact>();
+        for (Artifact artifact : artifacts) {
+            artifactsByEntry.put( getArchiveEntryName(artifact), artifact );
+        }
+        BundleIndex index = new BundleIndex();
+        for (Map.Entry<String, File> nestedJar : nestedJars.entrySet()) {
+            File jar = nestedJar.getValue();
+            Artifact artifact = artifactsByEntry.get( nestedJar.getKey() );
+            try {
+                BundleMetadata metadata = artifact != null
+                    ? metadataCache.get( artifact, maven2OsgiConverter ) : BundleMetadata.read( jar );
+                // the project jar is the only nested jar without an artifact
+                String coordinates = artifact != null
+                    ? artifact.getGroupId() + ":" + artifact.getArtifactId() + ":" + artifact.getVersion()
+                    : project.getGroupId() + ":" + project.getArtifactId() + ":" + project.getVersion();
+                index.add( nestedJar.getKey(), coordinates, jar.length(),
+                           metadataCache.getContentHash( jar ), metadata );
+            } catch ( IOException e ) {
+                throw new MojoExecutionException( "Error indexing nested jar " + jar, e );
+            }
+        }
+        getLog().info( "Indexed " + index.size() + " nested jar(s) in " + BundleIndex.ENTRY_NAME + "." );
+        return index;
+    }
 
-			while (iter.hasNext()) {
-				Artifact artifact = iter.next();
-				FileUtils.fileAppend(fileName, ",\n " + maven2OsgiConverter.getBundleSymbolicName(artifact) + ";version=\"" + Analyzer.cleanupVersion(artifact.getVersion()) + "\"");
-			}
+    /**
+     * Replaces the nested jars by their stored forms and has the parallel archiver deflate those
+     * at storedJarLevel
+     * @param nestedJars the jars by entry name, updated in place
+     * @throws MojoExecutionException when a jar cannot be rewritten
+     */
+    private void storeNestedJars(Map<String, File> nestedJars, NestedJarNormalizer normalizer, Archiver cbaArchiver)
+        throws MojoExecutionException {
+        CompressionPolicy policy = cbaArchiver instanceof ParallelZipArchiver
+            ? ((ParallelZipArchiver) cbaArchiver).getCompressionPolicy() : null;
+        for (Map.Entry<String, File> nestedJar : nestedJars.entrySet()) {
+            File jar = nestedJar.getValue();
+            if (jar == null || !jar.isFile() || !nestedJar.getKey().endsWith( ".jar" )) {
+                continue;
+            }
+            File stored;
+            try {
+                stored = normalizer.normalize( jar, nestedJar.getKey() );
+            } catch ( IOException e ) {
+                throw new MojoExecutionException( "Error storing the entries of nested jar " + jar, e );
+            }
+            if (stored == jar) {
+                String failure = normalizer.getFailures().get( nestedJar.getKey() );
+                if (failure != null) {
+                    getLog().warn( "Unable to store the entries of nested jar " + nestedJar.getKey()
+                                   + ", leaving it compressed: " + failure );
+                } else {
+                    getLog().info( "Leaving signed jar " + nestedJar.getKey() + " compressed." );
+                }
+                continue;
+            }
+            nestedJar.setValue( stored );
+            if (policy != null) {
+                try {
+                    policy.setEntryRule( nestedJar.getKey(), ZipWriter.DEFLATED, storedJarLevel );
+                } catch ( IllegalArgumentException e ) {
+                    throw new MojoExecutionException( "Invalid storedJarLevel: " + e.getMessage(), e );
+                }
+            }
+        }
+        getLog().info( "Stored the entries of " + (normalizer.getStoredCount() + normalizer.getReusedCount())
+                       + " nested jar(s), " + normalizer.getReusedCount() + " unchanged, "
+                       + normalizer.getSignedCount() + " signed left as they are: " + normalizer.getOriginalSize()
+                       + " bytes compressed, " + normalizer.getStoredSize() + " bytes stored." );
+    }
+
+    /**
+     * Logs the metrics summary and writes the metrics report, a report that cannot be written only
+     * being warned about
+     * @param metrics
+     */
+    private void reportMetrics(BuildMetrics metrics) {
+        metrics.finish();
+        for (String line : metrics.getSummary()) {
+            getLog().info( line );
+        }
+        if (metricsFile == null)
+            return;
+        try {
+            metrics.write( metricsFile );
+        } catch ( IOException e ) {
+            getLog().warn( "Unable to write CBA metrics to " + metricsFile + ": " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Writes a checksum file next to the cba for every configured algorithm and attaches it to the project.
+     * Checksums not computed while writing the cba are computed from the file, unless its checksum
+     * files are newer than the cba already.
+     * @param cbaFile
+     * @param computed the checksums computed while writing the cba, by algorithm, or null
+     * @throws MojoExecutionException when a checksum file cannot be written
+     */
+    private void writeChecksums(File cbaFile, Map<String, String> computed) throws MojoExecutionException {
+        String[] algorithms = getChecksumAlgorithms();
+        Map<String, String> values = computed;
+        try {
+            for (int i = 0; i < algorithms.length; i++) {
+                File checksumFile = getChecksumFile( cbaFile, algorithms[i] );
+                String value = values == null ? null : values.get( algorithms[i] );
+                if (value != null || checksumFile.lastModified() <= cbaFile.lastModified()) {
+                    if (value == null) {
+                        getLog().debug( "Reading " + cbaFile.getName() + " to checksum it" );
+                        values = ChecksumOutputStream.checksum( cbaFile, algorithms );
+                        value = values.get( algorithms[i] );
+                    }
+                    FileUtils.fileWrite( checksumFile.getAbsolutePath(), "US-ASCII", value );
+                }
+                attach( "cba." + ChecksumOutputStream.getExtension( algorithms[i] ), checksumFile );
+            }
+        } catch ( IOException e ) {
+            throw new MojoExecutionException( "Error writing the checksums of " + cbaFile, e );
+        }
+    }
+
+    private File getChecksumFile(File cbaFile, String algorithm) {
+        return new File( cbaFile.getPath() + "." + ChecksumOutputStream.getExtension( algorithm ) );
+    }
+
+    /**
+     * Attaches a checksum file to the project, unless it is attached already, as it is when the cba
+     * is built again in the same session
+     */
+    private void attach(String type, File file) {
+        for (Iterator iter = project.getAttachedArtifacts().iterator(); iter.hasNext(); ) {
+            if (file.equals(((Artifact) iter.next()).getFile()))
+                return;
+        }
+        projectHelper.attachArtifact( project, type, CHECKSUM_CLASSIFIER, file );
+    }
+
+    /**
+     * Returns the checksum algorithms
+     * @return
+     * @throws MojoExecutionException for an algorithm the JVM does not provide
+     */
+    private String[] getChecksumAlgorithms() throws MojoExecutionException {
+        List<String> algorithms = new ArrayList<String>();
+        if (checksums != null) {
+            String[] names = checksums.split( "," );
+            for (int i = 0; i < names.length; i++) {
+                String name = names[i].trim().toUpperCase( Locale.ENGLISH );
+                if (name.length() == 0)
+                    continue;
+                try {
+                    MessageDigest.getInstance( name );
+                } catch ( NoSuchAlgorithmException e ) {
+                    throw new MojoExecutionException( "Unknown checksum algorithm '" + names[i].trim() + "', use for instance SHA-1, SHA-256 or SHA-512." );
+                }
+                algorithms.add( name );
+            }
+        }
+        return algorithms.toArray( new String[algorithms.size()] );
+    }
+
+    /**
+     * Logs what deduplication dropped and found in conflict, and writes the deduplication report
+     * @param result
+     */
+    private void reportDeduplication(ArtifactDeduplicator.Result result) {
+        List<String> report = result.getReport();
+        if (result.hasFindings()) {
+            for (String line : report) {
+                getLog().info( line );
+            }
+        }
+        if (deduplicationReport == null)
+            return;
+        StringBuffer text = new StringBuffer();
+        for (String line : report) {
+            text.append( line ).append( '\n' );
+        }
+        try {
+            deduplicationReport.getAbsoluteFile().getParentFile().mkdirs();
+            FileUtils.fileWrite( deduplicationReport.getAbsolutePath(), "UTF-8", text.toString() );
+        } catch ( IOException e ) {
+            getLog().warn( "Unable to write CBA deduplication report to " + deduplicationReport + ": " + e.getMessage() );
+        }
+    }
+
+    /**
+     * Returns the configured archiver
+     * @return
+     * @throws MojoExecutionException for an unknown archiver
+     */
+    private Archiver getArchiver(File cbaFile) throws MojoExecutionException {
+        getLog().debug( "archiver[" + archiver + "]" );
+        if (archiver == null || "zip".equals(archiver)) {
+            if (compressionRules != null && !compressionRules.isEmpty()) {
+                getLog().warn( "compressionRules are ignored by the zip archiver, every entry is deflated." );
+            }
+            if (isIncremental()) {
+                getLog().warn( "incremental is ignored by the zip archiver, every entry is compressed again." );
+            }
+            if (isReproducible()) {
+                getLog().warn( "reproducible is ignored by the zip archiver, entries keep their file times and order." );
+            }
+            if (storeNestedJars) {
+                getLog().warn( "storedJarLevel is ignored by the zip archiver, stored jars are deflated at its default level." );
+            }
+            zipArchiver.setCompress( true );
+            return zipArchiver;
+        }
+        if ("parallel".equals(archiver)) {
+            parallelZipArchiver.setThreads( compressionThreads );
+            parallelZipArchiver.setPrefetchThreads( prefetchThreads );
+            parallelZipArchiver.setMaxBufferedBytes( Math.max( maxBufferedMemory, 0 ) * 1024L * 1024L );
+            parallelZipArchiver.setCompressionPolicy( getCompressionPolicy() );
+            parallelZipArchiver.setPreviousArchive( isIncremental() && !forceCreation ? cbaFile : null );
+            parallelZipArchiver.setVerifyReusedEntries( fingerprintContents );
+            parallelZipArchiver.setEntryCache( getEntryCache() );
+            parallelZipArchiver.setEntryCacheDirectory( entryCacheDirectory );
+            parallelZipArchiver.setReproducible( isReproducible() );
+            parallelZipArchiver.setReproducibleTime( getReproducibleTime() );
+            parallelZipArchiver.setChecksumAlgorithms( getChecksumAlgorithms() );
+            return parallelZipArchiver;
+        }
+        if ("exploded".equals(archiver)) {
+            try {
+                explodedArchiver.setLinkMode( linkMode );
+            } catch ( IllegalArgumentException e ) {
+                throw new MojoExecutionException( "Unknown linkMode '" + linkMode + "', use 'hard', 'symbolic' or 'copy'." );
+            }
+            return explodedArchiver;
+        }
+        throw new MojoExecutionException( "Unknown archiver '" + archiver + "', use 'parallel', 'zip' or 'exploded'." );
+    }
+
+    /**
+     * Replaces the archivers by new instances, since an archiver keeps the files added to it
+     * @throws MojoExecutionException when an archiver cannot be looked up
+     */
+    protected void renewArchivers() throws MojoExecutionException {
+        try {
+            zipArchiver = (ZipArchiver) archiverManager.getArchiver( "zip" );
+            parallelZipArchiver = (ParallelZipArchiver) archiverManager.getArchiver( "cba-parallel" );
+            explodedArchiver = (ExplodedArchiver) archiverManager.getArchiver( "cba-exploded" );
+        } catch ( NoSuchArchiverException e ) {
+            throw new MojoExecutionException( "Error looking up archiver " + e.getArchiver(), e );
+        }
+    }
+
+    /**
+     * Builds the compression policy from compressionRules and the adaptive settings
+     * @return
+     * @throws MojoExecutionException for invalid rules
+     */
+    private CompressionPolicy getCompressionPolicy() throws MojoExecutionException {
+        try {
+            CompressionPolicy policy;
+            if (compressionRules == null || compressionRules.isEmpty()) {
+                policy = CompressionPolicy.createDefault( compressionLevel );
+            } else {
+                policy = new CompressionPolicy( compressionLevel );
+                for (Iterator iter = compressionRules.iterator(); iter.hasNext(); ) {
+                    CompressionRule rule = (CompressionRule) iter.next();
+                    if (rule.getPattern() == null) {
+                        throw new MojoExecutionException( "Compression rule without <pattern/>: " + rule );
+                    }
+                    int level = rule.getLevel() == null ? compressionLevel : rule.getLevel().intValue();
+                    if ("store".equalsIgnoreCase(rule.getMethod())) {
+                        policy.addRule( rule.getPattern(), ZipWriter.STORED, level );
+                    } else if ("deflate".equalsIgnoreCase(rule.getMethod())) {
+                        policy.addRule( rule.getPattern(), ZipWriter.DEFLATED, level );
+                    } else {
+                        throw new MojoExecutionException( "Unknown compression method in rule " + rule + ", use 'store' or 'deflate'." );
+                    }
+                }
+            }
+            policy.setAdaptive( adaptiveCompression );
+            policy.setSampleSize( adaptiveSampleSize );
+            policy.setMinSavingsPercent( adaptiveMinSavings );
+            getLog().debug( "compressionPolicy[" + policy + "]" );
+            return policy;
+        } catch ( IllegalArgumentException e ) {
+            throw new MojoExecutionException( "Invalid compression settings: " + e.getMessage(), e );
+        }
+    }
+
+    /**
+     * Returns the artifacts to be copied into the archive, according to archiveContent and useTransitiveDependencies.
+     * @return
+     * @throws MojoExecutionException when both settings contradict each other
+     */
+    private Set<Artifact> getIncludedArtifacts() throws MojoExecutionException {
+        return selectIncludedArtifacts().getSelected();
+    }
 
-			FileUtils.fileAppend(fileName, "\n");
+    /**
+     * Selects the artifacts to be copied into the archive, deduplicated, once per execution
+     * @return
+     * @throws MojoExecutionException when archiveContent and useTransitiveDependencies contradict each other
+     */
+    private ArtifactDeduplicator.Result selectIncludedArtifacts() throws MojoExecutionException {
+        if (includedArtifacts != null) {
+            return includedArtifacts;
+        }
+        Set<Artifact> artifacts = null;
+        if (useTransitiveDependencies) {
+
+            // if use transitive is set (i.e. true) then we need to make sure archiveContent does not contradict (i.e. is set to the same compatible value or is the default).
+            if ("none".equals(getArchiveContent())) {
+                throw new MojoExecutionException("<useTransitiveDependencies/> and <archiveContent/> incompatibly configured.  <useTransitiveDependencies/> is deprecated in favor of <archiveContent/>." );
+            }
+            else {
+                artifacts = project.getArtifacts();
+            }
+
+        } else {
+            // check that archiveContent is compatible
+            if ("applicationContent".equals(getArchiveContent())) {
+                artifacts = project.getDependencyArtifacts();
+            }
+            else {
+                // the only remaining options should be applicationContent="none"
+                getLog().info("archiveContent=none: application arvhive will not contain any bundles.");
+            }
+        }
+
+        Set<Artifact> included = new LinkedHashSet<Artifact>();
+        if (artifacts != null) {
+            ScopeArtifactFilter filter = new ScopeArtifactFilter(Artifact.SCOPE_RUNTIME);
+            for (Artifact artifact : artifacts) {
+                if (!artifact.isOptional() && filter.include(artifact)) {
+                    included.add(artifact);
+                }
+            }
+        }
+        includedArtifacts = deduplicate(included);
+        return includedArtifacts;
+    }
+
+    /**
+     * Drops duplicate artifacts and resolves version conflicts according to versionConflicts
+     * @param artifacts
+     * @return
+     * @throws MojoExecutionException when versionConflicts is fail and a symbolic name is included in several versions
+     */
+    private ArtifactDeduplicator.Result deduplicate(Set<Artifact> artifacts) throws MojoExecutionException {
+        if (!"highest".equals(versionConflicts) && !"fail".equals(versionConflicts) && !"keep-all".equals(versionConflicts))
+            throw new MojoExecutionException( "Unknown versionConflicts '" + versionConflicts + "', use 'highest', 'fail' or 'keep-all'." );
+
+        BundleMetadataCache metadataCache = getBundleMetadataCache();
+        ArtifactDeduplicator.Result result;
+        try {
+            result = new ArtifactDeduplicator( metadataCache, maven2OsgiConverter, deduplicateArtifacts,
+                                               !"keep-all".equals(versionConflicts),
+                                               "highest".equals(versionConflicts) ).deduplicate( artifacts );
+        } catch ( IOException e ) {
+            throw new MojoExecutionException( "Error reading artifacts to deduplicate", e );
+        }
+        if ("fail".equals(versionConflicts) && !result.getConflicts().isEmpty()) {
+            StringBuffer message = new StringBuffer( result.getConflicts().size() + " symbolic name(s) are included in several versions:" );
+            for (String conflict : result.getConflicts()) {
+                message.append( "\n  " ).append( conflict );
+            }
+            throw new MojoExecutionException( message.toString() );
+        }
+        return result;
+    }
 
-			if (instructions.containsKey(COMPOSITE_BUNDLE_EXPORT_SERVICE))
-				FileUtils.fileAppend(fileName, COMPOSITE_BUNDLE_EXPORT_SERVICE + ": " + instructions.get(COMPOSITE_BUNDLE_EXPORT_SERVICE) + "\n");
-			if (instructions.containsKey(COMPOSITE_BUNDLE_IMPORT_SERVICE))
-				FileUtils.fileAppend(fileName, COMPOSITE_BUNDLE_IMPORT_SERVICE + ": " + instructions.get(COMPOSITE_BUNDLE_IMPORT_SERVICE) + "\n");
+    /**
+     * Name of the archive entry an artifact is copied to
+     * @param artifact
+     * @return
+     */
+    private String getArchiveEntryName(Artifact artifact) {
+        return artifact.getArtifactId() + "-" + artifact.getVersion() + "." + (artifact.getType() == null ? "jar" : artifact.getType());
+    }
+
+    /**
+     * Scans cbaSourceDirectory for the extra files to include in the cba
+     * @return
+     */
+    private DirectoryScanner scanCbaSourceDirectory() {
+        DirectoryScanner scanner = new DirectoryScanner();
+        scanner.setBasedir( cbaSourceDirectory.getAbsolutePath() );
+        scanner.setIncludes( DEFAULT_INCLUDES );
+        scanner.addDefaultExcludes();
+        scanner.scan();
+        return scanner;
+    }
 
-            if (instructions.containsKey(COMPOSITE_BUNDLE_EXPORT_PACKAGE))
-                FileUtils.fileAppend(fileName, COMPOSITE_BUNDLE_EXPORT_PACKAGE + ": " + instructions.get(COMPOSITE_BUNDLE_EXPORT_PACKAGE) + "\n");
-            if (instructions.containsKey(COMPOSITE_BUNDLE_IMPORT_PACKAGE))
-                FileUtils.fileAppend(fileName, COMPOSITE_BUNDLE_IMPORT_PACKAGE + ": " + instructions.get(COMPOSITE_BUNDLE_IMPORT_PACKAGE) + "\n");
+    /**
+     * Collects everything the cba is built from: parameters, instructions, artifacts and source files
+     * @return
+     * @throws MojoExecutionException
+     */
+    private BuildFingerprint createFingerprint() throws MojoExecutionException {
+        BuildFingerprint fingerprint = new BuildFingerprint( fingerprintContents );
+        try {
+            fingerprint.add( "project", project.getGroupId() + ":" + project.getArtifactId() + ":" + project.getVersion() );
+            fingerprint.add( "project.name", project.getName() );
+            fingerprint.add( "project.description", project.getDescription() );
+            fingerprint.add( "finalName", finalName );
+            fingerprint.add( "includeJar", includeJar );
+            fingerprint.add( "generateManifest", Boolean.valueOf( generateManifest ) );
+            fingerprint.add( "mergeManifest", Boolean.valueOf( mergeManifest ) );
+            fingerprint.add( "computePackageHeaders", Boolean.valueOf( computePackageHeaders ) );
+            fingerprint.add( "addMavenDescriptor", Boolean.valueOf( addMavenDescriptor ) );
+            fingerprint.add( "includeEmptyDirs", Boolean.valueOf( includeEmptyDirs ) );
+            fingerprint.add( "useTransitiveDependencies", Boolean.valueOf( useTransitiveDependencies ) );
+            fingerprint.add( "archiveContent", getArchiveContent() );
+            fingerprint.add( "deduplication", deduplicateArtifacts + "," + versionConflicts );
+            // a stricter check must run even when the inputs are unchanged
+            fingerprint.add( "bundleValidation", bundleValidation );
+            fingerprint.add( "wiringCheck", wiringCheck );
+            fingerprint.add( "archiver", archiver );
+            fingerprint.add( "useWorkDirectory", Boolean.valueOf( useWorkDirectory ) );
+            fingerprint.add( "reproducible", isReproducible() ? String.valueOf( getReproducibleTime() ) : "false" );
+            fingerprint.add( "compression", compressionRules + "," + compressionLevel + "," + adaptiveCompression + ","
+                    + adaptiveSampleSize + "," + adaptiveMinSavings );
+            fingerprint.add( "storeNestedJars", storeNestedJars ? String.valueOf( storedJarLevel ) : "false" );
+            fingerprint.add( "bundleIndex", Boolean.valueOf( bundleIndex ) );
+            fingerprint.addAll( "instructions", instructions );
+
+            if (includeJar.booleanValue()) {
+                fingerprint.addFile( "jar", new File( outputDirectory, finalName + ".jar" ) );
+            }
+            for (Artifact artifact : getIncludedArtifacts()) {
+                fingerprint.addFile( "artifact." + getArchiveEntryName(artifact), artifact.getFile() );
+            }
+            if (generateManifest) {
+                for (Artifact artifact : getContentArtifacts()) {
+                    fingerprint.addFile( "content." + artifact.getId(), artifact.getFile() );
+                }
+            }
+            if (!generateManifest || mergeManifest) {
+                fingerprint.addFile( "compositeBundleManifestFile", compositeBundleManifestFile );
+            }
+            if (cbaSourceDirectory.exists()) {
+                DirectoryScanner scanner = scanCbaSourceDirectory();
+                fingerprint.addDirectory( "cbaSourceDirectory", cbaSourceDirectory, scanner.getIncludedFiles() );
+                if (includeEmptyDirs) {
+                    fingerprint.addDirectories( "cbaSourceDirectory", scanner.getIncludedDirectories() );
+                }
+            }
+            if (addMavenDescriptor) {
+                fingerprint.addFile( "pom", project.getFile() );
+            }
+        } catch ( IOException e ) {
+            throw new MojoExecutionException( "Error fingerprinting CBA inputs", e );
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Files and directories the cba is built from: cbaSourceDirectory, the manifest file, the project jar,
+     * the pom and the files of all resolved artifacts
+     * @return
+     */
+    protected List<File> getInputFiles() {
+        List<File> inputs = new ArrayList<File>();
+        inputs.add( cbaSourceDirectory );
+        if (compositeBundleManifestFile != null) {
+            inputs.add( compositeBundleManifestFile );
+        }
+        if (includeJar.booleanValue()) {
+            inputs.add( new File( outputDirectory, finalName + ".jar" ) );
+        }
+        if (addMavenDescriptor && project.getFile() != null) {
+            inputs.add( project.getFile() );
+        }
+        Set<Artifact> artifacts = new LinkedHashSet<Artifact>();
+        if (project.getArtifacts() != null) {
+            artifacts.addAll( project.getArtifacts() );
+        }
+        if (project.getDependencyArtifacts() != null) {
+            artifacts.addAll( project.getDependencyArtifacts() );
+        }
+        for (Artifact artifact : artifacts) {
+            if (artifact.getFile() != null) {
+                inputs.add( artifact.getFile() );
+            }
+        }
+        return inputs;
+    }
+
+    /**
+     * Location of the fingerprint of the last cba built
+     * @return
+     */
+    private File getFingerprintFile() {
+        return new File( outputDirectory, finalName + ".cba.fingerprint" );
+    }
+
+
+    /**
+     * Builds the CompositeBundle manifest in memory, merged into the custom manifest file when requested
+     * @return
+     * @throws MojoExecutionException
+     */
+	protected CompositeBundleManifest createCompositeBundleManifest() throws MojoExecutionException {
+		CompositeBundleManifest manifest = new CompositeBundleManifest();
+		Set<Artifact> contentArtifacts = getContentArtifacts();
+		try {
+
+			// TODO: add support for dependency version ranges. Need to pick them up from the pom and convert them to OSGi version ranges.
+			manifest.setHeader(MANIFEST_VERSION, "1");
+			manifest.setHeader(COMPOSITE_BUNDLE_MANIFEST_VERSION, "1");
+			manifest.setBundleSymbolicName(getApplicationSymbolicName(project.getArtifact()));
+			manifest.setBundleVersion(getBundleVersion());
+			manifest.setHeader(BUNDLE_NAME, project.getName());
+			manifest.setHeader(BUNDLE_DESCRIPTION, project.getDescription());
+
+			// Write the APPLICATION-CONTENT, plain jars and other files are named after their coordinates
+			BundleMetadataCache metadataCache = getBundleMetadataCache();
+			List<Clause> content = new ArrayList<Clause>();
+			for (Artifact artifact : contentArtifacts) {
+				content.add(new Clause(metadataCache.get(artifact, maven2OsgiConverter).getSymbolicName())
+						.setAttribute("version", Analyzer.cleanupVersion(artifact.getVersion())));
+			}
+			manifest.setContent(content);
+
+			String[] passedThrough = {COMPOSITE_BUNDLE_EXPORT_SERVICE, COMPOSITE_BUNDLE_IMPORT_SERVICE,
+					COMPOSITE_BUNDLE_EXPORT_PACKAGE, COMPOSITE_BUNDLE_IMPORT_PACKAGE};
+			for (int i = 0; i < passedThrough.length; i++) {
+				if (instructions.containsKey(passedThrough[i]))
+					manifest.setHeader(passedThrough[i], String.valueOf(instructions.get(passedThrough[i])));
+			}
+
+			if (computePackageHeaders) {
+				List<BundleMetadata> bundles = new BundleAnalyzer(metadataCache, maven2OsgiConverter, 0).analyze(contentArtifacts);
+				addClauses(manifest, COMPOSITE_BUNDLE_EXPORT_PACKAGE, BundleAnalyzer.getCompositeExports(bundles));
+				addClauses(manifest, COMPOSITE_BUNDLE_IMPORT_PACKAGE, BundleAnalyzer.getCompositeImports(bundles));
+			}
 
 		} catch (Exception e) {
 			throw new MojoExecutionException( "Error writing dependencies into COMPOSITEBUNDLE.MF", e);
 		}
 
+		if (mergeManifest && compositeBundleManifestFile != null && compositeBundleManifestFile.exists()) {
+			try {
+				getLog().info( "Merging generated values into COMPOSITEBUNDLE.MF " + compositeBundleManifestFile );
+				CompositeBundleManifest custom = CompositeBundleManifest.parse(compositeBundleManifestFile);
+				custom.merge(manifest);
+				manifest = custom;
+			} catch (IOException e) {
+				throw new MojoExecutionException( "Error reading COMPOSITEBUNDLE.MF file: " + compositeBundleManifestFile, e);
+			}
+		}
+		if (isReproducible())
+			manifest.normalize();
+		return manifest;
 	}
     
+    /**
+     * Adds clauses to a header, keeping the clauses it already has for the same names
+     */
+    private static void addClauses(CompositeBundleManifest manifest, String header, List<Clause> computed) {
+        List<Clause> clauses = manifest.getClauses(header);
+        Set<String> present = new LinkedHashSet<String>();
+        for (Clause clause : clauses) {
+            present.add(clause.getName());
+        }
+        for (Clause clause : computed) {
+            if (present.add(clause.getName()))
+                clauses.add(clause);
+        }
+        if (!clauses.isEmpty())
+            manifest.setClauses(header, clauses);
+    }
+
+    /**
+     * Checks that all content artifacts are OSGi bundles, reporting every offending artifact at once
+     * @throws MojoExecutionException when bundleValidation is fail and an artifact is not a bundle
+     */
+    private void validateContentBundles() throws MojoExecutionException {
+        if (bundleValidation == null || "skip".equals(bundleValidation))
+            return;
+        if (!"warn".equals(bundleValidation) && !"fail".equals(bundleValidation))
+            throw new MojoExecutionException( "Unknown bundleValidation '" + bundleValidation + "', use 'fail', 'warn' or 'skip'." );
+
+        BundleMetadataCache metadataCache = getBundleMetadataCache();
+        List<String> problems;
+        try {
+            problems = new BundleValidator( metadataCache, maven2OsgiConverter, 0 ).validate( getContentArtifacts() );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException( "Interrupted while validating content bundles", e );
+        }
+        if (problems.isEmpty())
+            return;
+
+        StringBuffer message = new StringBuffer( problems.size() + " content artifact(s) are not valid OSGi bundles:" );
+        for (String problem : problems) {
+            message.append( "\n  " ).append( problem );
+        }
+        if ("fail".equals(bundleValidation))
+            throw new MojoExecutionException( message.toString() );
+        getLog().warn( message.toString() );
+    }
+
+    /**
+     * Checks that every Import-Package of the content bundles is exported by a content bundle or
+     * imported by the composite
+     * @throws MojoExecutionException when wiringCheck is fail and an import is not satisfied
+     */
+    private void checkPackageWiring() throws MojoExecutionException {
+        if (wiringCheck == null || "skip".equals(wiringCheck))
+            return;
+        if (!"warn".equals(wiringCheck) && !"fail".equals(wiringCheck))
+            throw new MojoExecutionException( "Unknown wiringCheck '" + wiringCheck + "', use 'fail', 'warn' or 'skip'." );
+
+        List<String> problems;
+        try {
+            BundleMetadataCache metadataCache = getBundleMetadataCache();
+            PackageResolver resolver = new PackageResolver();
+            for (Artifact artifact : getContentArtifacts()) {
+                BundleMetadata metadata = metadataCache.get( artifact, maven2OsgiConverter );
+                if (metadata.isBundle())
+                    resolver.addBundle( metadata.getSymbolicName(), metadata.getExports(), metadata.getImports() );
+            }
+            if (instructions.containsKey(COMPOSITE_BUNDLE_IMPORT_PACKAGE)) {
+                for (Clause clause : Clause.parse( String.valueOf( instructions.get(COMPOSITE_BUNDLE_IMPORT_PACKAGE) ) )) {
+                    resolver.addCompositeImport( clause );
+                }
+            }
+            if (wiringIgnoredPackages != null) {
+                for (Iterator iter = wiringIgnoredPackages.iterator(); iter.hasNext(); ) {
+                    resolver.ignore( String.valueOf( iter.next() ) );
+                }
+            }
+            problems = resolver.resolve();
+        } catch ( IOException e ) {
+            throw new MojoExecutionException( "Error reading content bundles", e );
+        } catch ( IllegalArgumentException e ) {
+            throw new MojoExecutionException( "Error checking package wiring: " + e.getMessage(), e );
+        }
+        if (problems.isEmpty())
+            return;
+
+        StringBuffer message = new StringBuffer( problems.size() + " package import(s) cannot be resolved inside the composite:" );
+        for (String problem : problems) {
+            message.append( "\n  " ).append( problem );
+        }
+        if ("fail".equals(wiringCheck))
+            throw new MojoExecutionException( message.toString() );
+        getLog().warn( message.toString() );
+    }
+
+    /**
+     * This build's view of the session wide bundle metadata cache, completed with the entries
+     * stored in bundleMetadataCache when first used
+     * @return
+     */
+    private BundleMetadataCache getBundleMetadataCache() {
+        if (buildMetadataCache != null) {
+            return buildMetadataCache;
+        }
+        BundleMetadataCache cache = BundleMetadataCache.getSessionCache().forBuild();
+        if (bundleMetadataCache != null) {
+            try {
+                cache.load(bundleMetadataCache);
+            } catch (IOException e) {
+                getLog().warn( "Unable to read bundle metadata cache " + bundleMetadataCache + ": " + e.getMessage() );
+            }
+        }
+        buildMetadataCache = cache;
+        return cache;
+    }
+
+    /**
+     * Stores the entries this build used, once at its end
+     */
+    private void storeBundleMetadataCache() {
+        BundleMetadataCache cache = buildMetadataCache;
+        buildMetadataCache = null;
+        if (cache != null && bundleMetadataCache != null && cache.isModified()) {
+            try {
+                cache.store(bundleMetadataCache);
+            } catch (IOException e) {
+                getLog().warn( "Unable to write bundle metadata cache " + bundleMetadataCache + ": " + e.getMessage() );
+            }
+        }
+    }
+
     /**
      * Calculates bundle symbolic name
      * @param artifact
@@ -456,9 +1507,239 @@ public class CbaMojo  extends AbstractMojo  {
      * @return
      */
     protected File getBuildDir() {
-        if ( buildDir == null )
-            buildDir = new File( workDirectory );
-        return buildDir;
+        return new File( workDirectory );
+    }
+
+    protected File getCbaSourceDirectory() {
+        return cbaSourceDirectory;
+    }
+
+    protected File getCompositeBundleManifestFile() {
+        return compositeBundleManifestFile;
+    }
+
+    /**
+     * Whether entries are reused from the previous cba, see incremental
+     * @return
+     */
+    protected boolean isIncremental() {
+        return incremental;
+    }
+
+    /**
+     * Whether the cba is laid out in a directory rather than packed
+     * @return
+     */
+    private boolean isExploded() {
+        return "exploded".equals(archiver);
+    }
+
+    /**
+     * Returns explodedDirectory, defaulting to finalName-exploded in outputDirectory, apart from workDirectory
+     * @return
+     */
+    private File getExplodedDirectory() {
+        return explodedDirectory != null ? explodedDirectory : new File( outputDirectory, finalName + "-exploded" );
+    }
+
+    /**
+     * Returns storedJarDirectory, defaulting to cba-stored-jars in outputDirectory
+     * @return
+     */
+    private File getStoredJarDirectory() {
+        return storedJarDirectory != null ? storedJarDirectory : new File( outputDirectory, "cba-stored-jars" );
+    }
+
+    /**
+     * Returns archiveContent, defaulting to applicationContent
+     * @return
+     */
+    private String getArchiveContent() {
+        return archiveContent != null ? archiveContent : "applicationContent";
+    }
+
+    /**
+     * Returns the session cache of compressed entries sized to entryCacheSize, or null when neither memory nor a directory is used
+     * @return
+     */
+    private CompressedEntryCache getEntryCache() {
+        if (entryCacheSize <= 0 && entryCacheDirectory == null)
+            return null;
+        CompressedEntryCache cache = CompressedEntryCache.getSessionCache();
+        cache.setMaxBytes( Math.max( entryCacheSize, 0 ) * 1024L * 1024L );
+        return cache;
+    }
+
+    /**
+     * Copies the cba resources and the manifest into the work directory, which is then archived as a whole.
+     * @param manifest the generated manifest, or null when it is not generated
+     * @return the number of bytes copied
+     */
+    private long stageResources(CompositeBundleManifest manifest) throws MojoExecutionException {
+        long copied = 0;
+        // Copy source files
+        try
+        {
+            File cbaSourceDir =  cbaSourceDirectory;
+            if ( cbaSourceDir.exists() )
+            {
+                getLog().info( "Copy cba resources to " + getBuildDir().getAbsolutePath() );
+
+                DirectoryScanner scanner = scanCbaSourceDirectory();
+
+                String[] dirs = scanner.getIncludedDirectories();
+
+                for ( int j = 0; j < dirs.length; j++ ) {
+                    new File( getBuildDir(), dirs[j] ).mkdirs();
+                }
+
+                String[] files = scanner.getIncludedFiles();
+
+                for ( int j = 0; j < files.length; j++ )  {
+                    File targetFile = new File( getBuildDir(), files[j] );
+                    targetFile.getParentFile().mkdirs();
+                    File file = new File( cbaSourceDir, files[j] );
+                    FileUtils.copyFileToDirectory( file, targetFile.getParentFile() );
+                    copied += file.length();
+                }
+            }
+        }
+        catch ( Exception e )
+        {
+            throw new MojoExecutionException( "Error copying CBA resources", e );
+        }
+
+        // Include custom manifest if necessary
+        try
+        {
+            if (!generateManifest) {
+            	includeCustomApplicationManifestFile();
+            }
+        }
+        catch ( IOException e )
+        {
+            throw new MojoExecutionException( "Error copying COMPONENTBUNDLE.MF file", e );
+        }
+
+		// Generate application manifest if requested
+		if (generateManifest) {
+			File appMfFile = new File(getBuildDir(), COMPOSITE_BUNDLE_MF_URI);
+			try {
+				manifest.write(appMfFile);
+			} catch (IOException e) {
+				throw new MojoExecutionException("Error generating COMPOSITEBUNDLE.MF file: " + appMfFile, e);
+			}
+		}
+        
+        // Check if connector deployment descriptor is there
+        File ddFile = new File( getBuildDir(), COMPOSITE_BUNDLE_MF_URI);
+        if ( !ddFile.exists() ) {
+            getLog().warn("Application manifest: " + ddFile.getAbsolutePath() + " does not exist." );
+        }
+        return copied;
+    }
+
+    /**
+     * Adds the cba resources from cbaSourceDirectory and the manifest from memory, without staging them.
+     * @param manifest the generated manifest, or null when it is not generated
+     */
+    private void addResourcesDirectly(ContentArchiver archiver, CompositeBundleManifest manifest) throws MojoExecutionException {
+        byte[] generatedManifest = null;
+        File customManifest = null;
+        if (generateManifest) {
+            generatedManifest = manifest.toByteArray();
+        } else if (compositeBundleManifestFile == null) {
+            throw new MojoExecutionException("CompositeBundle manifest file location not set.  Use <generateManifest>true</generateManifest> if you want it to be generated.");
+        } else if (compositeBundleManifestFile.exists()) {
+            getLog().info( "Using COMPOSITEBUNDLE.MF "+ compositeBundleManifestFile);
+            customManifest = compositeBundleManifestFile;
+        }
+
+        try {
+            if (cbaSourceDirectory.exists()) {
+                getLog().info( "Adding cba resources from " + cbaSourceDirectory.getAbsolutePath() );
+                List<String> excludes = new ArrayList<String>(Arrays.asList(DirectoryScanner.DEFAULTEXCLUDES));
+                // replaced by the manifest added below; a custom manifest of another name is added next to it
+                if (generatedManifest != null
+                    || (customManifest != null && COMPOSITE_BUNDLE_MF_URI.equals("META-INF/" + customManifest.getName()))) {
+                    excludes.add(COMPOSITE_BUNDLE_MF_URI);
+                }
+                archiver.addDirectory(cbaSourceDirectory, DEFAULT_INCLUDES, excludes.toArray(new String[excludes.size()]));
+            }
+            if (generatedManifest != null) {
+                archiver.addContent(generatedManifest, COMPOSITE_BUNDLE_MF_URI);
+            } else if (customManifest != null) {
+                archiver.addFile(customManifest, "META-INF/" + customManifest.getName());
+            }
+        } catch ( ArchiverException e ) {
+            throw new MojoExecutionException( "Error adding CBA resources", e );
+        }
+
+        if (generatedManifest == null && customManifest == null && !new File(cbaSourceDirectory, COMPOSITE_BUNDLE_MF_URI).exists()) {
+            getLog().warn("Application manifest: " + COMPOSITE_BUNDLE_MF_URI + " does not exist." );
+        }
+    }
+
+    private String getMavenDescriptorDir() {
+        return "META-INF/maven/" + project.getGroupId() + "/" + project.getArtifactId() + "/";
+    }
+
+    /**
+     * The pom.properties PomPropertiesUtil would write, built in memory. Unlike PomPropertiesUtil
+     * this leaves the project version untouched for snapshots. A reproducible cba gets the
+     * properties sorted, with \n line ends and without the date comment Properties.store writes.
+     */
+    private byte[] createPomProperties() throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty("groupId", project.getGroupId());
+        properties.setProperty("artifactId", project.getArtifactId());
+        properties.setProperty("version", project.getArtifact().isSnapshot() ? project.getArtifact().getVersion() : project.getVersion());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        properties.store(out, "Generated by Maven");
+        if (!isReproducible())
+            return out.toByteArray();
+
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new StringReader(out.toString("ISO-8859-1")));
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            if (!line.startsWith("#"))
+                lines.add(line);
+        }
+        Collections.sort(lines);
+        StringBuffer text = new StringBuffer("#Generated by Maven\n");
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        return text.toString().getBytes("ISO-8859-1");
+    }
+
+    private boolean isReproducible() {
+        return reproducible;
+    }
+
+    /**
+     * Returns the entry time of a reproducible cba, parsed from outputTimestamp
+     * @return
+     * @throws MojoExecutionException for a malformed outputTimestamp
+     */
+    private long getReproducibleTime() throws MojoExecutionException {
+        if (outputTimestamp == null || outputTimestamp.trim().length() <= 1)
+            return ParallelZipArchiver.DEFAULT_REPRODUCIBLE_TIME;
+        String value = outputTimestamp.trim();
+        try {
+            if (value.matches("\\d+"))
+                return Long.parseLong(value) * 1000L;
+            // SimpleDateFormat only reads offsets without colon, and Z as a literal
+            String normalized = value.replaceFirst("Z$", "+0000").replaceFirst("([+-]\\d\\d):(\\d\\d)$", "$1$2");
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+            format.setLenient(false);
+            return format.parse(normalized).getTime();
+        } catch (ParseException e) {
+            throw new MojoExecutionException( "Invalid outputTimestamp '" + outputTimestamp
+                + "', use ISO-8601 such as 2020-01-01T00:00:00Z or seconds since the epoch.", e );
+        } catch (NumberFormatException e) {
+            throw new MojoExecutionException( "Invalid outputTimestamp '" + outputTimestamp + "'", e );
+        }
     }
 
     /**
@@ -478,6 +1759,20 @@ public class CbaMojo  extends AbstractMojo  {
         }
     }
     
+    /**
+     * Artifacts listed in the CompositeBundle-Content header, deduplicated like the included artifacts,
+     * once per execution
+     * @return
+     * @throws MojoExecutionException when versionConflicts is fail and a symbolic name is included in several versions
+     */
+    private Set<Artifact> getContentArtifacts() throws MojoExecutionException {
+        if (contentArtifacts == null) {
+            Set<Artifact> artifacts = useTransitiveDependencies ? project.getArtifacts() : project.getDependencyArtifacts();
+            contentArtifacts = deduplicate(selectArtifacts(artifacts));
+        }
+        return contentArtifacts.getSelected();
+    }
+
     /**
      * Only direct dependency artifacts are included ( 'compile' or 'runtime' ).
      */
@@ -0,0 +1,107 @@
+package uk.co.trenddevs.plugin.cba;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import uk.co.trenddevs.plugin.cba.verify.CbaVerifier;
+
+/**
+ * Verifies an existing cba: the CRC of every entry, and that the nested bundles are exactly
+ * those CompositeBundle-Content lists, in the versions it lists. Entries are read in parallel
+ * and nested jars are streamed, never extracted. Needs no project:
+ * <code>mvn cba:verify -Dcba.file=...</code>
+ *
+ * @version $Id: $
+ * @goal verify
+ * @phase verify
+ * @requiresProject false
+ */
+public class CbaVerifyMojo extends AbstractMojo {
+
+    /**
+     * The cba to verify.
+     *
+     * @parameter expression="${cba.file}" default-value="${project.build.directory}/${project.build.finalName}.cba"
+     * @required
+     */
+    private File cbaFile;
+
+    /**
+     * Number of entries verified at once; 0 uses one thread per available processor.
+     *
+     * @parameter expression="${cba.verifyThreads}" default-value="0"
+     */
+    private int verifyThreads;
+
+    /**
+     * Entry name of the project jar, which the cba goal includes when includeJar is set without
+     * listing it in CompositeBundle-Content, so that it is not reported as an extra jar.
+     *
+     * @parameter expression="${cba.projectJar}" default-value="${project.build.finalName}.jar"
+     */
+    private String projectJar;
+
+    /**
+     * Whether problems fail the build; otherwise they are logged as warnings.
+     *
+     * @parameter expression="${cba.failOnError}" default-value="true"
+     */
+    private boolean failOnError = true;
+
+    public void execute() throws MojoExecutionException {
+        if (cbaFile == null || !cbaFile.isFile()) {
+            throw new MojoExecutionException( "CBA " + cbaFile + " does not exist." );
+        }
+
+        long start = System.currentTimeMillis();
+        CbaVerifier verifier = new CbaVerifier( verifyThreads );
+        verifier.setProjectJar( projectJar );
+        CbaVerifier.Result result;
+        try {
+            result = verifier.verify( cbaFile );
+        } catch ( IOException e ) {
+            throw new MojoExecutionException( "Error reading " + cbaFile, e );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException( "Interrupted while verifying " + cbaFile, e );
+        }
+        getLog().info( "Verified CBA " + cbaFile.getName() + ": " + result.getEntries() + " entries, "
+                       + result.getNestedJars().size() + " nested jars, " + result.getBytes() + " bytes in "
+                       + ( System.currentTimeMillis() - start ) + " ms." );
+
+        List<String> problems = result.getProblems();
+        if (problems.isEmpty()) {
+            return;
+        }
+        StringBuffer message = new StringBuffer( problems.size() + " problem(s) in CBA " + cbaFile.getName() + ":" );
+        for (String problem : problems) {
+            message.append( "\n  " ).append( problem );
+        }
+        if (failOnError) {
+            throw new MojoExecutionException( message.toString() );
+        }
+        getLog().warn( message.toString() );
+    }
+}
@@ -0,0 +1,149 @@
+package uk.co.trenddevs.plugin.cba;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import uk.co.trenddevs.plugin.cba.incremental.InputWatcher;
+import uk.co.trenddevs.plugin.cba.manifest.CompositeBundleManifest;
+
+/**
+ * Builds the cba like the cba goal, then keeps it up to date while its inputs change, until
+ * the build is interrupted.
+ *
+ * The inputs are cbaSourceDirectory, the COMPOSITEBUNDLE.MF file, the project jar, the pom and
+ * the files of the resolved dependencies. Changes are coalesced until the inputs have been
+ * quiet for quietPeriod, then applied in one refresh: the exploded archiver only replaces the
+ * changed files, and a packed cba is updated incrementally, copying unchanged entries from the
+ * previous cba without compressing them again. A generated manifest is only regenerated when a
+ * dependency, the project jar or the manifest file changed. The dependencies themselves are
+ * resolved once; changing them in the pom needs a restart.
+ *
+ * @version $Id: $
+ * @goal watch
+ * @requiresDependencyResolution test
+ */
+public class CbaWatchMojo extends CbaMojo {
+
+    /**
+     * Milliseconds without further changes after which the changes are applied.
+     *
+     * @parameter expression="${quietPeriod}" default-value="500"
+     */
+    private long quietPeriod = 500;
+
+    private CompositeBundleManifest manifest;
+
+    private boolean manifestStale = true;
+
+    public void execute() throws MojoExecutionException {
+        InputWatcher watcher;
+        try {
+            watcher = new InputWatcher();
+        } catch ( IOException e ) {
+            throw new MojoExecutionException( "Unable to watch CBA inputs", e );
+        }
+        try {
+            // watched before the first build, so changes made during it are not missed
+            watch( watcher );
+            super.execute();
+            while (true) {
+                Set<File> changed = watcher.awaitChanges( quietPeriod );
+                getLog().info( changed.size() + " CBA input(s) changed, refreshing." );
+                getLog().debug( "Changed CBA inputs: " + changed );
+                if (affectsManifest( changed )) {
+                    manifestStale = true;
+                }
+                renewArchivers();
+                try {
+                    super.execute();
+                } catch ( MojoExecutionException e ) {
+                    getLog().error( "CBA refresh failed, waiting for the next change: " + e.getMessage(), e );
+                }
+                watch( watcher );
+            }
+        } catch ( InterruptedException e ) {
+            getLog().info( "Stopped watching CBA inputs." );
+        } catch ( IOException e ) {
+            throw new MojoExecutionException( "Error watching CBA inputs", e );
+        } finally {
+            try {
+                watcher.close();
+            } catch ( IOException e ) {
+                getLog().debug( "Unable to close the input watcher", e );
+            }
+        }
+    }
+
+    /**
+     * Watches the inputs again, picking up directories and files created since the last build
+     * @param watcher the watcher the inputs are registered with
+     * @throws IOException when an input cannot be watched
+     */
+    private void watch(InputWatcher watcher) throws IOException {
+        int count = watcher.watch( getInputFiles() );
+        getLog().info( "Watching " + count + " CBA input(s), press Ctrl-C to stop." );
+    }
+
+    /**
+     * Whether a change may alter the generated manifest: anything but resources in cbaSourceDirectory.
+     * The directory itself stands for lost events, which may include the manifest.
+     * @param changed the inputs that changed since the last build
+     * @return true when the manifest has to be generated again
+     */
+    private boolean affectsManifest(Set<File> changed) {
+        Path sourceDirectory = normalize( getCbaSourceDirectory() );
+        Path manifestFile = getCompositeBundleManifestFile() == null ? null : normalize( getCompositeBundleManifestFile() );
+        for (File file : changed) {
+            Path path = normalize( file );
+            if (path.equals(sourceDirectory) || !path.startsWith(sourceDirectory) || path.equals(manifestFile))
+                return true;
+        }
+        return false;
+    }
+
+    private static Path normalize(File file) {
+        return file.getAbsoluteFile().toPath().normalize();
+    }
+
+    /**
+     * The manifest of the previous refresh, unless a change may have altered it
+     */
+    protected CompositeBundleManifest createCompositeBundleManifest() throws MojoExecutionException {
+        if (manifest == null || manifestStale) {
+            manifest = super.createCompositeBundleManifest();
+            manifestStale = false;
+        } else {
+            getLog().debug( "Reusing the COMPOSITEBUNDLE.MF of the previous refresh" );
+        }
+        return manifest;
+    }
+
+    /**
+     * Unchanged entries are always copied from the previous cba.
+     */
+    protected boolean isIncremental() {
+        return true;
+    }
+}
@@ -0,0 +1,79 @@
+package uk.co.trenddevs.plugin.cba;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Compression setting for the cba entries matching a pattern, configured as
+ * <pre>
+ * &lt;compressionRules&gt;
+ *   &lt;compressionRule&gt;
+ *     &lt;pattern&gt;*.jar&lt;/pattern&gt;
+ *     &lt;method&gt;store&lt;/method&gt;
+ *   &lt;/compressionRule&gt;
+ * &lt;/compressionRules&gt;
+ * </pre>
+ *
+ * @version $Id: $
+ */
+public class CompressionRule {
+
+    /**
+     * Ant style pattern matched against the entry name; patterns without '/' match in any directory.
+     */
+    private String pattern;
+
+    /**
+     * store or deflate.
+     */
+    private String method = "deflate";
+
+    /**
+     * Deflate level from 0 to 9, defaults to the compressionLevel parameter.
+     */
+    private Integer level;
+
+    public String getPattern() {
+        return pattern;
+    }
+
+    public void setPattern(String pattern) {
+        this.pattern = pattern;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    public Integer getLevel() {
+        return level;
+    }
+
+    public void setLevel(Integer level) {
+        this.level = level;
+    }
+
+    public String toString() {
+        return pattern + ":" + method + (level == null ? "" : ":" + level);
+    }
+}
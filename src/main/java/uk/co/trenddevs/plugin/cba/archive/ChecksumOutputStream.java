@@ -0,0 +1,141 @@
+package uk.co.trenddevs.plugin.cba.archive;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Computes digests of the bytes written through it, so that the checksums of an archive are
+ * known once it is written without reading it again.
+ *
+ * @version $Id: $
+ */
+public class ChecksumOutputStream extends FilterOutputStream {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<String, MessageDigest>();
+
+    /**
+     * @param algorithms MessageDigest algorithm names, such as SHA-256
+     * @throws IllegalArgumentException for an algorithm the JVM does not provide
+     */
+    public ChecksumOutputStream(OutputStream out, String[] algorithms) {
+        super(out);
+        for (int i = 0; i < algorithms.length; i++) {
+            digests.put(algorithms[i], newDigest(algorithms[i]));
+        }
+    }
+
+    public void write(int b) throws IOException {
+        out.write(b);
+        for (MessageDigest digest : digests.values()) {
+            digest.update((byte) b);
+        }
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        for (MessageDigest digest : digests.values()) {
+            digest.update(b, off, len);
+        }
+    }
+
+    /**
+     * Hex digests of everything written so far, by algorithm in the order given.
+     */
+    public Map<String, String> getChecksums() {
+        Map<String, String> checksums = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, MessageDigest> entry : digests.entrySet()) {
+            try {
+                checksums.put(entry.getKey(), toHex(((MessageDigest) entry.getValue().clone()).digest()));
+            } catch (CloneNotSupportedException e) {
+                throw new IllegalStateException("Digest " + entry.getKey() + " cannot be cloned");
+            }
+        }
+        return checksums;
+    }
+
+    /**
+     * Digests of a file already written, for archives not written through this stream.
+     */
+    public static Map<String, String> checksum(File file, String[] algorithms) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return checksum(in, algorithms);
+        } finally {
+            IOUtil.close(in);
+        }
+    }
+
+    /**
+     * Digests of the rest of a stream, which is left open.
+     */
+    public static Map<String, String> checksum(InputStream in, String[] algorithms) throws IOException {
+        ChecksumOutputStream out = new ChecksumOutputStream(new NullOutputStream(), algorithms);
+        IOUtil.copy(in, out, 64 * 1024);
+        return out.getChecksums();
+    }
+
+    /**
+     * File extension of the checksum sidecar for an algorithm, such as sha256 for SHA-256.
+     */
+    public static String getExtension(String algorithm) {
+        return algorithm.toLowerCase(Locale.ENGLISH).replace("-", "");
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException("Unknown checksum algorithm " + algorithm);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    private static class NullOutputStream extends OutputStream {
+
+        public void write(int b) {
+        }
+
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package uk.co.trenddevs.plugin.cba.archive;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * A zip entry whose data has already been compressed (or stored) and is ready to be
+ * written verbatim by {@link ZipWriter}.
+ *
+ * @version $Id: $
+ */
+public class CompressedEntry {
+
+    private final String name;
+    private final int method;
+    private final long crc;
+    private final long size;
+    private final byte[] data;
+    private final int dataLength;
+    private final long time;
+    private final int unixMode;
+
+    /**
+     * @param name entry name, directories end with '/'
+     * @param method {@link ZipWriter#STORED} or {@link ZipWriter#DEFLATED}
+     * @param crc CRC-32 of the uncompressed data
+     * @param size uncompressed size
+     * @param data compressed data, only the first dataLength bytes are used
+     * @param dataLength compressed size
+     * @param time modification time in milliseconds
+     * @param unixMode unix file type and permission bits
+     */
+    public CompressedEntry(String name, int method, long crc, long size, byte[] data, int dataLength, long time, int unixMode) {
+        this.name = name;
+        this.method = method;
+        this.crc = crc;
+        this.size = size;
+        this.data = data;
+        this.dataLength = dataLength;
+        this.time = time;
+        this.unixMode = unixMode;
+    }
+
+    /**
+     * Creates a directory entry.
+     */
+    public static CompressedEntry directory(String name, long time, int unixMode) {
+        return new CompressedEntry(name, ZipWriter.STORED, 0, 0, new byte[0], 0, time, unixMode);
+    }
+
+    /**
+     * The same compressed data under another name, time and mode; the data is shared, not copied.
+     */
+    public CompressedEntry copy(String name, long time, int unixMode) {
+        return new CompressedEntry(name, method, crc, size, data, dataLength, time, unixMode);
+    }
+
+    /**
+     * The same entry with its data copied into an array of exactly its compressed size, or this
+     * entry when the array already has that size.
+     */
+    public CompressedEntry trimmed() {
+        if (data.length == dataLength)
+            return this;
+        byte[] trimmed = new byte[dataLength];
+        System.arraycopy(data, 0, trimmed, 0, dataLength);
+        return new CompressedEntry(name, method, crc, size, trimmed, dataLength, time, unixMode);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMethod() {
+        return method;
+    }
+
+    public long getCrc() {
+        return crc;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public long getCompressedSize() {
+        return dataLength;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public int getUnixMode() {
+        return unixMode;
+    }
+
+    public boolean isDirectory() {
+        return name.endsWith("/");
+    }
+}
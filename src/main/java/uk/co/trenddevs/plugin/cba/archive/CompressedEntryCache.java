@@ -0,0 +1,346 @@
+package uk.co.trenddevs.plugin.cba.archive;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Compressed entries shared by all archives built in a session, so that a bundle included
+ * by several cba files is compressed once.
+ *
+ * Entries are addressed by the SHA-1 of their content together with the compression
+ * settings, so the same bytes are found again whatever their path or name. The hash of a
+ * file is remembered for as long as its size and modification time do not change. When
+ * several threads ask for the same entry at once, one of them compresses and the others
+ * wait for its result.
+ *
+ * The cache holds at most a configured number of compressed bytes in memory and evicts the
+ * least recently used entries beyond that. Entries can also be kept in a directory, where
+ * they survive the session and are found by later builds.
+ *
+ * @version $Id: $
+ */
+public class CompressedEntryCache {
+
+    public static final long DEFAULT_MAX_BYTES = 128L * 1024 * 1024;
+
+    private static final int FORMAT = 0xCBAE0001;
+
+    private static final String[] SHA_1 = {"SHA-1"};
+
+    private static final CompressedEntryCache SESSION = new CompressedEntryCache(DEFAULT_MAX_BYTES);
+
+    // guarded by this, in access order
+    private final Map<String, CompressedEntry> entries = new LinkedHashMap<String, CompressedEntry>(64, 0.75f, true);
+
+    // guarded by this
+    private long size;
+
+    private final ConcurrentMap<String, FutureTask<CompressedEntry>> pending = new ConcurrentHashMap<String, FutureTask<CompressedEntry>>();
+
+    private final ConcurrentMap<String, String> hashes = new ConcurrentHashMap<String, String>();
+
+    private final AtomicInteger hits = new AtomicInteger();
+
+    private final AtomicInteger diskHits = new AtomicInteger();
+
+    private final AtomicInteger misses = new AtomicInteger();
+
+    private volatile long maxBytes;
+
+    public CompressedEntryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * The cache shared by all cba builds in this JVM.
+     */
+    public static CompressedEntryCache getSessionCache() {
+        return SESSION;
+    }
+
+    /**
+     * Compressed bytes kept in memory; lowering it evicts entries on the next addition.
+     */
+    public void setMaxBytes(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Returns the entry for the content of a file compressed with the given settings,
+     * compressing it first if neither memory nor the directory holds it.
+     *
+     * @param settingsKey describes the compression applied, see {@link EntryCompressor#getSettingsKey(String)}
+     * @param directory where entries are also kept between builds, or null
+     */
+    public CompressedEntry get(File file, String settingsKey, File directory, Callable<CompressedEntry> compressor)
+        throws IOException {
+        return get(getContentHash(file) + "-" + settingsKey, directory, compressor);
+    }
+
+    /**
+     * Like {@link #get(File, String, File, Callable)}, for a file whose content was already read:
+     * the content is hashed rather than the file read again.
+     *
+     * @param content the content of the file, read through when its hash is not remembered
+     */
+    public CompressedEntry get(File file, InputStream content, String settingsKey, File directory,
+                               Callable<CompressedEntry> compressor) throws IOException {
+        String stamp = getStamp(file);
+        String hash = hashes.get(stamp);
+        if (hash == null) {
+            hash = ChecksumOutputStream.checksum(content, SHA_1).get("SHA-1");
+            hashes.put(stamp, hash);
+        }
+        return get(hash + "-" + settingsKey, directory, compressor);
+    }
+
+    private CompressedEntry get(String key, File directory, Callable<CompressedEntry> compressor) throws IOException {
+        CompressedEntry entry = lookup(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry;
+        }
+
+        FutureTask<CompressedEntry> task = new FutureTask<CompressedEntry>(new Load(key, directory, compressor));
+        FutureTask<CompressedEntry> running = pending.putIfAbsent(key, task);
+        if (running != null) {
+            hits.incrementAndGet();
+            return await(running);
+        }
+        try {
+            // another thread may have finished loading between the lookup and putIfAbsent
+            entry = lookup(key);
+            if (entry != null) {
+                hits.incrementAndGet();
+                return entry;
+            }
+            task.run();
+            entry = await(task);
+            if (entry.getCompressedSize() <= maxBytes) {
+                // the compressor's buffer is larger than the data it holds, and is not kept
+                entry = entry.trimmed();
+                put(key, entry);
+            }
+            return entry;
+        } finally {
+            pending.remove(key, task);
+        }
+    }
+
+    private synchronized CompressedEntry lookup(String key) {
+        return entries.get(key);
+    }
+
+    private synchronized void put(String key, CompressedEntry entry) {
+        long length = entry.getCompressedSize();
+        if (length > maxBytes || entries.containsKey(key))
+            return;
+        entries.put(key, entry);
+        size += length;
+        for (Iterator<CompressedEntry> iter = entries.values().iterator(); size > maxBytes && iter.hasNext(); ) {
+            size -= iter.next().getCompressedSize();
+            iter.remove();
+        }
+    }
+
+    /**
+     * SHA-1 of a file's content, remembered while its size and modification time stay the same.
+     */
+    String getContentHash(File file) throws IOException {
+        String stamp = getStamp(file);
+        String hash = hashes.get(stamp);
+        if (hash == null) {
+            hash = ChecksumOutputStream.checksum(file, SHA_1).get("SHA-1");
+            hashes.put(stamp, hash);
+        }
+        return hash;
+    }
+
+    private static String getStamp(File file) {
+        return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+    }
+
+    private static CompressedEntry await(Future<CompressedEntry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a compressed entry");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException("Error compressing entry: " + e.getCause());
+        }
+    }
+
+    private static File getEntryFile(File directory, String key) {
+        return new File(directory, key.replaceAll("[^A-Za-z0-9.-]", "_") + ".entry");
+    }
+
+    /**
+     * Reads an entry kept in the directory, or returns null when it is missing or unreadable.
+     */
+    private static CompressedEntry read(File file) {
+        if (!file.isFile())
+            return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT)
+                return null;
+            int method = in.readInt();
+            long crc = in.readLong();
+            long size = in.readLong();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return new CompressedEntry(file.getName(), method, crc, size, data, data.length, file.lastModified(), 0);
+        } catch (IOException e) {
+            return null;
+        } finally {
+            IOUtil.close(in);
+        }
+    }
+
+    /**
+     * Keeps an entry in the directory, written aside and renamed so that readers never see part of it.
+     * The directory is only a cache, so failures leave it without the entry.
+     */
+    private static void write(File file, CompressedEntry entry) {
+        File tmp = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            file.getParentFile().mkdirs();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FORMAT);
+            out.writeInt(entry.getMethod());
+            out.writeLong(entry.getCrc());
+            out.writeLong(entry.getSize());
+            out.writeInt((int) entry.getCompressedSize());
+            out.write(entry.getData(), 0, (int) entry.getCompressedSize());
+            out.close();
+            out = null;
+            tmp.renameTo(file);
+        } catch (IOException e) {
+            IOUtil.close(out);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Entries held in memory.
+     */
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * Compressed bytes held in memory.
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Requests answered from memory or by waiting on another thread's compression.
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Requests answered from the directory.
+     */
+    public int getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * Requests that had to compress.
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+        hashes.clear();
+    }
+
+    /**
+     * Loads an entry from the directory or compresses it, keeping it in the directory.
+     */
+    private class Load implements Callable<CompressedEntry> {
+
+        private final String key;
+        private final File directory;
+        private final Callable<CompressedEntry> compressor;
+
+        Load(String key, File directory, Callable<CompressedEntry> compressor) {
+            this.key = key;
+            this.directory = directory;
+            this.compressor = compressor;
+        }
+
+        public CompressedEntry call() throws Exception {
+            File file = directory == null ? null : getEntryFile(directory, key);
+            if (file != null) {
+                CompressedEntry entry = read(file);
+                if (entry != null) {
+                    diskHits.incrementAndGet();
+                    return entry;
+                }
+            }
+            misses.incrementAndGet();
+            CompressedEntry entry = compressor.call();
+            if (file != null)
+                write(file, entry);
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package uk.co.trenddevs.plugin.cba.archive;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import org.codehaus.plexus.util.SelectorUtils;
+
+/**
+ * Decides per entry whether it is stored or deflated, and at which level.
+ *
+ * Rules set for a single entry name come first. Pattern rules are matched in the order they
+ * were added, the first match wins; entries matching no rule are deflated at the default level. With adaptive compression enabled, a deflated
+ * entry is still stored when deflating a sample of its content saves less than the
+ * configured percentage.
+ *
+ * @version $Id: $
+ */
+public class CompressionPolicy {
+
+    /**
+     * Patterns of entries that are already compressed and stored by default.
+     */
+    public static final String[] DEFAULT_STORED_PATTERNS = {"*.jar", "*.war", "*.zip"};
+
+    public static final int DEFAULT_SAMPLE_SIZE = 64 * 1024;
+
+    public static final int DEFAULT_MIN_SAVINGS_PERCENT = 10;
+
+    private final List<Rule> rules = new ArrayList<Rule>();
+
+    private final Map<String, Rule> entryRules = new LinkedHashMap<String, Rule>();
+
+    private final Rule defaultRule;
+
+    private boolean adaptive;
+
+    private int sampleSize = DEFAULT_SAMPLE_SIZE;
+
+    private int minSavingsPercent = DEFAULT_MIN_SAVINGS_PERCENT;
+
+    /**
+     * @param defaultLevel deflate level of entries matching no rule
+     */
+    public CompressionPolicy(int defaultLevel) {
+        defaultRule = new Rule("**", ZipWriter.DEFLATED, defaultLevel);
+    }
+
+    /**
+     * The policy used when nothing is configured: jars and other archives are stored, everything else is deflated.
+     */
+    public static CompressionPolicy createDefault(int defaultLevel) {
+        CompressionPolicy policy = new CompressionPolicy(defaultLevel);
+        for (int i = 0; i < DEFAULT_STORED_PATTERNS.length; i++) {
+            policy.addRule(DEFAULT_STORED_PATTERNS[i], ZipWriter.STORED, defaultLevel);
+        }
+        return policy;
+    }
+
+    /**
+     * Adds a rule; patterns without '/' match the file name in any directory.
+     */
+    public void addRule(String pattern, int method, int level) {
+        checkRule(method, level);
+        rules.add(new Rule(pattern.indexOf('/') < 0 ? "**/" + pattern : pattern, method, level));
+    }
+
+    /**
+     * Sets the rule of the entry of exactly this name, ahead of all pattern rules.
+     */
+    public void setEntryRule(String entryName, int method, int level) {
+        checkRule(method, level);
+        entryRules.put(entryName, new Rule(entryName, method, level));
+    }
+
+    private static void checkRule(int method, int level) {
+        if (method != ZipWriter.STORED && method != ZipWriter.DEFLATED)
+            throw new IllegalArgumentException("Unsupported compression method " + method);
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION)
+            throw new IllegalArgumentException("Deflate level must be between 0 and 9: " + level);
+    }
+
+    /**
+     * Returns the rule for an entry.
+     */
+    public Rule select(String entryName) {
+        Rule entryRule = entryRules.get(entryName);
+        if (entryRule != null)
+            return entryRule;
+        String path = entryName.replace('/', File.separatorChar);
+        for (Rule rule : rules) {
+            if (SelectorUtils.matchPath(rule.pattern, path))
+                return rule;
+        }
+        return defaultRule;
+    }
+
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Number of leading bytes deflated to estimate the compression ratio of an entry.
+     */
+    public void setSampleSize(int sampleSize) {
+        this.sampleSize = sampleSize > 0 ? sampleSize : DEFAULT_SAMPLE_SIZE;
+    }
+
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Minimum saving, in percent of the sample size, for an entry to be deflated in adaptive mode.
+     */
+    public void setMinSavingsPercent(int minSavingsPercent) {
+        this.minSavingsPercent = minSavingsPercent;
+    }
+
+    public int getMinSavingsPercent() {
+        return minSavingsPercent;
+    }
+
+    /**
+     * Whether deflating a sample to the given size saves enough to be worth it.
+     */
+    boolean isWorthDeflating(int sampleLength, int deflatedLength) {
+        return sampleLength == 0 || (long) (sampleLength - deflatedLength) * 100 >= (long) minSavingsPercent * sampleLength;
+    }
+
+    public String toString() {
+        return (entryRules.isEmpty() ? "" : entryRules.values() + ",") + rules + ",default=" + defaultRule.level + ",adaptive=" + adaptive + "/" + sampleSize + "/" + minSavingsPercent;
+    }
+
+    /**
+     * Compression method and level selected for matching entries.
+     */
+    public static class Rule {
+
+        private final String pattern;
+        private final int method;
+        private final int level;
+
+        Rule(String pattern, int method, int level) {
+            this.pattern = pattern.replace('/', File.separatorChar);
+            this.method = method;
+            this.level = level;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public String toString() {
+            return pattern + ":" + (method == ZipWriter.STORED ? "store" : "deflate/" + level);
+        }
+    }
+}
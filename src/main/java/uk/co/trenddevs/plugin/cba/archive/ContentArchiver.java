@@ -0,0 +1,37 @@
+package uk.co.trenddevs.plugin.cba.archive;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import org.codehaus.plexus.archiver.Archiver;
+
+/**
+ * Archiver that also takes entries generated in memory, so that callers need not write them
+ * to a temporary file first.
+ *
+ * @version $Id: $
+ */
+public interface ContentArchiver extends Archiver {
+
+    /**
+     * Adds an entry whose content is held in memory, replacing any earlier content of the same name.
+     */
+    void addContent(byte[] content, String name);
+}
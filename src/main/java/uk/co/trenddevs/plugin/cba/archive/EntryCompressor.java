@@ -0,0 +1,268 @@
+package uk.co.trenddevs.plugin.cba.archive;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Compresses a single file or in-memory content into a {@link CompressedEntry} following a {@link CompressionPolicy}.
+ * Each call uses its own {@link Deflater}, so one instance can be shared by all compression threads.
+ *
+ * @version $Id: $
+ */
+public class EntryCompressor {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final CompressionPolicy policy;
+
+    public EntryCompressor(CompressionPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Stores or deflates a file into memory, in a single pass over its content.
+     */
+    public CompressedEntry compress(String name, File file, long time, int unixMode) throws IOException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return compress(name, in, file.length(), time, unixMode);
+        } finally {
+            IOUtil.close(in);
+        }
+    }
+
+    /**
+     * Stores or deflates content held in memory.
+     */
+    public CompressedEntry compress(String name, byte[] content, long time, int unixMode) throws IOException {
+        return compress(name, new ByteArrayInputStream(content), content.length, time, unixMode);
+    }
+
+    /**
+     * Stores or deflates a stream of about expectedSize bytes; the stream is not closed.
+     */
+    public CompressedEntry compress(String name, InputStream in, long expectedSize, long time, int unixMode) throws IOException {
+        CompressionPolicy.Rule rule = policy.select(name);
+
+        // in adaptive mode the leading sample decides, it is then fed through like any other input
+        byte[] sample = null;
+        int sampleLength = 0;
+        int method = rule.getMethod();
+        if (method == ZipWriter.DEFLATED && policy.isAdaptive()) {
+            sample = new byte[(int) Math.min(policy.getSampleSize(), expectedSize)];
+            sampleLength = readFully(in, sample);
+            if (!policy.isWorthDeflating(sampleLength, deflatedLength(sample, sampleLength, rule.getLevel())))
+                method = ZipWriter.STORED;
+        }
+
+        if (method == ZipWriter.STORED)
+            return store(name, in, sample, sampleLength, expectedSize, time, unixMode);
+        return deflate(name, in, sample, sampleLength, expectedSize, rule.getLevel(), time, unixMode);
+    }
+
+    /**
+     * Whether an entry already compressed with the given method could have been produced by the policy.
+     * Deflate levels are not recorded in zip files and cannot be checked.
+     */
+    public boolean isCompatible(String name, int method) {
+        int selected = policy.select(name).getMethod();
+        return method == selected || (selected == ZipWriter.DEFLATED && policy.isAdaptive() && method == ZipWriter.STORED);
+    }
+
+    /**
+     * Whether the policy stores an entry as it is.
+     */
+    public boolean isStored(String name) {
+        return policy.select(name).getMethod() == ZipWriter.STORED;
+    }
+
+    /**
+     * Describes how the policy compresses an entry, so that entries compressed under
+     * different settings are never mistaken for one another.
+     */
+    public String getSettingsKey(String name) {
+        CompressionPolicy.Rule rule = policy.select(name);
+        if (rule.getMethod() == ZipWriter.STORED)
+            return "stored";
+        if (!policy.isAdaptive())
+            return "deflated/" + rule.getLevel();
+        return "deflated/" + rule.getLevel() + "/" + policy.getSampleSize() + "/" + policy.getMinSavingsPercent();
+    }
+
+    /**
+     * CRC-32 of a file's content.
+     */
+    public static long crc(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            IOUtil.close(in);
+        }
+        return crc.getValue();
+    }
+
+    public static long crc(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    private CompressedEntry store(String name, InputStream in, byte[] sample, int sampleLength, long expectedSize,
+                                  long time, int unixMode) throws IOException {
+        CRC32 crc = new CRC32();
+        GrowableBuffer out = new GrowableBuffer(initialCapacity(expectedSize));
+        if (sampleLength > 0) {
+            crc.update(sample, 0, sampleLength);
+            out.write(sample, 0, sampleLength);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            crc.update(buffer, 0, read);
+            out.write(buffer, 0, read);
+        }
+        return new CompressedEntry(name, ZipWriter.STORED, crc.getValue(), out.size(), out.getBuffer(), out.size(), time, unixMode);
+    }
+
+    private CompressedEntry deflate(String name, InputStream in, byte[] sample, int sampleLength, long expectedSize,
+                                    int level, long time, int unixMode) throws IOException {
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(level, true);
+        GrowableBuffer out = new GrowableBuffer(initialCapacity(expectedSize / 2));
+        long size = 0;
+        try {
+            if (sampleLength > 0) {
+                crc.update(sample, 0, sampleLength);
+                size += sampleLength;
+                deflater.setInput(sample, 0, sampleLength);
+                while (!deflater.needsInput()) {
+                    out.deflateFrom(deflater);
+                }
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                size += read;
+                deflater.setInput(buffer, 0, read);
+                while (!deflater.needsInput()) {
+                    out.deflateFrom(deflater);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.deflateFrom(deflater);
+            }
+        } finally {
+            deflater.end();
+        }
+        return new CompressedEntry(name, ZipWriter.DEFLATED, crc.getValue(), size, out.getBuffer(), out.size(), time, unixMode);
+    }
+
+    /**
+     * Size of a deflated sample, used to estimate how well an entry compresses.
+     */
+    private static int deflatedLength(byte[] sample, int length, int level) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int total = 0;
+            while (!deflater.finished()) {
+                total += deflater.deflate(buffer);
+            }
+            return total;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int total = 0;
+        int read;
+        while (total < buffer.length && (read = in.read(buffer, total, buffer.length - total)) != -1) {
+            total += read;
+        }
+        return total;
+    }
+
+    private static int initialCapacity(long expectedSize) {
+        return (int) Math.min(Math.max(expectedSize, 1024), Integer.MAX_VALUE - 8);
+    }
+
+    /**
+     * Byte buffer that deflaters write into directly, avoiding the copy a
+     * {@link java.io.ByteArrayOutputStream} would need.
+     */
+    static class GrowableBuffer {
+
+        private byte[] buffer;
+        private int count;
+
+        GrowableBuffer(int initialCapacity) {
+            buffer = new byte[initialCapacity];
+        }
+
+        void deflateFrom(Deflater deflater) {
+            ensureCapacity(1);
+            count += deflater.deflate(buffer, count, buffer.length - count);
+        }
+
+        void write(byte[] bytes, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, buffer, count, length);
+            count += length;
+        }
+
+        private void ensureCapacity(int needed) {
+            if (buffer.length - count < needed) {
+                byte[] grown = new byte[Math.max(count + needed, buffer.length + Math.max(buffer.length >> 1, 1024))];
+                System.arraycopy(buffer, 0, grown, 0, count);
+                buffer = grown;
+            }
+        }
+
+        byte[] getBuffer() {
+            return buffer;
+        }
+
+        int size() {
+            return count;
+        }
+    }
+}
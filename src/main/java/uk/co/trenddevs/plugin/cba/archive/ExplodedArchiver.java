@@ -0,0 +1,312 @@
+package uk.co.trenddevs.plugin.cba.archive;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.codehaus.plexus.archiver.AbstractArchiver;
+import org.codehaus.plexus.archiver.ArchiveEntry;
+import org.codehaus.plexus.archiver.ArchiverException;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Archiver that lays the entries out in a directory instead of packing them, for runtimes
+ * that deploy the unpacked archive.
+ *
+ * Files are hard linked or symbolically linked to their source, or copied, and generated
+ * entries are written. The directory is brought up to date rather than rebuilt: files that
+ * already link to or match their source are left alone, and files placed by an earlier run
+ * that are no longer wanted are removed. Those files are recorded in an index next to the
+ * directory, so nothing the archiver did not place is ever deleted. Existing files are
+ * replaced, never written to, so that a linked source is not modified.
+ *
+ * Hard links that the file system refuses, for instance across file systems, fall back to
+ * copies, as do symbolic links.
+ *
+ * @version $Id: $
+ */
+public class ExplodedArchiver extends AbstractArchiver implements ContentArchiver {
+
+    public static final String HARD_LINK = "hard";
+    public static final String SYMBOLIC_LINK = "symbolic";
+    public static final String COPY = "copy";
+
+    private static final String INDEX_SUFFIX = ".index";
+
+    private String linkMode = HARD_LINK;
+
+    private final Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+
+    private int linked;
+    private int copied;
+    private int unchanged;
+    private int removed;
+    private long bytesWritten;
+    private boolean warnedFallback;
+
+    /**
+     * How files are placed: {@link #HARD_LINK}, {@link #SYMBOLIC_LINK} or {@link #COPY}.
+     */
+    public void setLinkMode(String linkMode) {
+        if (!HARD_LINK.equals(linkMode) && !SYMBOLIC_LINK.equals(linkMode) && !COPY.equals(linkMode))
+            throw new IllegalArgumentException("Unknown link mode '" + linkMode + "'");
+        this.linkMode = linkMode;
+    }
+
+    public String getLinkMode() {
+        return linkMode;
+    }
+
+    public void addContent(byte[] content, String name) {
+        contents.put(name, content);
+    }
+
+    /**
+     * Files and generated entries linked or written by the last run.
+     */
+    public int getLinkedCount() {
+        return linked;
+    }
+
+    public int getCopiedCount() {
+        return copied;
+    }
+
+    /**
+     * Files and generated entries found already in place by the last run.
+     */
+    public int getUnchangedCount() {
+        return unchanged;
+    }
+
+    /**
+     * Files of an earlier run removed by the last run.
+     */
+    public int getRemovedCount() {
+        return removed;
+    }
+
+    /**
+     * Bytes copied and written by the last run; links count for nothing.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Every run compares the directory with the entries, which costs no more than checking it is up to date.
+     */
+    protected boolean isUptodate() {
+        return false;
+    }
+
+    public void createArchive() throws ArchiverException, IOException {
+        File directory = getDestFile();
+        if (directory == null)
+            throw new ArchiverException("You must set the destination directory.");
+        if (directory.isFile())
+            throw new ArchiverException(directory.getAbsolutePath() + " is a file, not a directory.");
+        directory.mkdirs();
+
+        linked = 0;
+        copied = 0;
+        unchanged = 0;
+        removed = 0;
+        bytesWritten = 0;
+        File index = getIndexFile(directory);
+        Set<String> previous = readIndex(index);
+        Set<String> placed = new TreeSet<String>();
+
+        for (Iterator iter = getFiles().values().iterator(); iter.hasNext(); ) {
+            ArchiveEntry entry = (ArchiveEntry) iter.next();
+            File target = new File(directory, entry.getName());
+            if (entry.getType() == ArchiveEntry.DIRECTORY) {
+                target.mkdirs();
+            } else if (!contents.containsKey(entry.getName())) {
+                place(entry.getFile(), target);
+                placed.add(entry.getName());
+            }
+        }
+        for (Map.Entry<String, byte[]> content : contents.entrySet()) {
+            write(content.getValue(), new File(directory, content.getKey()));
+            placed.add(content.getKey());
+        }
+
+        previous.removeAll(placed);
+        for (String name : previous) {
+            File stale = new File(directory, name);
+            if (Files.deleteIfExists(stale.toPath())) {
+                removed++;
+                deleteEmptyParents(stale.getParentFile(), directory);
+            }
+        }
+        writeIndex(index, placed);
+        getLogger().info("Exploded into " + directory.getAbsolutePath() + ": " + linked + " linked, " + copied
+                         + " copied or written, " + unchanged + " unchanged, " + removed + " removed");
+    }
+
+    /**
+     * The index of the files placed in a directory.
+     */
+    static File getIndexFile(File directory) {
+        return new File(directory.getAbsoluteFile().getParentFile(), directory.getName() + INDEX_SUFFIX);
+    }
+
+    private void place(File source, File target) throws IOException {
+        Path from = source.getAbsoluteFile().toPath();
+        Path to = target.toPath();
+        if (SYMBOLIC_LINK.equals(linkMode)) {
+            if (Files.isSymbolicLink(to) && Files.readSymbolicLink(to).equals(from)) {
+                unchanged++;
+                return;
+            }
+            if (link(from, to, true))
+                return;
+        } else if (HARD_LINK.equals(linkMode)) {
+            if (isRegularFile(to) && Files.isSameFile(to, from)) {
+                unchanged++;
+                return;
+            }
+            if (link(from, to, false))
+                return;
+        }
+
+        if (isRegularFile(to) && Files.size(to) == Files.size(from)
+            && Files.getLastModifiedTime(to).equals(Files.getLastModifiedTime(from))) {
+            unchanged++;
+            return;
+        }
+        replace(to);
+        Files.copy(from, to, StandardCopyOption.COPY_ATTRIBUTES);
+        copied++;
+        bytesWritten += Files.size(to);
+    }
+
+    /**
+     * Links a file, returning false when links are not possible there and the file should be copied.
+     * The link is made aside and moved in place, so a failed link leaves the file as it was.
+     */
+    private boolean link(Path from, Path to, boolean symbolic) throws IOException {
+        Files.createDirectories(to.getParent());
+        Path created = to.resolveSibling(to.getFileName() + ".link");
+        Files.deleteIfExists(created);
+        try {
+            if (symbolic)
+                Files.createSymbolicLink(created, from);
+            else
+                Files.createLink(created, from);
+        } catch (IOException e) {
+            fallBack(from, e);
+            return false;
+        } catch (UnsupportedOperationException e) {
+            fallBack(from, e);
+            return false;
+        }
+        Files.move(created, to, StandardCopyOption.REPLACE_EXISTING);
+        linked++;
+        return true;
+    }
+
+    private void fallBack(Path from, Exception e) {
+        String message = "Unable to " + linkMode + " link " + from + ", copying instead: " + e;
+        if (warnedFallback) {
+            getLogger().debug(message);
+        } else {
+            getLogger().warn(message);
+            warnedFallback = true;
+        }
+    }
+
+    private void write(byte[] content, File target) throws IOException {
+        Path to = target.toPath();
+        if (isRegularFile(to) && Files.size(to) == content.length && Arrays.equals(Files.readAllBytes(to), content)) {
+            unchanged++;
+            return;
+        }
+        replace(to);
+        Files.write(to, content);
+        copied++;
+        bytesWritten += content.length;
+    }
+
+    /**
+     * Removes whatever is at a path, so that new content never goes through an existing link.
+     */
+    private static void replace(Path path) throws IOException {
+        Files.createDirectories(path.getParent());
+        Files.deleteIfExists(path);
+    }
+
+    private static boolean isRegularFile(Path path) {
+        return Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    private static void deleteEmptyParents(File directory, File root) {
+        File top = root.getAbsoluteFile();
+        for (File dir = directory.getAbsoluteFile(); dir != null && !dir.equals(top); dir = dir.getParentFile()) {
+            String[] children = dir.list();
+            if (children == null || children.length > 0 || !dir.delete())
+                return;
+        }
+    }
+
+    private static Set<String> readIndex(File index) throws IOException {
+        Set<String> names = new TreeSet<String>();
+        if (!index.isFile())
+            return names;
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(index), "UTF-8"));
+            String line;
+            while ((line = in.readLine()) != null) {
+                // names never lead out of the directory, even from a tampered index
+                if (line.length() > 0 && !line.startsWith("/") && !Arrays.asList(line.split("/")).contains(".."))
+                    names.add(line);
+            }
+        } finally {
+            IOUtil.close(in);
+        }
+        return names;
+    }
+
+    private static void writeIndex(File index, Set<String> names) throws IOException {
+        StringBuffer text = new StringBuffer();
+        for (String name : names) {
+            text.append(name).append('\n');
+        }
+        FileUtils.fileWrite(index.getAbsolutePath(), "UTF-8", text.toString());
+    }
+}
@@ -0,0 +1,240 @@
+package uk.co.trenddevs.plugin.cba.archive;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Rewrites nested jars with every entry stored, so that the cba deflates the classes and
+ * resources of a bundle as one stream instead of storing entries each deflated on its own.
+ *
+ * Entries keep their order, names, content, CRCs and times; only the compression method
+ * changes, so the manifest is still the first entry and the digests of a manifest still
+ * match. Signed jars are nevertheless left as they are, since some verifiers also check
+ * how the signed jar was laid out. A stored jar is written once and reused as long as it
+ * carries the modification time of its source jar and lists the same entries, with the same
+ * sizes and CRCs. A jar that cannot be rewritten is left as it is.
+ *
+ * @version $Id: $
+ */
+public class NestedJarNormalizer {
+
+    private static final int FILE_MODE = 0100644;
+    private static final int DIRECTORY_MODE = 040755;
+
+    private final File directory;
+    private int storedCount;
+    private int reusedCount;
+    private int signedCount;
+    private long bytesRead;
+    private long bytesWritten;
+    private long originalSize;
+    private long storedSize;
+    private final Map<String, String> failures = new LinkedHashMap<String, String>();
+
+    /**
+     * @param directory where the stored jars are written
+     */
+    public NestedJarNormalizer(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the stored form of a jar, written under the given entry name, or the jar itself when it is
+     * signed or cannot be rewritten; see {@link #getFailures()}.
+     * @throws java.util.zip.ZipException when the file is not a readable jar
+     */
+    public File normalize(File jar, String entryName) throws IOException {
+        File stored = new File(directory, entryName);
+        ZipReader reader = new ZipReader(jar);
+        try {
+            if (stored.isFile() && stored.lastModified() == jar.lastModified() && isStoredForm(reader, stored)) {
+                reusedCount++;
+                count(jar, stored);
+                return stored;
+            }
+            if (isSigned(reader)) {
+                signedCount++;
+                return jar;
+            }
+            try {
+                write(reader, stored);
+            } catch (IOException e) {
+                failures.put(entryName, e.getMessage());
+                return jar;
+            }
+            // the cba entry keeps the time of the original jar
+            stored.setLastModified(jar.lastModified());
+        } finally {
+            reader.close();
+        }
+        storedCount++;
+        bytesRead += jar.length();
+        bytesWritten += stored.length();
+        count(jar, stored);
+        return stored;
+    }
+
+    /**
+     * Writes the entries of a jar stored, aside and then renamed to the stored jar; nothing is left
+     * aside when this fails.
+     */
+    private static void write(ZipReader reader, File stored) throws IOException {
+        stored.getAbsoluteFile().getParentFile().mkdirs();
+        File temp = new File(stored.getPath() + ".tmp");
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024);
+            try {
+                ZipWriter writer = new ZipWriter(out);
+                for (ZipReader.Entry entry : reader.getEntries()) {
+                    if (entry.isDirectory()) {
+                        writer.write(CompressedEntry.directory(entry.getName(), entry.getTime(), DIRECTORY_MODE));
+                    } else {
+                        byte[] content = reader.readContent(entry);
+                        writer.write(new CompressedEntry(entry.getName(), ZipWriter.STORED, entry.getCrc(), content.length,
+                                                         content, content.length, entry.getTime(), FILE_MODE));
+                    }
+                }
+                writer.finish();
+                out.close();
+                out = null;
+            } finally {
+                IOUtil.close(out);
+            }
+            if ((stored.exists() && !stored.delete()) || !temp.renameTo(stored))
+                throw new IOException("Unable to replace " + stored);
+        } finally {
+            temp.delete();
+        }
+    }
+
+    /**
+     * Whether a stored jar lists the entries of its source, in order and with the same sizes and CRCs.
+     */
+    private static boolean isStoredForm(ZipReader source, File stored) {
+        ZipReader reader;
+        try {
+            reader = new ZipReader(stored);
+        } catch (IOException e) {
+            return false;
+        } catch (RuntimeException e) {
+            return false;
+        }
+        try {
+            if (reader.getEntries().size() != source.getEntries().size())
+                return false;
+            Iterator<ZipReader.Entry> storedEntries = reader.getEntries().iterator();
+            for (ZipReader.Entry entry : source.getEntries()) {
+                ZipReader.Entry storedEntry = storedEntries.next();
+                if (!entry.getName().equals(storedEntry.getName()) || entry.getSize() != storedEntry.getSize()
+                    || entry.getCrc() != storedEntry.getCrc())
+                    return false;
+            }
+            return true;
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // only read
+            }
+        }
+    }
+
+    private void count(File jar, File stored) {
+        originalSize += jar.length();
+        storedSize += stored.length();
+    }
+
+    /**
+     * Whether a jar holds signature files.
+     */
+    public static boolean isSigned(ZipReader jar) {
+        for (ZipReader.Entry entry : jar.getEntries()) {
+            String name = entry.getName().toUpperCase(Locale.ENGLISH);
+            if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0)
+                continue;
+            if (name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC")
+                || name.startsWith("META-INF/SIG-"))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Jars that could not be rewritten and were left as they are, by entry name, with the reason.
+     */
+    public Map<String, String> getFailures() {
+        return Collections.unmodifiableMap(failures);
+    }
+
+    /**
+     * Jars rewritten by the last calls.
+     */
+    public int getStoredCount() {
+        return storedCount;
+    }
+
+    /**
+     * Jars whose stored form was already up to date.
+     */
+    public int getReusedCount() {
+        return reusedCount;
+    }
+
+    /**
+     * Signed jars left as they are.
+     */
+    public int getSignedCount() {
+        return signedCount;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Size of the original jars that were, or had already been, stored.
+     */
+    public long getOriginalSize() {
+        return originalSize;
+    }
+
+    /**
+     * Size of their stored forms.
+     */
+    public long getStoredSize() {
+        return storedSize;
+    }
+}
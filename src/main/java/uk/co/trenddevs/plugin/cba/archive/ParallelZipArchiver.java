@@ -0,0 +1,762 @@
+package uk.co.trenddevs.plugin.cba.archive;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+import org.codehaus.plexus.archiver.AbstractArchiver;
+import org.codehaus.plexus.archiver.ArchiveEntry;
+import org.codehaus.plexus.archiver.ArchiverException;
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Zip archiver that compresses entries on several threads.
+ *
+ * Files are registered through the usual {@link org.codehaus.plexus.archiver.Archiver} methods.
+ * When the archive is created every file is compressed into its own in-memory buffer by a
+ * fixed pool of threads, and the buffers are written to the destination in registration order
+ * by a single {@link ZipWriter}. A {@link CompressionPolicy} decides per entry whether it is
+ * stored or deflated. Only a bounded window of compressed entries is held in memory
+ * at any time. Parent directory entries are added for every file, as the plexus zip archiver does.
+ *
+ * Generated entries can be added from memory with {@link #addContent(byte[], String)}, so
+ * callers need not write them to a temporary file first; they follow the files in the archive.
+ *
+ * When a previous version of the archive is set, entries whose size and modification time
+ * (optionally also CRC) still match their input have their compressed bytes copied from it
+ * as they are; only new and changed entries are compressed again.
+ *
+ * Files can also be looked up in a {@link CompressedEntryCache}, typically the one shared by
+ * all archives of a session, so that content packed into several archives is compressed once
+ * and its compressed bytes are spliced into each of them. Files are hashed from the bytes read
+ * for their compression, and entries the policy stores are never looked up.
+ *
+ * In reproducible mode entries are written in name order with one fixed modification time and
+ * normalised permissions, so that the same inputs always give a byte-identical archive.
+ *
+ * Files are read ahead on prefetch threads, so that a compression thread rarely waits for a
+ * slow disk or network file system, and the archive is written out sequentially while later
+ * entries are still being read and compressed. The bytes of the entries between reading and
+ * writing are capped by {@link #setMaxBufferedBytes(long)}.
+ *
+ * Checksums of the archive are computed from the bytes as they are written, so nothing needs to
+ * read the archive again to checksum it.
+ *
+ * @version $Id: $
+ */
+public class ParallelZipArchiver extends AbstractArchiver implements ContentArchiver {
+
+    private static final int TYPE_MASK = 0170000;
+    private static final int FILE_TYPE = 0100000;
+    private static final int DIRECTORY_TYPE = 040000;
+
+    private static final int REPRODUCIBLE_FILE_MODE = FILE_TYPE | 0644;
+    private static final int REPRODUCIBLE_DIRECTORY_MODE = DIRECTORY_TYPE | 0755;
+
+    /**
+     * 1980-01-01T00:00:02Z, the first time zip headers can hold exactly.
+     */
+    public static final long DEFAULT_REPRODUCIBLE_TIME = 315532802000L;
+
+    /**
+     * Compressed entries kept in flight per compression thread.
+     */
+    private static final int ENTRIES_PER_THREAD = 2;
+
+    public static final int DEFAULT_PREFETCH_THREADS = 2;
+
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 64L * 1024 * 1024;
+
+    private int threads = Runtime.getRuntime().availableProcessors();
+
+    private int prefetchThreads = DEFAULT_PREFETCH_THREADS;
+
+    private long maxBufferedBytes = DEFAULT_MAX_BUFFERED_BYTES;
+
+    private CompressionPolicy compressionPolicy = CompressionPolicy.createDefault(Deflater.DEFAULT_COMPRESSION);
+
+    private final Map<String, ContentEntry> contents = new LinkedHashMap<String, ContentEntry>();
+
+    private File previousArchive;
+
+    private boolean verifyReusedEntries;
+
+    private final AtomicInteger reusedEntries = new AtomicInteger();
+
+    private final AtomicLong bytesRead = new AtomicLong();
+
+    private final AtomicLong compressionCpuTime = new AtomicLong();
+
+    private int entryCount;
+
+    private long uncompressedSize;
+
+    private long compressedSize;
+
+    private long bytesWritten;
+
+    private CompressedEntryCache entryCache;
+
+    private File entryCacheDirectory;
+
+    private boolean reproducible;
+
+    private long reproducibleTime = DEFAULT_REPRODUCIBLE_TIME;
+
+    private String[] checksumAlgorithms = new String[0];
+
+    private Map<String, String> checksums = Collections.emptyMap();
+
+    /**
+     * Number of compression threads; values below one select one thread per available processor.
+     */
+    public void setThreads(int threads) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Number of threads reading files ahead of their compression; 0 lets the compression threads read them.
+     */
+    public void setPrefetchThreads(int prefetchThreads) {
+        this.prefetchThreads = Math.max(prefetchThreads, 0);
+    }
+
+    public int getPrefetchThreads() {
+        return prefetchThreads;
+    }
+
+    /**
+     * Cap on the bytes of the entries read, compressed or waiting to be written at any time. An entry
+     * larger than the cap is still processed, on its own.
+     */
+    public void setMaxBufferedBytes(long maxBufferedBytes) {
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    public long getMaxBufferedBytes() {
+        return maxBufferedBytes;
+    }
+
+    /**
+     * Decides which entries are stored and which are deflated; by default archives are stored.
+     */
+    public void setCompressionPolicy(CompressionPolicy compressionPolicy) {
+        this.compressionPolicy = compressionPolicy;
+    }
+
+    public CompressionPolicy getCompressionPolicy() {
+        return compressionPolicy;
+    }
+
+    /**
+     * Archive whose unchanged entries are copied instead of compressed again; it may be the destination file itself.
+     * Ignored when it does not exist or cannot be read.
+     */
+    public void setPreviousArchive(File previousArchive) {
+        this.previousArchive = previousArchive;
+    }
+
+    public File getPreviousArchive() {
+        return previousArchive;
+    }
+
+    /**
+     * Whether a file must also match the CRC of the previous entry to be reused, rather than only its size and modification time.
+     */
+    public void setVerifyReusedEntries(boolean verifyReusedEntries) {
+        this.verifyReusedEntries = verifyReusedEntries;
+    }
+
+    /**
+     * Number of entries copied from the previous archive by the last {@link #createArchive()}.
+     */
+    public int getReusedEntries() {
+        return reusedEntries.get();
+    }
+
+    /**
+     * Cache files are compressed through, or null to compress every file afresh.
+     */
+    public void setEntryCache(CompressedEntryCache entryCache) {
+        this.entryCache = entryCache;
+    }
+
+    public CompressedEntryCache getEntryCache() {
+        return entryCache;
+    }
+
+    /**
+     * Directory where the entry cache also keeps entries between builds, or null to keep them in memory only.
+     */
+    public void setEntryCacheDirectory(File entryCacheDirectory) {
+        this.entryCacheDirectory = entryCacheDirectory;
+    }
+
+    public File getEntryCacheDirectory() {
+        return entryCacheDirectory;
+    }
+
+    /**
+     * Whether entries are written in name order with the reproducible time and normalised permissions.
+     */
+    public void setReproducible(boolean reproducible) {
+        this.reproducible = reproducible;
+    }
+
+    public boolean isReproducible() {
+        return reproducible;
+    }
+
+    /**
+     * Modification time of every entry in reproducible mode. Zip headers hold local time, so it is
+     * written as the same date and time in UTC on any machine.
+     */
+    public void setReproducibleTime(long reproducibleTime) {
+        this.reproducibleTime = reproducibleTime;
+    }
+
+    public long getReproducibleTime() {
+        return reproducibleTime;
+    }
+
+    /**
+     * MessageDigest algorithms the archive is checksummed with while it is written; none by default.
+     */
+    public void setChecksumAlgorithms(String[] checksumAlgorithms) {
+        this.checksumAlgorithms = checksumAlgorithms == null ? new String[0] : checksumAlgorithms;
+    }
+
+    public String[] getChecksumAlgorithms() {
+        return checksumAlgorithms;
+    }
+
+    /**
+     * Hex checksums of the last archive, by algorithm.
+     */
+    public Map<String, String> getChecksums() {
+        return checksums;
+    }
+
+    /**
+     * Number of entries, directories included, written by the last {@link #createArchive()}.
+     */
+    public int getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * Bytes of input files and of the previous archive read to compress or copy entries by the last {@link #createArchive()}.
+     */
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    /**
+     * Size of the archive written by the last {@link #createArchive()}.
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * Total size of the file entries of the last archive before compression.
+     */
+    public long getUncompressedSize() {
+        return uncompressedSize;
+    }
+
+    /**
+     * Total size of the file entries of the last archive after compression.
+     */
+    public long getCompressedSize() {
+        return compressedSize;
+    }
+
+    /**
+     * Nanoseconds of CPU time the compression threads spent on the last archive, or 0 when the JVM does not measure it.
+     */
+    public long getCompressionCpuTime() {
+        return compressionCpuTime.get();
+    }
+
+    /**
+     * Adds an entry whose content is held in memory, replacing any earlier content of the same name.
+     */
+    public void addContent(byte[] content, String name) {
+        addContent(content, name, System.currentTimeMillis());
+    }
+
+    public void addContent(byte[] content, String name, long time) {
+        contents.put(name, new ContentEntry(name, content, time, unixMode(getDefaultFileMode(), FILE_TYPE)));
+    }
+
+    /**
+     * In-memory entries carry no timestamp to compare, so an archive holding any is always rebuilt.
+     */
+    protected boolean isUptodate() {
+        return contents.isEmpty() && super.isUptodate();
+    }
+
+    public void createArchive() throws ArchiverException, IOException {
+        File destFile = getDestFile();
+        if (destFile == null)
+            throw new ArchiverException("You must set the destination zip file.");
+        if (!checkForced())
+            return;
+
+        // getFiles() includes the directories when empty directories are kept
+        List<CompressTask> files = new ArrayList<CompressTask>();
+        List<ArchiveEntry> dirs = new ArrayList<ArchiveEntry>();
+        for (Iterator iter = getFiles().values().iterator(); iter.hasNext(); ) {
+            ArchiveEntry entry = (ArchiveEntry) iter.next();
+            if (entry.getType() == ArchiveEntry.DIRECTORY)
+                dirs.add(entry);
+            else if (!contents.containsKey(entry.getName()))
+                files.add(new CompressTask(entry.getName(), entry.getFile(), reproducible ? REPRODUCIBLE_FILE_MODE : entry.getMode()));
+        }
+        for (ContentEntry content : contents.values()) {
+            files.add(new CompressTask(content));
+        }
+        if (reproducible) {
+            Collections.sort(files, new Comparator<CompressTask>() {
+                public int compare(CompressTask left, CompressTask right) {
+                    return left.name.compareTo(right.name);
+                }
+            });
+        }
+        Map<String, CompressedEntry> directories = collectDirectories(dirs, files);
+
+        getLogger().info("Building zip: " + destFile.getAbsolutePath());
+        destFile.getAbsoluteFile().getParentFile().mkdirs();
+
+        // the previous archive may be the destination, so it is then written next to it and moved in place
+        reusedEntries.set(0);
+        bytesRead.set(0);
+        compressionCpuTime.set(0);
+        entryCount = 0;
+        uncompressedSize = 0;
+        compressedSize = 0;
+        bytesWritten = 0;
+        checksums = Collections.emptyMap();
+        ZipReader previous = openPreviousArchive();
+        File outFile = previous == null ? destFile : new File(destFile.getAbsoluteFile().getParentFile(), destFile.getName() + ".tmp");
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("cba-compressor-"));
+        ExecutorService prefetcher = prefetchThreads == 0 ? null
+            : Executors.newFixedThreadPool(prefetchThreads, new DaemonThreadFactory("cba-prefetch-"));
+        OutputStream out = null;
+        boolean created = false;
+        try {
+            ChecksumOutputStream checksummed = new ChecksumOutputStream(new FileOutputStream(outFile), checksumAlgorithms);
+            out = new BufferedOutputStream(checksummed, 64 * 1024);
+            ZipWriter zip = new ZipWriter(out);
+            for (CompressedEntry directory : directories.values()) {
+                zip.write(directory);
+            }
+            writeFiles(zip, files, executor, prefetcher, previous);
+            zip.finish();
+            entryCount = directories.size() + files.size();
+            bytesWritten = zip.getBytesWritten();
+            out.flush();
+            checksums = checksummed.getChecksums();
+            created = true;
+        } finally {
+            executor.shutdownNow();
+            if (prefetcher != null)
+                prefetcher.shutdownNow();
+            IOUtil.close(out);
+            if (previous != null)
+                previous.close();
+            if (!created)
+                outFile.delete();
+        }
+
+        if (previous != null) {
+            getLogger().info("Reused " + reusedEntries.get() + " of " + files.size() + " entries from " + previous.getFile().getName());
+            if ((destFile.exists() && !destFile.delete()) || !outFile.renameTo(destFile)) {
+                outFile.delete();
+                throw new ArchiverException("Unable to replace " + destFile.getAbsolutePath());
+            }
+        }
+    }
+
+    private ZipReader openPreviousArchive() {
+        if (previousArchive == null || !previousArchive.isFile())
+            return null;
+        try {
+            return new ZipReader(previousArchive);
+        } catch (IOException e) {
+            getLogger().warn("Not reusing entries of " + previousArchive + ": " + e.getMessage());
+            return null;
+        } catch (RuntimeException e) {
+            // a truncated or corrupt archive may hold offsets and counts beyond its end
+            getLogger().warn("Not reusing entries of " + previousArchive + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Reads files ahead, compresses them concurrently and writes them out in order. Entries are
+     * dispatched in order as long as the bytes in flight stay below maxBufferedBytes, and the next
+     * one is always dispatched when nothing is in flight, so the entry to write next is never
+     * starved of memory by later ones.
+     */
+    private void writeFiles(ZipWriter zip, List<CompressTask> files, ExecutorService executor, ExecutorService prefetcher,
+                            ZipReader previous) throws ArchiverException, IOException {
+        EntryCompressor compressor = new EntryCompressor(compressionPolicy);
+        LinkedList<CompressTask> pending = new LinkedList<CompressTask>();
+        int window = (threads + prefetchThreads) * ENTRIES_PER_THREAD;
+        long buffered = 0;
+        int next = 0;
+
+        while (next < files.size() || !pending.isEmpty()) {
+            while (next < files.size() && pending.size() < window
+                   && (pending.isEmpty() || buffered + files.get(next).getSize() <= maxBufferedBytes)) {
+                CompressTask task = files.get(next++).using(compressor, previous);
+                buffered += task.getSize();
+                task.dispatch(executor, prefetcher);
+                pending.add(task);
+            }
+            CompressTask task = pending.removeFirst();
+            CompressedEntry entry = task.await();
+            uncompressedSize += entry.getSize();
+            compressedSize += entry.getCompressedSize();
+            zip.write(entry);
+            buffered -= task.getSize();
+        }
+    }
+
+    private <T> T await(Future<T> future) throws ArchiverException, IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ArchiverException("Interrupted while compressing entries", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new ArchiverException("Problem compressing entry: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Explicitly added directories followed by the parent directories of every file.
+     */
+    private Map<String, CompressedEntry> collectDirectories(List<ArchiveEntry> dirs, List<CompressTask> files) {
+        Map<String, CompressedEntry> directories = new LinkedHashMap<String, CompressedEntry>();
+        for (ArchiveEntry dir : dirs) {
+            String name = dir.getName().endsWith("/") ? dir.getName() : dir.getName() + "/";
+            int mode = reproducible ? REPRODUCIBLE_DIRECTORY_MODE : unixMode(dir.getMode(), DIRECTORY_TYPE);
+            addDirectory(directories, name, getEntryTime(dir.getFile().lastModified()), mode);
+        }
+        long now = getEntryTime(System.currentTimeMillis());
+        int mode = reproducible ? REPRODUCIBLE_DIRECTORY_MODE : unixMode(getDefaultDirectoryMode(), DIRECTORY_TYPE);
+        for (CompressTask file : files) {
+            String name = file.name;
+            for (int slash = name.indexOf('/'); slash > 0; slash = name.indexOf('/', slash + 1)) {
+                addDirectory(directories, name.substring(0, slash + 1), now, mode);
+            }
+        }
+        if (reproducible)
+            directories = sortByName(directories);
+        return directories;
+    }
+
+    private static Map<String, CompressedEntry> sortByName(Map<String, CompressedEntry> directories) {
+        List<String> names = new ArrayList<String>(directories.keySet());
+        Collections.sort(names);
+        Map<String, CompressedEntry> sorted = new LinkedHashMap<String, CompressedEntry>();
+        for (String name : names) {
+            sorted.put(name, directories.get(name));
+        }
+        return sorted;
+    }
+
+    /**
+     * The time written for an entry last modified at the given time.
+     */
+    private long getEntryTime(long time) {
+        if (!reproducible)
+            return time;
+        // shifted so that the local date and time in the header read as the UTC ones
+        return reproducibleTime - TimeZone.getDefault().getOffset(reproducibleTime);
+    }
+
+    private static void addDirectory(Map<String, CompressedEntry> directories, String name, long time, int mode) {
+        if (!"/".equals(name) && !directories.containsKey(name))
+            directories.put(name, CompressedEntry.directory(name, time, mode));
+    }
+
+    static int unixMode(int mode, int type) {
+        return (mode & TYPE_MASK) == 0 ? mode | type : mode;
+    }
+
+    /**
+     * Entry added from memory.
+     */
+    private static class ContentEntry {
+
+        private final String name;
+        private final byte[] content;
+        private final long time;
+        private final int mode;
+
+        ContentEntry(String name, byte[] content, long time, int mode) {
+            this.name = name;
+            this.content = content;
+            this.time = time;
+            this.mode = mode;
+        }
+    }
+
+    /**
+     * Compresses one registered file or in-memory entry.
+     */
+    private class CompressTask implements Callable<CompressedEntry> {
+
+        private final String name;
+        private final File file;
+        private final ContentEntry content;
+        private final int mode;
+        private final long size;
+        private EntryCompressor compressor;
+        private ZipReader previous;
+        private Future<Future<CompressedEntry>> prefetching;
+        private Future<CompressedEntry> compressing;
+        private boolean reuseChecked;
+        private CompressedEntry reused;
+        private PrefetchedFile prefetched;
+
+        CompressTask(String name, File file, int mode) {
+            this.name = name;
+            this.file = file;
+            this.content = null;
+            this.mode = unixMode(mode, FILE_TYPE);
+            this.size = file.length();
+        }
+
+        CompressTask(ContentEntry content) {
+            this.name = content.name;
+            this.file = null;
+            this.content = content;
+            this.mode = reproducible ? REPRODUCIBLE_FILE_MODE : content.mode;
+            this.size = content.content.length;
+        }
+
+        CompressTask using(EntryCompressor compressor, ZipReader previous) {
+            this.compressor = compressor;
+            this.previous = previous;
+            return this;
+        }
+
+        /**
+         * Bytes the entry is accounted for while in flight: the size of its input.
+         */
+        long getSize() {
+            return size;
+        }
+
+        /**
+         * Submits the entry, through the prefetch threads when it is read from a file.
+         */
+        void dispatch(final ExecutorService executor, ExecutorService prefetcher) {
+            if (prefetcher == null || file == null) {
+                compressing = executor.submit(this);
+                return;
+            }
+            prefetching = prefetcher.submit(new Callable<Future<CompressedEntry>>() {
+                public Future<CompressedEntry> call() throws IOException {
+                    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+                    boolean timed = threads.isCurrentThreadCpuTimeSupported();
+                    long start = timed ? threads.getCurrentThreadCpuTime() : 0;
+                    try {
+                        prefetch();
+                    } finally {
+                        if (timed)
+                            compressionCpuTime.addAndGet(threads.getCurrentThreadCpuTime() - start);
+                    }
+                    return executor.submit(CompressTask.this);
+                }
+            });
+        }
+
+        /**
+         * Waits for the entry to be read and compressed. The task stays listed until the archive is
+         * written, so it lets go of the entry.
+         */
+        CompressedEntry await() throws ArchiverException, IOException {
+            try {
+                return ParallelZipArchiver.this.await(prefetching != null ? ParallelZipArchiver.this.await(prefetching) : compressing);
+            } finally {
+                prefetching = null;
+                compressing = null;
+                reused = null;
+                prefetched = null;
+            }
+        }
+
+        /**
+         * Copies the entry from the previous archive or reads its file, on a prefetch thread.
+         */
+        private void prefetch() throws IOException {
+            if (previous != null) {
+                reused = reuse();
+                reuseChecked = true;
+                if (reused != null)
+                    return;
+            }
+            prefetched = PrefetchedFile.read(file);
+            if (prefetched != null)
+                bytesRead.addAndGet(prefetched.getSize());
+        }
+
+        public CompressedEntry call() throws IOException {
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            boolean timed = threads.isCurrentThreadCpuTimeSupported();
+            long start = timed ? threads.getCurrentThreadCpuTime() : 0;
+            try {
+                return compressOrReuse();
+            } finally {
+                if (prefetched != null)
+                    prefetched.release();
+                if (timed)
+                    compressionCpuTime.addAndGet(threads.getCurrentThreadCpuTime() - start);
+            }
+        }
+
+        private CompressedEntry compressOrReuse() throws IOException {
+            if (!reuseChecked && previous != null)
+                reused = reuse();
+            if (reused != null) {
+                reusedEntries.incrementAndGet();
+                return reused;
+            }
+            if (content != null)
+                return compressor.compress(name, content.content, getEntryTime(content.time), mode);
+            final long time = getEntryTime(file.lastModified());
+            // a stored entry costs no more to copy again than to look up
+            if (entryCache == null || compressor.isStored(name))
+                return compressFile(time);
+            if (prefetched == null) {
+                // read once, for the hash and the compression
+                prefetched = PrefetchedFile.read(file);
+                if (prefetched == null)
+                    return compressFile(time);
+                bytesRead.addAndGet(prefetched.getSize());
+            }
+
+            // the cached entry may have been compressed under another name, it is renamed on the way out
+            CompressedEntry cached = entryCache.get(file, prefetched.openStream(), compressor.getSettingsKey(name),
+                                                    entryCacheDirectory, new Callable<CompressedEntry>() {
+                public CompressedEntry call() throws IOException {
+                    return compressFile(time);
+                }
+            });
+            return cached.copy(name, time, mode);
+        }
+
+        /**
+         * Compresses the prefetched content, or the file when it was not prefetched.
+         */
+        private CompressedEntry compressFile(long time) throws IOException {
+            if (prefetched != null)
+                return compressor.compress(name, prefetched.openStream(), prefetched.getSize(), time, mode);
+            bytesRead.addAndGet(file.length());
+            return compressor.compress(name, file, time, mode);
+        }
+
+        /**
+         * The previous entry, when it can be reused; an entry of the previous archive that cannot be
+         * read is compressed again rather than failing the build.
+         */
+        private CompressedEntry reuse() {
+            try {
+                return reusePrevious();
+            } catch (IOException e) {
+                getLogger().warn("Not reusing " + name + " from " + previous.getFile().getName() + ": " + e.getMessage());
+            } catch (RuntimeException e) {
+                getLogger().warn("Not reusing " + name + " from " + previous.getFile().getName() + ": " + e);
+            }
+            return null;
+        }
+
+        /**
+         * The previous entry, when its input is unchanged and it was compressed the way the policy asks for.
+         */
+        private CompressedEntry reusePrevious() throws IOException {
+            ZipReader.Entry old = previous.getEntry(name);
+            if (old == null || old.isDirectory() || !compressor.isCompatible(name, old.getMethod()))
+                return null;
+            long time;
+            if (content != null) {
+                if (old.getSize() != content.content.length || old.getCrc() != EntryCompressor.crc(content.content))
+                    return null;
+                time = getEntryTime(content.time);
+            } else if (reproducible) {
+                // every entry carries the same time, so only the content tells whether a file changed
+                time = getEntryTime(file.lastModified());
+                if (old.getSize() != file.length())
+                    return null;
+                bytesRead.addAndGet(file.length());
+                if (old.getCrc() != EntryCompressor.crc(file))
+                    return null;
+            } else {
+                time = file.lastModified();
+                if (old.getSize() != file.length() || old.getDosTime() != ZipWriter.toDosTime(time))
+                    return null;
+                if (verifyReusedEntries) {
+                    bytesRead.addAndGet(file.length());
+                    if (old.getCrc() != EntryCompressor.crc(file))
+                        return null;
+                }
+            }
+            byte[] data = previous.readRaw(old);
+            bytesRead.addAndGet(data.length);
+            return new CompressedEntry(name, old.getMethod(), old.getCrc(), old.getSize(), data, data.length, time, mode);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package uk.co.trenddevs.plugin.cba.archive;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The content of a file read ahead of its compression. Small files are read onto the heap,
+ * larger ones are memory-mapped and loaded into physical memory, so that reading them blocks
+ * the prefetching thread rather than the one compressing them.
+ *
+ * @version $Id: $
+ */
+class PrefetchedFile {
+
+    /**
+     * Files from this size on are mapped rather than read onto the heap.
+     */
+    static final long MAP_THRESHOLD = 1024 * 1024;
+
+    private ByteBuffer buffer;
+
+    private PrefetchedFile(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Reads a file, or returns null when it is too large to be held in a single buffer.
+     */
+    static PrefetchedFile read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                return null;
+            if (size >= MAP_THRESHOLD)
+                return new PrefetchedFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, size).load());
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1)
+                    break;
+            }
+            buffer.flip();
+            return new PrefetchedFile(buffer);
+        } finally {
+            in.close();
+        }
+    }
+
+    long getSize() {
+        return buffer.limit();
+    }
+
+    /**
+     * Stream over the content, from the start.
+     */
+    InputStream openStream() {
+        final ByteBuffer content = buffer.duplicate();
+        return new InputStream() {
+            public int read() {
+                return content.hasRemaining() ? content.get() & 0xff : -1;
+            }
+
+            public int read(byte[] b, int off, int len) {
+                if (!content.hasRemaining())
+                    return -1;
+                int count = Math.min(len, content.remaining());
+                content.get(b, off, count);
+                return count;
+            }
+
+            public int available() {
+                return content.remaining();
+            }
+        };
+    }
+
+    /**
+     * Drops the content; a mapped buffer is unmapped once it is garbage collected.
+     */
+    void release() {
+        buffer = null;
+    }
+}
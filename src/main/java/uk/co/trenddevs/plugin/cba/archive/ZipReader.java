@@ -0,0 +1,406 @@
+package uk.co.trenddevs.plugin.cba.archive;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a zip file and hands out the raw, still compressed, bytes
+ * of its entries.
+ *
+ * Only the end records and the central directory are parsed when the reader is opened;
+ * entry data is read on demand with positional reads, so one reader can serve several
+ * threads at once. Zip64 archives as written by {@link ZipWriter} are supported.
+ *
+ * @version $Id: $
+ */
+public class ZipReader {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int MAX_COMMENT = 0xFFFF;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private final File file;
+    private final FileInputStream in;
+    private final FileChannel channel;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+    private long centralOffset;
+
+    /**
+     * Opens a zip file and reads its central directory.
+     * @throws ZipException when the file is not a readable zip
+     */
+    public ZipReader(File file) throws IOException {
+        this.file = file;
+        this.in = new FileInputStream(file);
+        this.channel = in.getChannel();
+        boolean read = false;
+        try {
+            readCentralDirectory();
+            read = true;
+        } finally {
+            if (!read)
+                close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * The entry of the given name, or null.
+     */
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * All entries in central directory order.
+     */
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Offset of the central directory, which follows the data of the last entry.
+     */
+    public long getCentralDirectoryOffset() {
+        return centralOffset;
+    }
+
+    /**
+     * Offset of the data of an entry, past its local header.
+     */
+    public long getDataOffset(Entry entry) throws IOException {
+        ByteBuffer header = read(entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE)
+            throw new ZipException("Invalid local header for " + entry.name + " in " + file);
+        return entry.localHeaderOffset + LOCAL_HEADER_SIZE
+            + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+    }
+
+    /**
+     * Reads the data of an entry as it is stored in the archive, without inflating it.
+     */
+    public byte[] readRaw(Entry entry) throws IOException {
+        long dataOffset = getDataOffset(entry);
+        if (entry.compressedSize > Integer.MAX_VALUE)
+            throw new ZipException("Entry too large to copy: " + entry.name);
+        return read(dataOffset, (int) entry.compressedSize).array();
+    }
+
+    /**
+     * Streams the inflated content of an entry, reading the archive as it is consumed; entries of any
+     * size can be read this way, and several threads may each stream their own entries.
+     */
+    public InputStream openContent(Entry entry) throws IOException {
+        long dataOffset = getDataOffset(entry);
+        if (entry.method == ZipWriter.STORED)
+            return new RawInputStream(dataOffset, entry.compressedSize, false);
+        if (entry.method != ZipWriter.DEFLATED)
+            throw new ZipException("Unsupported entry " + entry.name + " in " + file);
+        final Inflater inflater = new Inflater(true);
+        return new InflaterInputStream(new RawInputStream(dataOffset, entry.compressedSize, true), inflater, 8192) {
+            public void close() throws IOException {
+                super.close();
+                inflater.end();
+            }
+        };
+    }
+
+    /**
+     * Reads bytes of the file as they are, such as headers.
+     */
+    public byte[] readBytes(long position, int length) throws IOException {
+        return read(position, length).array();
+    }
+
+    /**
+     * Reads and inflates the data of an entry; meant for small entries such as manifests.
+     */
+    public byte[] readContent(Entry entry) throws IOException {
+        byte[] raw = readRaw(entry);
+        if (entry.method == ZipWriter.STORED)
+            return raw;
+        if (entry.method != ZipWriter.DEFLATED || entry.size > Integer.MAX_VALUE)
+            throw new ZipException("Unsupported entry " + entry.name + " in " + file);
+
+        byte[] content = new byte[(int) entry.size];
+        Inflater inflater = new Inflater(true);
+        try {
+            // nowrap inflaters need one byte of input past the end of the data
+            byte[] input = new byte[raw.length + 1];
+            System.arraycopy(raw, 0, input, 0, raw.length);
+            inflater.setInput(input);
+            int length = 0;
+            while (length < content.length && !inflater.finished()) {
+                int inflated = inflater.inflate(content, length, content.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new ZipException("Truncated entry " + entry.name + " in " + file);
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new ZipException("Invalid entry " + entry.name + " in " + file + ": " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+        return content;
+    }
+
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long length = channel.size();
+        if (length < END_SIZE)
+            throw new ZipException("Not a zip file: " + file);
+
+        int tailLength = (int) Math.min(length, END_SIZE + MAX_COMMENT);
+        long tailOffset = length - tailLength;
+        ByteBuffer tail = read(tailOffset, tailLength);
+        int end = -1;
+        for (int i = tailLength - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0)
+            throw new ZipException("Zip end of central directory not found in " + file);
+
+        long count = tail.getShort(end + 10) & 0xFFFF;
+        long centralSize = tail.getInt(end + 12) & ZIP64_MAGIC;
+        long centralOffset = tail.getInt(end + 16) & ZIP64_MAGIC;
+
+        long locator = tailOffset + end - ZIP64_LOCATOR_SIZE;
+        if (locator >= 0 && read(locator, 4).getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+            long zip64End = read(locator + 8, 8).getLong(0);
+            ByteBuffer record = read(zip64End, 56);
+            if (record.getInt(0) != ZIP64_END_SIGNATURE)
+                throw new ZipException("Invalid Zip64 end of central directory in " + file);
+            count = record.getLong(32);
+            centralSize = record.getLong(40);
+            centralOffset = record.getLong(48);
+        }
+        if (centralSize > Integer.MAX_VALUE || centralOffset + centralSize > length)
+            throw new ZipException("Invalid central directory in " + file);
+
+        this.centralOffset = centralOffset;
+        ByteBuffer central = read(centralOffset, (int) centralSize);
+        int position = 0;
+        for (long i = 0; i < count; i++) {
+            if (central.getInt(position) != CENTRAL_HEADER_SIGNATURE)
+                throw new ZipException("Invalid central directory entry in " + file);
+            int flags = central.getShort(position + 8) & 0xFFFF;
+            int method = central.getShort(position + 10) & 0xFFFF;
+            long dosTime = central.getInt(position + 12) & ZIP64_MAGIC;
+            long crc = central.getInt(position + 16) & ZIP64_MAGIC;
+            long compressedSize = central.getInt(position + 20) & ZIP64_MAGIC;
+            long size = central.getInt(position + 24) & ZIP64_MAGIC;
+            int nameLength = central.getShort(position + 28) & 0xFFFF;
+            int extraLength = central.getShort(position + 30) & 0xFFFF;
+            int commentLength = central.getShort(position + 32) & 0xFFFF;
+            long localHeaderOffset = central.getInt(position + 42) & ZIP64_MAGIC;
+
+            String name = decode(central.array(), position + CENTRAL_HEADER_SIZE, nameLength, (flags & FLAG_UTF8) != 0);
+
+            // Zip64 extra fields only carry the values whose 32 bit fields are saturated, in this order
+            int extra = position + CENTRAL_HEADER_SIZE + nameLength;
+            int extraEnd = extra + extraLength;
+            while (extra + 4 <= extraEnd) {
+                int id = central.getShort(extra) & 0xFFFF;
+                int dataLength = central.getShort(extra + 2) & 0xFFFF;
+                if (id == ZIP64_EXTRA_ID) {
+                    int field = extra + 4;
+                    if (size == ZIP64_MAGIC) {
+                        size = central.getLong(field);
+                        field += 8;
+                    }
+                    if (compressedSize == ZIP64_MAGIC) {
+                        compressedSize = central.getLong(field);
+                        field += 8;
+                    }
+                    if (localHeaderOffset == ZIP64_MAGIC)
+                        localHeaderOffset = central.getLong(field);
+                }
+                extra += 4 + dataLength;
+            }
+
+            entries.put(name, new Entry(name, method, crc, size, compressedSize, dosTime, localHeaderOffset));
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new ZipException("Unexpected end of " + file);
+        }
+        return buffer;
+    }
+
+    /**
+     * The data of an entry, read with positional reads.
+     */
+    private class RawInputStream extends InputStream {
+
+        private long position;
+        private long remaining;
+        private boolean padding;
+
+        /**
+         * @param padding whether one byte follows the data, which nowrap inflaters need
+         */
+        RawInputStream(long position, long length, boolean padding) {
+            this.position = position;
+            this.remaining = length;
+            this.padding = padding;
+        }
+
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (remaining == 0) {
+                if (!padding)
+                    return -1;
+                padding = false;
+                b[off] = 0;
+                return 1;
+            }
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (read < 0)
+                throw new ZipException("Unexpected end of " + file);
+            position += read;
+            remaining -= read;
+            return read;
+        }
+    }
+
+    private static String decode(byte[] bytes, int offset, int length, boolean utf8) {
+        try {
+            return new String(bytes, offset, length, utf8 ? "UTF-8" : "Cp437");
+        } catch (UnsupportedEncodingException e) {
+            return new String(bytes, offset, length);
+        }
+    }
+
+    /**
+     * Central directory record of one entry.
+     */
+    public static class Entry {
+
+        private final String name;
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        private final long dosTime;
+        private final long localHeaderOffset;
+
+        Entry(String name, int method, long crc, long size, long compressedSize, long dosTime, long localHeaderOffset) {
+            this.name = name;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.dosTime = dosTime;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCrc() {
+            return crc;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        /**
+         * Offset of the local header of the entry in the zip file.
+         */
+        public long getLocalHeaderOffset() {
+            return localHeaderOffset;
+        }
+
+        /**
+         * Modification time in MS-DOS format, as written in the zip headers.
+         */
+        public long getDosTime() {
+            return dosTime;
+        }
+
+        /**
+         * Modification time in milliseconds, to the two seconds zip headers hold.
+         */
+        public long getTime() {
+            return ZipWriter.fromDosTime(dosTime);
+        }
+
+        public boolean isDirectory() {
+            return name.endsWith("/");
+        }
+    }
+}
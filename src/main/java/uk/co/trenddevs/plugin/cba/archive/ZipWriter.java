@@ -0,0 +1,283 @@
+package uk.co.trenddevs.plugin.cba.archive;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipException;
+
+/**
+ * Sequential zip file writer for entries that were compressed elsewhere.
+ *
+ * Unlike {@link java.util.zip.ZipOutputStream} it never compresses anything itself: every
+ * entry arrives with its CRC, sizes and compressed bytes, so entries can be deflated
+ * concurrently and stitched together here in order. Archives with more than 65535 entries
+ * or beyond 4GB get Zip64 end records.
+ *
+ * @version $Id: $
+ */
+public class ZipWriter {
+
+    public static final int STORED = 0;
+    public static final int DEFLATED = 8;
+
+    private static final long LOCAL_HEADER_SIGNATURE = 0x04034b50L;
+    private static final long CENTRAL_HEADER_SIGNATURE = 0x02014b50L;
+    private static final long END_SIGNATURE = 0x06054b50L;
+    private static final long ZIP64_END_SIGNATURE = 0x06064b50L;
+    private static final long ZIP64_LOCATOR_SIGNATURE = 0x07064b50L;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+    private static final int ZIP64_MAGIC_SHORT = 0xFFFF;
+
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int PLATFORM_UNIX = 3;
+    private static final int FLAG_UTF8 = 1 << 11;
+
+    private final OutputStream out;
+    private final List<CentralRecord> central = new ArrayList<CentralRecord>();
+    private final Set<String> names = new HashSet<String>();
+    private long offset;
+    private boolean finished;
+
+    public ZipWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Appends an entry.
+     * @throws ZipException for duplicate names or entries of 4GB and more
+     */
+    public void write(CompressedEntry entry) throws IOException {
+        if (finished)
+            throw new IllegalStateException("Zip already finished");
+        if (!names.add(entry.getName()))
+            throw new ZipException("Duplicate entry: " + entry.getName());
+        if (entry.getSize() >= ZIP64_MAGIC || entry.getCompressedSize() >= ZIP64_MAGIC)
+            throw new ZipException("Entries of 4GB and more are not supported: " + entry.getName());
+
+        byte[] name = encode(entry.getName());
+        int flags = isAscii(entry.getName()) ? 0 : FLAG_UTF8;
+        long dosTime = toDosTime(entry.getTime());
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(30 + name.length);
+        writeInt(header, LOCAL_HEADER_SIGNATURE);
+        writeShort(header, VERSION_DEFAULT);
+        writeShort(header, flags);
+        writeShort(header, entry.getMethod());
+        writeInt(header, dosTime);
+        writeInt(header, entry.getCrc());
+        writeInt(header, entry.getCompressedSize());
+        writeInt(header, entry.getSize());
+        writeShort(header, name.length);
+        writeShort(header, 0);
+        header.write(name);
+
+        central.add(new CentralRecord(entry, name, flags, dosTime, offset));
+
+        header.writeTo(out);
+        out.write(entry.getData(), 0, (int) entry.getCompressedSize());
+        offset += header.size() + entry.getCompressedSize();
+    }
+
+    /**
+     * Number of bytes written so far.
+     */
+    public long getBytesWritten() {
+        return offset;
+    }
+
+    /**
+     * Writes the central directory and end records, then flushes (but does not close) the stream.
+     */
+    public void finish() throws IOException {
+        if (finished)
+            return;
+        finished = true;
+
+        long centralOffset = offset;
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+        for (CentralRecord record : central) {
+            buffer.reset();
+            record.writeTo(buffer);
+            buffer.writeTo(out);
+            offset += buffer.size();
+        }
+        long centralSize = offset - centralOffset;
+
+        buffer.reset();
+        boolean zip64 = central.size() >= ZIP64_MAGIC_SHORT || centralOffset >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC;
+        if (zip64) {
+            long zip64EndOffset = offset;
+            writeInt(buffer, ZIP64_END_SIGNATURE);
+            writeLong(buffer, 44);
+            writeShort(buffer, (PLATFORM_UNIX << 8) | VERSION_ZIP64);
+            writeShort(buffer, VERSION_ZIP64);
+            writeInt(buffer, 0);
+            writeInt(buffer, 0);
+            writeLong(buffer, central.size());
+            writeLong(buffer, central.size());
+            writeLong(buffer, centralSize);
+            writeLong(buffer, centralOffset);
+
+            writeInt(buffer, ZIP64_LOCATOR_SIGNATURE);
+            writeInt(buffer, 0);
+            writeLong(buffer, zip64EndOffset);
+            writeInt(buffer, 1);
+        }
+        writeInt(buffer, END_SIGNATURE);
+        writeShort(buffer, 0);
+        writeShort(buffer, 0);
+        writeShort(buffer, zip64 ? ZIP64_MAGIC_SHORT : central.size());
+        writeShort(buffer, zip64 ? ZIP64_MAGIC_SHORT : central.size());
+        writeInt(buffer, zip64 ? ZIP64_MAGIC : centralSize);
+        writeInt(buffer, zip64 ? ZIP64_MAGIC : centralOffset);
+        writeShort(buffer, 0);
+        buffer.writeTo(out);
+        offset += buffer.size();
+        out.flush();
+    }
+
+    /**
+     * Converts a java timestamp into the MS-DOS date/time format used by zip headers.
+     */
+    static long toDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+        return ((year - 1980) << 25)
+            | ((calendar.get(Calendar.MONTH) + 1) << 21)
+            | (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+            | (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+            | (calendar.get(Calendar.MINUTE) << 5)
+            | (calendar.get(Calendar.SECOND) >> 1);
+    }
+
+    /**
+     * Converts an MS-DOS date/time from zip headers back into a java timestamp.
+     */
+    static long fromDosTime(long dosTime) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set((int) ((dosTime >> 25) & 0x7f) + 1980, (int) ((dosTime >> 21) & 0x0f) - 1,
+                     (int) ((dosTime >> 16) & 0x1f), (int) ((dosTime >> 11) & 0x1f), (int) ((dosTime >> 5) & 0x3f),
+                     (int) ((dosTime << 1) & 0x3e));
+        return calendar.getTimeInMillis();
+    }
+
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0x7f)
+                return false;
+        }
+        return true;
+    }
+
+    private static byte[] encode(String name) {
+        try {
+            return name.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    static void writeShort(OutputStream out, int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+    }
+
+    static void writeInt(OutputStream out, long value) throws IOException {
+        writeShort(out, (int) (value & 0xffff));
+        writeShort(out, (int) ((value >>> 16) & 0xffff));
+    }
+
+    static void writeLong(OutputStream out, long value) throws IOException {
+        writeInt(out, value & ZIP64_MAGIC);
+        writeInt(out, value >>> 32);
+    }
+
+    /**
+     * What the central directory needs of an entry; the entry's data is not kept, so that
+     * written entries can be collected before the archive is finished.
+     */
+    private static class CentralRecord {
+
+        private final int method;
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+        private final int unixMode;
+        private final boolean directory;
+        private final byte[] name;
+        private final int flags;
+        private final long dosTime;
+        private final long localHeaderOffset;
+
+        CentralRecord(CompressedEntry entry, byte[] name, int flags, long dosTime, long localHeaderOffset) {
+            this.method = entry.getMethod();
+            this.crc = entry.getCrc();
+            this.size = entry.getSize();
+            this.compressedSize = entry.getCompressedSize();
+            this.unixMode = entry.getUnixMode();
+            this.directory = entry.isDirectory();
+            this.name = name;
+            this.flags = flags;
+            this.dosTime = dosTime;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        void writeTo(OutputStream out) throws IOException {
+            boolean zip64 = localHeaderOffset >= ZIP64_MAGIC;
+            writeInt(out, CENTRAL_HEADER_SIGNATURE);
+            writeShort(out, (PLATFORM_UNIX << 8) | (zip64 ? VERSION_ZIP64 : VERSION_DEFAULT));
+            writeShort(out, zip64 ? VERSION_ZIP64 : VERSION_DEFAULT);
+            writeShort(out, flags);
+            writeShort(out, method);
+            writeInt(out, dosTime);
+            writeInt(out, crc);
+            writeInt(out, compressedSize);
+            writeInt(out, size);
+            writeShort(out, name.length);
+            writeShort(out, zip64 ? 12 : 0);
+            writeShort(out, 0);
+            writeShort(out, 0);
+            writeShort(out, 0);
+            writeInt(out, ((long) unixMode << 16) | (directory ? 0x10 : 0));
+            writeInt(out, zip64 ? ZIP64_MAGIC : localHeaderOffset);
+            out.write(name);
+            if (zip64) {
+                writeShort(out, ZIP64_EXTRA_ID);
+                writeShort(out, 8);
+                writeLong(out, localHeaderOffset);
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package uk.co.trenddevs.plugin.cba.bundle;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import aQute.lib.osgi.Analyzer;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.shared.osgi.Maven2OsgiConverter;
+
+/**
+ * Drops artifacts that would put the same bundle into a cba twice.
+ *
+ * An artifact whose jar is byte-identical to that of an earlier artifact, such as a relocated
+ * artifact or a classifier alias, is a duplicate. Only jars of the same size are hashed, through
+ * a {@link BundleMetadataCache} that remembers the hashes. Artifacts that share a symbolic name in
+ * different versions are conflicts; they are reported, and all but the highest version dropped
+ * when asked to. Symbolic names are only read, and jars opened, when conflicts are looked for.
+ *
+ * @version $Id: $
+ */
+public class ArtifactDeduplicator {
+
+    private final BundleMetadataCache cache;
+    private final Maven2OsgiConverter converter;
+    private final boolean dropDuplicates;
+    private final boolean findConflicts;
+    private final boolean keepHighest;
+
+    /**
+     * @param dropDuplicates whether byte-identical jars are dropped
+     * @param keepHighest whether only the highest version of a symbolic name is kept
+     */
+    public ArtifactDeduplicator(BundleMetadataCache cache, Maven2OsgiConverter converter, boolean dropDuplicates,
+                                boolean keepHighest) {
+        this(cache, converter, dropDuplicates, true, keepHighest);
+    }
+
+    /**
+     * @param dropDuplicates whether byte-identical jars are dropped
+     * @param findConflicts whether symbolic names included in several versions are reported
+     * @param keepHighest whether only the highest version of a symbolic name is kept, which implies findConflicts
+     */
+    public ArtifactDeduplicator(BundleMetadataCache cache, Maven2OsgiConverter converter, boolean dropDuplicates,
+                                boolean findConflicts, boolean keepHighest) {
+        this.cache = cache;
+        this.converter = converter;
+        this.dropDuplicates = dropDuplicates;
+        this.findConflicts = findConflicts || keepHighest;
+        this.keepHighest = keepHighest;
+    }
+
+    /**
+     * Selects the artifacts to keep, in their original order.
+     */
+    public Result deduplicate(Collection<Artifact> artifacts) throws IOException {
+        Result result = new Result(artifacts);
+        List<Artifact> kept = new ArrayList<Artifact>(artifacts);
+        if (dropDuplicates)
+            dropDuplicates(kept, result);
+        if (findConflicts)
+            resolveConflicts(kept, result);
+        result.selected.addAll(kept);
+        return result;
+    }
+
+    private void dropDuplicates(List<Artifact> artifacts, Result result) throws IOException {
+        Map<Long, List<Artifact>> bySize = new LinkedHashMap<Long, List<Artifact>>();
+        for (Artifact artifact : artifacts) {
+            File file = artifact.getFile();
+            if (file == null || !file.isFile())
+                continue;
+            Long size = Long.valueOf(file.length());
+            List<Artifact> sameSize = bySize.get(size);
+            if (sameSize == null)
+                bySize.put(size, sameSize = new ArrayList<Artifact>());
+            sameSize.add(artifact);
+        }
+
+        for (List<Artifact> sameSize : bySize.values()) {
+            if (sameSize.size() < 2)
+                continue;
+            Map<String, Artifact> byHash = new LinkedHashMap<String, Artifact>();
+            for (Artifact artifact : sameSize) {
+                String hash = cache.getContentHash(artifact);
+                Artifact original = byHash.get(hash);
+                if (original == null) {
+                    byHash.put(hash, artifact);
+                } else {
+                    artifacts.remove(artifact);
+                    result.duplicates.put(artifact, original);
+                }
+            }
+        }
+    }
+
+    private void resolveConflicts(List<Artifact> artifacts, Result result) throws IOException {
+        Map<String, List<Artifact>> byName = new LinkedHashMap<String, List<Artifact>>();
+        Map<Artifact, Version> versions = new LinkedHashMap<Artifact, Version>();
+        for (Artifact artifact : artifacts) {
+            if (artifact.getFile() == null || !artifact.getFile().isFile())
+                continue;
+            BundleMetadata metadata = cache.get(artifact, converter);
+            List<Artifact> sameName = byName.get(metadata.getSymbolicName());
+            if (sameName == null)
+                byName.put(metadata.getSymbolicName(), sameName = new ArrayList<Artifact>());
+            sameName.add(artifact);
+            versions.put(artifact, getVersion(artifact, metadata));
+        }
+
+        for (Map.Entry<String, List<Artifact>> entry : byName.entrySet()) {
+            List<Artifact> sameName = entry.getValue();
+            if (sameName.size() < 2)
+                continue;
+            Artifact highest = sameName.get(0);
+            StringBuffer conflict = new StringBuffer(entry.getKey()).append(" is included in versions");
+            for (Artifact artifact : sameName) {
+                conflict.append(' ').append(versions.get(artifact)).append(" (").append(artifact.getId()).append(')');
+                if (versions.get(artifact).compareTo(versions.get(highest)) > 0)
+                    highest = artifact;
+            }
+            result.conflicts.add(conflict.toString());
+            if (!keepHighest)
+                continue;
+            for (Artifact artifact : sameName) {
+                if (artifact != highest) {
+                    artifacts.remove(artifact);
+                    result.overridden.put(artifact, highest);
+                }
+            }
+        }
+    }
+
+    /**
+     * The Bundle-Version of a bundle, or the OSGi form of the artifact version for plain jars and invalid versions.
+     */
+    private static Version getVersion(Artifact artifact, BundleMetadata metadata) {
+        if (metadata.isBundle() && metadata.getVersion() != null) {
+            try {
+                return Version.parse(metadata.getVersion());
+            } catch (IllegalArgumentException e) {
+                // compared like the artifact version below
+            }
+        }
+        return Version.parse(Analyzer.cleanupVersion(artifact.getVersion()));
+    }
+
+    /**
+     * The artifacts kept and those dropped, with the reason they were dropped.
+     */
+    public static class Result {
+
+        private final int artifactCount;
+        private final Set<Artifact> selected = new LinkedHashSet<Artifact>();
+        private final Map<Artifact, Artifact> duplicates = new LinkedHashMap<Artifact, Artifact>();
+        private final Map<Artifact, Artifact> overridden = new LinkedHashMap<Artifact, Artifact>();
+        private final List<String> conflicts = new ArrayList<String>();
+
+        Result(Collection<Artifact> artifacts) {
+            this.artifactCount = artifacts.size();
+        }
+
+        public Set<Artifact> getSelected() {
+            return Collections.unmodifiableSet(selected);
+        }
+
+        /**
+         * Dropped artifacts mapped to the identical artifact kept instead.
+         */
+        public Map<Artifact, Artifact> getDuplicates() {
+            return Collections.unmodifiableMap(duplicates);
+        }
+
+        /**
+         * Artifacts dropped for a higher version of the same symbolic name, mapped to that version.
+         */
+        public Map<Artifact, Artifact> getOverridden() {
+            return Collections.unmodifiableMap(overridden);
+        }
+
+        /**
+         * One message per symbolic name included in several versions, whether or not the conflict was resolved.
+         */
+        public List<String> getConflicts() {
+            return Collections.unmodifiableList(conflicts);
+        }
+
+        /**
+         * Size of the jars of the dropped artifacts.
+         */
+        public long getBytesSaved() {
+            long saved = 0;
+            for (Artifact artifact : duplicates.keySet()) {
+                saved += artifact.getFile().length();
+            }
+            for (Artifact artifact : overridden.keySet()) {
+                saved += artifact.getFile().length();
+            }
+            return saved;
+        }
+
+        /**
+         * Whether anything was dropped or found in conflict.
+         */
+        public boolean hasFindings() {
+            return !duplicates.isEmpty() || !conflicts.isEmpty();
+        }
+
+        /**
+         * The report lines: a summary followed by every dropped artifact and conflict.
+         */
+        public List<String> getReport() {
+            List<String> lines = new ArrayList<String>();
+            lines.add(artifactCount + " artifact(s), " + (duplicates.size() + overridden.size()) + " dropped, "
+                      + getBytesSaved() + " bytes saved");
+            for (Map.Entry<Artifact, Artifact> entry : duplicates.entrySet()) {
+                lines.add("duplicate " + entry.getKey().getId() + " is identical to " + entry.getValue().getId());
+            }
+            for (Map.Entry<Artifact, Artifact> entry : overridden.entrySet()) {
+                lines.add("overridden " + entry.getKey().getId() + " by " + entry.getValue().getId());
+            }
+            for (String conflict : conflicts) {
+                lines.add("conflict " + conflict);
+            }
+            return lines;
+        }
+    }
+}
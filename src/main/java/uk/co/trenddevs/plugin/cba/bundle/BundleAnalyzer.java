@@ -0,0 +1,201 @@
+package uk.co.trenddevs.plugin.cba.bundle;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import aQute.lib.osgi.Analyzer;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.shared.osgi.Maven2OsgiConverter;
+import uk.co.trenddevs.plugin.cba.archive.DaemonThreadFactory;
+import uk.co.trenddevs.plugin.cba.manifest.Clause;
+
+/**
+ * Computes the packages a composite bundle exports and imports from the class files of its
+ * content bundles, using bnd.
+ *
+ * Each bundle is analyzed with its own declared Export-Package, so that bnd reports the
+ * versions it exports together with every package its classes refer to. Bundles are analyzed
+ * concurrently, and the results are kept in the {@link BundleMetadataCache} so that only new or
+ * changed bundles are analyzed again. The composite imports whatever a content bundle imports
+ * and no content bundle exports.
+ *
+ * @version $Id: $
+ */
+public class BundleAnalyzer {
+
+    private static final String VERSION = "version";
+    private static final String RESOLUTION = "resolution";
+
+    private final BundleMetadataCache cache;
+    private final Maven2OsgiConverter converter;
+    private final int threads;
+
+    /**
+     * @param threads number of bundles analyzed at once; values below one select one per available processor
+     */
+    public BundleAnalyzer(BundleMetadataCache cache, Maven2OsgiConverter converter, int threads) {
+        this.cache = cache;
+        this.converter = converter;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Analyzes artifacts concurrently, returning their metadata in the order of the artifacts.
+     */
+    public List<BundleMetadata> analyze(Collection<Artifact> artifacts) throws IOException, InterruptedException {
+        List<BundleMetadata> analyzed = new ArrayList<BundleMetadata>(artifacts.size());
+        if (artifacts.isEmpty())
+            return analyzed;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, artifacts.size()), new DaemonThreadFactory("cba-analyzer-"));
+        try {
+            List<Future<BundleMetadata>> results = new ArrayList<Future<BundleMetadata>>(artifacts.size());
+            for (Artifact artifact : artifacts) {
+                results.add(executor.submit(new AnalyzeTask(artifact)));
+            }
+            for (Future<BundleMetadata> result : results) {
+                try {
+                    analyzed.add(result.get());
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException)
+                        throw (IOException) e.getCause();
+                    throw new IOException("Error analyzing bundle: " + e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return analyzed;
+    }
+
+    /**
+     * Runs bnd over one jar.
+     */
+    static BundleMetadata analyze(BundleMetadata metadata, File jar) throws IOException {
+        Analyzer analyzer = new Analyzer();
+        try {
+            analyzer.setJar(jar);
+            if (metadata.getExportPackage() != null)
+                analyzer.setProperty(Analyzer.EXPORT_PACKAGE, metadata.getExportPackage());
+            analyzer.setProperty(Analyzer.PRIVATE_PACKAGE, "*");
+            analyzer.setProperty(Analyzer.IMPORT_PACKAGE, "*");
+            analyzer.analyze();
+            return metadata.withAnalysis(Clause.toHeaderValue(toClauses(analyzer.getExports())),
+                                         Clause.toHeaderValue(toClauses(analyzer.getImports())));
+        } catch (RuntimeException e) {
+            throw new IOException("Error analyzing " + jar + ": " + e);
+        } finally {
+            analyzer.close();
+        }
+    }
+
+    /**
+     * Every package exported by a content bundle, with the version it is exported in.
+     */
+    public static List<Clause> getCompositeExports(List<BundleMetadata> bundles) {
+        Map<String, Clause> exports = new LinkedHashMap<String, Clause>();
+        for (BundleMetadata bundle : bundles) {
+            for (Clause export : Clause.parse(bundle.getAnalyzedExportPackage())) {
+                if (!exports.containsKey(export.getName())) {
+                    Clause clause = new Clause(export.getName());
+                    if (export.getAttribute(VERSION) != null)
+                        clause.setAttribute(VERSION, export.getAttribute(VERSION));
+                    exports.put(export.getName(), clause);
+                }
+            }
+        }
+        return new ArrayList<Clause>(exports.values());
+    }
+
+    /**
+     * Every package imported by a content bundle that no content bundle exports, java.* excluded.
+     * A package stays optional only when all bundles importing it import it optionally.
+     */
+    public static List<Clause> getCompositeImports(List<BundleMetadata> bundles) {
+        Map<String, Boolean> exported = new LinkedHashMap<String, Boolean>();
+        for (Clause export : getCompositeExports(bundles)) {
+            exported.put(export.getName(), Boolean.TRUE);
+        }
+        Map<String, Clause> imports = new LinkedHashMap<String, Clause>();
+        for (BundleMetadata bundle : bundles) {
+            for (Clause imported : Clause.parse(bundle.getAnalyzedImportPackage())) {
+                String name = imported.getName();
+                if (name.startsWith("java.") || exported.containsKey(name))
+                    continue;
+                Clause clause = imports.get(name);
+                if (clause == null) {
+                    clause = new Clause(name);
+                    if (imported.getAttribute(VERSION) != null)
+                        clause.setAttribute(VERSION, imported.getAttribute(VERSION));
+                    if (imported.getDirective(RESOLUTION) != null)
+                        clause.setDirective(RESOLUTION, imported.getDirective(RESOLUTION));
+                    imports.put(name, clause);
+                } else if (imported.getDirective(RESOLUTION) == null) {
+                    clause.getDirectives().remove(RESOLUTION);
+                }
+            }
+        }
+        return new ArrayList<Clause>(imports.values());
+    }
+
+    /**
+     * Converts a bnd header map, where directive names end with ':', into clauses.
+     */
+    private static List<Clause> toClauses(Map<String, Map<String, String>> header) {
+        List<Clause> clauses = new ArrayList<Clause>(header.size());
+        for (Map.Entry<String, Map<String, String>> entry : header.entrySet()) {
+            Clause clause = new Clause(entry.getKey());
+            for (Map.Entry<String, String> parameter : entry.getValue().entrySet()) {
+                String key = parameter.getKey();
+                if (key.endsWith(":"))
+                    clause.setDirective(key.substring(0, key.length() - 1), parameter.getValue());
+                else
+                    clause.setAttribute(key, parameter.getValue());
+            }
+            clauses.add(clause);
+        }
+        return clauses;
+    }
+
+    private class AnalyzeTask implements Callable<BundleMetadata> {
+
+        private final Artifact artifact;
+
+        AnalyzeTask(Artifact artifact) {
+            this.artifact = artifact;
+        }
+
+        public BundleMetadata call() throws IOException {
+            return cache.getAnalyzed(artifact, converter);
+        }
+    }
+}
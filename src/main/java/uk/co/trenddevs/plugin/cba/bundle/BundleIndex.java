@@ -0,0 +1,109 @@
+package uk.co.trenddevs.plugin.cba.bundle;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+import uk.co.trenddevs.plugin.cba.manifest.Clause;
+import uk.co.trenddevs.plugin.cba.metrics.BuildMetrics;
+
+/**
+ * The index of the jars nested in a cba, written as META-INF/cba-index.json so that tools can
+ * list the bundles of a cba, their versions and their packages with one small read instead of
+ * opening every nested jar.
+ *
+ * For each jar the index records its entry name, the artifact it comes from, its size and
+ * SHA-1 as included in the cba, and its Bundle-SymbolicName, Bundle-Version, Export-Package
+ * and Import-Package clauses. Jars are listed in the order they are added, so the index of an
+ * unchanged cba is unchanged.
+ *
+ * @version $Id: $
+ */
+public class BundleIndex {
+
+    public static final String ENTRY_NAME = "META-INF/cba-index.json";
+
+    /**
+     * Version of the index format, raised when fields change meaning or are removed.
+     */
+    public static final int FORMAT_VERSION = 1;
+
+    private final List<String> jars = new ArrayList<String>();
+
+    /**
+     * Adds a nested jar.
+     * @param entryName the name of the jar in the cba
+     * @param coordinates the artifact the jar comes from, as groupId:artifactId:version
+     * @param size the size of the jar as included in the cba
+     * @param sha1 the SHA-1 of the jar as included in the cba
+     * @param metadata the headers of the jar
+     */
+    public void add(String entryName, String coordinates, long size, String sha1, BundleMetadata metadata) {
+        StringBuffer json = new StringBuffer(256);
+        json.append("    {\"entry\": ").append(BuildMetrics.quote(entryName));
+        json.append(", \"artifact\": ").append(BuildMetrics.quote(coordinates));
+        json.append(", \"size\": ").append(size);
+        json.append(", \"sha1\": ").append(BuildMetrics.quote(sha1));
+        json.append(",\n     \"bundle\": ").append(metadata.isBundle());
+        json.append(", \"symbolicName\": ").append(BuildMetrics.quote(metadata.getSymbolicName()));
+        json.append(", \"version\": ").append(BuildMetrics.quote(metadata.getVersion()));
+        json.append(",\n     \"exports\": ");
+        appendClauses(json, metadata.getExports());
+        json.append(",\n     \"imports\": ");
+        appendClauses(json, metadata.getImports());
+        json.append("}");
+        jars.add(json.toString());
+    }
+
+    public int size() {
+        return jars.size();
+    }
+
+    public String toJson() {
+        StringBuffer json = new StringBuffer(1024);
+        json.append("{\n");
+        json.append("  \"formatVersion\": ").append(FORMAT_VERSION).append(",\n");
+        json.append("  \"jars\": [");
+        for (int i = 0; i < jars.size(); i++) {
+            json.append(i == 0 ? "\n" : ",\n").append(jars.get(i));
+        }
+        json.append(jars.isEmpty() ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    public byte[] toByteArray() {
+        try {
+            return toJson().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    private static void appendClauses(StringBuffer json, List<Clause> clauses) {
+        json.append('[');
+        for (int i = 0; i < clauses.size(); i++) {
+            json.append(i == 0 ? "" : ", ").append(BuildMetrics.quote(clauses.get(i).toString()));
+        }
+        json.append(']');
+    }
+}
@@ -0,0 +1,198 @@
+package uk.co.trenddevs.plugin.cba.bundle;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+
+import uk.co.trenddevs.plugin.cba.archive.ZipReader;
+import uk.co.trenddevs.plugin.cba.manifest.Clause;
+
+/**
+ * The OSGi headers of a jar that the cba needs, read once from its META-INF/MANIFEST.MF.
+ *
+ * Metadata describes one version of a file: it remembers the size and modification time
+ * the jar had when it was read, so stale metadata can be detected.
+ *
+ * @version $Id: $
+ */
+public class BundleMetadata {
+
+    public static final String BUNDLE_SYMBOLIC_NAME = "Bundle-SymbolicName";
+    public static final String BUNDLE_VERSION = "Bundle-Version";
+    public static final String BUNDLE_MANIFEST_VERSION = "Bundle-ManifestVersion";
+    public static final String EXPORT_PACKAGE = "Export-Package";
+    public static final String IMPORT_PACKAGE = "Import-Package";
+
+    private final long size;
+    private final long lastModified;
+    private final boolean bundle;
+    private final String symbolicName;
+    private final String manifestVersion;
+    private final String version;
+    private final String exportPackage;
+    private final String importPackage;
+    private final String analyzedExportPackage;
+    private final String analyzedImportPackage;
+
+    /**
+     * @param bundle whether the manifest declares a Bundle-SymbolicName
+     * @param symbolicName the declared symbolic name without its directives, or the one derived for a plain jar
+     */
+    public BundleMetadata(long size, long lastModified, boolean bundle, String symbolicName, String manifestVersion,
+                          String version, String exportPackage, String importPackage) {
+        this(size, lastModified, bundle, symbolicName, manifestVersion, version, exportPackage, importPackage, null, null);
+    }
+
+    /**
+     * @param analyzedExportPackage exports computed by {@link BundleAnalyzer}, null when the jar was not analyzed
+     * @param analyzedImportPackage imports computed by {@link BundleAnalyzer}, null when the jar was not analyzed
+     */
+    public BundleMetadata(long size, long lastModified, boolean bundle, String symbolicName, String manifestVersion,
+                          String version, String exportPackage, String importPackage,
+                          String analyzedExportPackage, String analyzedImportPackage) {
+        this.size = size;
+        this.lastModified = lastModified;
+        this.bundle = bundle;
+        this.symbolicName = symbolicName;
+        this.manifestVersion = manifestVersion;
+        this.version = version;
+        this.exportPackage = exportPackage;
+        this.importPackage = importPackage;
+        this.analyzedExportPackage = analyzedExportPackage;
+        this.analyzedImportPackage = analyzedImportPackage;
+    }
+
+    /**
+     * Reads the manifest of a jar. Plain jars yield metadata without a symbolic name.
+     */
+    public static BundleMetadata read(File jar) throws IOException {
+        // only the central directory and the manifest entry are read, not the rest of the jar
+        Attributes attributes = null;
+        ZipReader reader = new ZipReader(jar);
+        try {
+            ZipReader.Entry entry = reader.getEntry(JarFile.MANIFEST_NAME);
+            if (entry != null)
+                attributes = new Manifest(new ByteArrayInputStream(reader.readContent(entry))).getMainAttributes();
+        } finally {
+            reader.close();
+        }
+        return fromAttributes(attributes, jar.length(), jar.lastModified());
+    }
+
+    /**
+     * The metadata of a jar with the given manifest attributes, null for a jar without a manifest.
+     */
+    public static BundleMetadata fromAttributes(Attributes attributes, long size, long lastModified) {
+        if (attributes == null)
+            return new BundleMetadata(size, lastModified, false, null, null, null, null, null);
+
+        String symbolicName = null;
+        List<Clause> clauses = Clause.parse(attributes.getValue(BUNDLE_SYMBOLIC_NAME));
+        if (!clauses.isEmpty())
+            symbolicName = clauses.get(0).getName();
+        return new BundleMetadata(size, lastModified, symbolicName != null, symbolicName,
+                                  attributes.getValue(BUNDLE_MANIFEST_VERSION), attributes.getValue(BUNDLE_VERSION),
+                                  attributes.getValue(EXPORT_PACKAGE), attributes.getValue(IMPORT_PACKAGE));
+    }
+
+    /**
+     * Copy with another symbolic name, used for plain jars whose name is derived from their coordinates.
+     */
+    public BundleMetadata withSymbolicName(String symbolicName) {
+        return new BundleMetadata(size, lastModified, bundle, symbolicName, manifestVersion, version, exportPackage, importPackage,
+                                  analyzedExportPackage, analyzedImportPackage);
+    }
+
+    /**
+     * Copy completed with the packages bnd found the jar to export and import.
+     */
+    public BundleMetadata withAnalysis(String analyzedExportPackage, String analyzedImportPackage) {
+        return new BundleMetadata(size, lastModified, bundle, symbolicName, manifestVersion, version, exportPackage, importPackage,
+                                  analyzedExportPackage, analyzedImportPackage);
+    }
+
+    /**
+     * Whether this metadata was read from the file as it is now.
+     */
+    public boolean isCurrent(File jar) {
+        return jar.length() == size && jar.lastModified() == lastModified;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public boolean isBundle() {
+        return bundle;
+    }
+
+    public String getSymbolicName() {
+        return symbolicName;
+    }
+
+    /**
+     * Bundle-ManifestVersion, "2" for bundles following the R4 specification or later.
+     */
+    public String getManifestVersion() {
+        return manifestVersion;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getExportPackage() {
+        return exportPackage;
+    }
+
+    public String getImportPackage() {
+        return importPackage;
+    }
+
+    public boolean isAnalyzed() {
+        return analyzedExportPackage != null && analyzedImportPackage != null;
+    }
+
+    public String getAnalyzedExportPackage() {
+        return analyzedExportPackage;
+    }
+
+    public String getAnalyzedImportPackage() {
+        return analyzedImportPackage;
+    }
+
+    public List<Clause> getExports() {
+        return Clause.parse(exportPackage);
+    }
+
+    public List<Clause> getImports() {
+        return Clause.parse(importPackage);
+    }
+}
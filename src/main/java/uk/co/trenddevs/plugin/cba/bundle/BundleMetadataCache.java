@@ -0,0 +1,315 @@
+package uk.co.trenddevs.plugin.cba.bundle;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipException;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.shared.osgi.Maven2OsgiConverter;
+import org.codehaus.plexus.util.IOUtil;
+import uk.co.trenddevs.plugin.cba.archive.ChecksumOutputStream;
+
+/**
+ * Cache of {@link BundleMetadata} keyed on the absolute path of a jar and validated against
+ * its size and modification time.
+ *
+ * The in-memory cache is shared by every module of a build, as the plugin classes are loaded
+ * once per session; it is safe to use from several threads. It can be loaded from and stored
+ * to a properties file so that later builds do not open unchanged jars at all. The content
+ * hashes of jars are kept the same way.
+ *
+ * Each build uses its own {@link #forBuild() view} of the shared cache, which is modified and
+ * stored on its own and stores only the jars that build asked about.
+ *
+ * @version $Id: $
+ */
+public class BundleMetadataCache {
+
+    private static final String SYMBOLIC_NAME = "|symbolicName";
+    private static final String MANIFEST_VERSION = "|manifestVersion";
+    private static final String VERSION = "|version";
+    private static final String EXPORT_PACKAGE = "|exportPackage";
+    private static final String IMPORT_PACKAGE = "|importPackage";
+    private static final String ANALYZED_EXPORT_PACKAGE = "|analyzedExportPackage";
+    private static final String ANALYZED_IMPORT_PACKAGE = "|analyzedImportPackage";
+    private static final String CONTENT_HASH = "|contentHash";
+
+    private static final String[] SHA_1 = {"SHA-1"};
+
+    private static final BundleMetadataCache SESSION = new BundleMetadataCache();
+
+    private final Map<String, BundleMetadata> entries;
+
+    // size,lastModified,sha1 by absolute path
+    private final Map<String, String> hashes;
+
+    // the keys asked about, null when every entry is stored
+    private final Set<String> used;
+
+    // the keys found in the file this cache was loaded from
+    private final Set<String> loaded = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private volatile boolean modified;
+
+    public BundleMetadataCache() {
+        entries = new ConcurrentHashMap<String, BundleMetadata>();
+        hashes = new ConcurrentHashMap<String, String>();
+        used = null;
+    }
+
+    private BundleMetadataCache(BundleMetadataCache shared) {
+        entries = shared.entries;
+        hashes = shared.hashes;
+        used = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    }
+
+    /**
+     * The cache shared by all cba builds in this JVM.
+     */
+    public static BundleMetadataCache getSessionCache() {
+        return SESSION;
+    }
+
+    /**
+     * A view of this cache for one build, sharing its entries. The view is modified when the
+     * build reads a jar or uses an entry its own file does not hold yet, and stores only the
+     * entries the build used.
+     */
+    public BundleMetadataCache forBuild() {
+        return new BundleMetadataCache(this);
+    }
+
+    /**
+     * Returns the metadata of an artifact's jar, reading it only when it is not cached or the jar has changed.
+     * Plain jars get the symbolic name the converter derives from their coordinates, and so do
+     * artifacts without a file, reactor output directories and files that are not zips, which are
+     * given no packages to analyze.
+     */
+    public BundleMetadata get(Artifact artifact, Maven2OsgiConverter converter) throws IOException {
+        if (artifact.getFile() == null || !artifact.getFile().isFile())
+            return BundleMetadata.fromAttributes(null, 0, 0).withAnalysis("", "")
+                                 .withSymbolicName(converter.getBundleSymbolicName(artifact));
+        File file = artifact.getFile().getAbsoluteFile();
+        String key = file.getPath();
+        use(key);
+        BundleMetadata metadata = entries.get(key);
+        if (metadata != null && metadata.isCurrent(file))
+            return metadata;
+
+        // concurrent misses on the same jar may read it twice, which is harmless
+        try {
+            metadata = BundleMetadata.read(file);
+            if (!metadata.isBundle())
+                metadata = metadata.withSymbolicName(converter.getBundleSymbolicName(artifact));
+        } catch (ZipException e) {
+            // the converter cannot read such a file either
+            metadata = BundleMetadata.fromAttributes(null, file.length(), file.lastModified()).withAnalysis("", "")
+                                     .withSymbolicName(converter.getBundleSymbolicName(withoutFile(artifact)));
+        }
+        entries.put(key, metadata);
+        modified = true;
+        return metadata;
+    }
+
+    /**
+     * The artifact without its file, which the converter names after its coordinates alone.
+     */
+    private static Artifact withoutFile(final Artifact artifact) {
+        return (Artifact) Proxy.newProxyInstance(Artifact.class.getClassLoader(), new Class[] { Artifact.class },
+                                                 new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if ("getFile".equals(method.getName()))
+                    return null;
+                try {
+                    return method.invoke(artifact, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        });
+    }
+
+    /**
+     * Like {@link #get(Artifact, Maven2OsgiConverter)}, with the packages bnd finds the jar to export and import.
+     * Only jars that changed or were never analyzed are analyzed again.
+     */
+    public BundleMetadata getAnalyzed(Artifact artifact, Maven2OsgiConverter converter) throws IOException {
+        BundleMetadata metadata = get(artifact, converter);
+        if (metadata.isAnalyzed())
+            return metadata;
+        metadata = BundleAnalyzer.analyze(metadata, artifact.getFile());
+        entries.put(artifact.getFile().getAbsoluteFile().getPath(), metadata);
+        modified = true;
+        return metadata;
+    }
+
+    /**
+     * SHA-1 of an artifact's jar, computed only when it is not cached or the jar has changed.
+     */
+    public String getContentHash(Artifact artifact) throws IOException {
+        return getContentHash(artifact.getFile());
+    }
+
+    /**
+     * SHA-1 of a file, computed only when it is not cached or the file has changed.
+     */
+    public String getContentHash(File jar) throws IOException {
+        File file = jar.getAbsoluteFile();
+        String stamp = file.length() + "," + file.lastModified() + ",";
+        use(file.getPath() + CONTENT_HASH);
+        String hash = hashes.get(file.getPath());
+        if (hash != null && hash.startsWith(stamp))
+            return hash.substring(stamp.length());
+
+        String digest = ChecksumOutputStream.checksum(file, SHA_1).get("SHA-1");
+        hashes.put(file.getPath(), stamp + digest);
+        modified = true;
+        return digest;
+    }
+
+    private void use(String key) {
+        if (used != null && used.add(key) && !loaded.contains(key))
+            modified = true;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Whether entries were read, or for a build's view used without being in its file, since the
+     * cache was created or last stored.
+     */
+    public boolean isModified() {
+        return modified;
+    }
+
+    /**
+     * Adds the entries of a stored cache that are not known yet. A missing file is not an error.
+     */
+    public void load(File file) throws IOException {
+        if (!file.isFile())
+            return;
+        Properties properties = new Properties();
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file));
+            properties.load(in);
+        } finally {
+            IOUtil.close(in);
+        }
+
+        for (Iterator iter = properties.keySet().iterator(); iter.hasNext(); ) {
+            String key = (String) iter.next();
+            if (key.endsWith(CONTENT_HASH) || key.indexOf('|') < 0)
+                loaded.add(key);
+            if (key.endsWith(CONTENT_HASH)) {
+                String path = key.substring(0, key.length() - CONTENT_HASH.length());
+                if (!hashes.containsKey(path))
+                    hashes.put(path, properties.getProperty(key));
+                continue;
+            }
+            if (key.indexOf('|') >= 0 || entries.containsKey(key))
+                continue;
+            String[] state = properties.getProperty(key).split(",");
+            if (state.length != 3)
+                continue;
+            try {
+                entries.put(key, new BundleMetadata(Long.parseLong(state[0]), Long.parseLong(state[1]),
+                                                    Boolean.valueOf(state[2]).booleanValue(),
+                                                    properties.getProperty(key + SYMBOLIC_NAME),
+                                                    properties.getProperty(key + MANIFEST_VERSION),
+                                                    properties.getProperty(key + VERSION),
+                                                    properties.getProperty(key + EXPORT_PACKAGE),
+                                                    properties.getProperty(key + IMPORT_PACKAGE),
+                                                    properties.getProperty(key + ANALYZED_EXPORT_PACKAGE),
+                                                    properties.getProperty(key + ANALYZED_IMPORT_PACKAGE)));
+            } catch (NumberFormatException e) {
+                // a damaged entry is read again from the jar
+            }
+        }
+    }
+
+    /**
+     * Writes all entries, or those a build's view used, replacing the file in one step.
+     */
+    public synchronized void store(File file) throws IOException {
+        Properties properties = new Properties();
+        for (Map.Entry<String, BundleMetadata> entry : entries.entrySet()) {
+            String key = entry.getKey();
+            if (used != null && !used.contains(key))
+                continue;
+            BundleMetadata metadata = entry.getValue();
+            properties.setProperty(key, metadata.getSize() + "," + metadata.getLastModified() + "," + metadata.isBundle());
+            setOptional(properties, key + SYMBOLIC_NAME, metadata.getSymbolicName());
+            setOptional(properties, key + MANIFEST_VERSION, metadata.getManifestVersion());
+            setOptional(properties, key + VERSION, metadata.getVersion());
+            setOptional(properties, key + EXPORT_PACKAGE, metadata.getExportPackage());
+            setOptional(properties, key + IMPORT_PACKAGE, metadata.getImportPackage());
+            setOptional(properties, key + ANALYZED_EXPORT_PACKAGE, metadata.getAnalyzedExportPackage());
+            setOptional(properties, key + ANALYZED_IMPORT_PACKAGE, metadata.getAnalyzedImportPackage());
+        }
+        for (Map.Entry<String, String> hash : hashes.entrySet()) {
+            if (used != null && !used.contains(hash.getKey() + CONTENT_HASH))
+                continue;
+            properties.setProperty(hash.getKey() + CONTENT_HASH, hash.getValue());
+        }
+
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(temp));
+            properties.store(out, "cba-maven-plugin bundle metadata");
+        } finally {
+            IOUtil.close(out);
+        }
+        if ((file.exists() && !file.delete()) || !temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+        loaded.clear();
+        loaded.addAll(properties.stringPropertyNames());
+        modified = false;
+    }
+
+    private static void setOptional(Properties properties, String key, String value) {
+        if (value != null)
+            properties.setProperty(key, value);
+    }
+}
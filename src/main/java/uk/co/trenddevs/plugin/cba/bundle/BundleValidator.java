@@ -0,0 +1,126 @@
+package uk.co.trenddevs.plugin.cba.bundle;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.shared.osgi.Maven2OsgiConverter;
+import uk.co.trenddevs.plugin.cba.archive.DaemonThreadFactory;
+
+/**
+ * Checks that artifacts are OSGi bundles: their manifest must declare a Bundle-SymbolicName
+ * and Bundle-ManifestVersion 2.
+ *
+ * Artifacts are checked concurrently through a {@link BundleMetadataCache}, which reads
+ * no more than the central directory and the manifest of each jar, and every problem is
+ * reported at once.
+ *
+ * @version $Id: $
+ */
+public class BundleValidator {
+
+    private final BundleMetadataCache cache;
+    private final Maven2OsgiConverter converter;
+    private final int threads;
+
+    /**
+     * @param threads number of jars read at once; values below one select one per available processor
+     */
+    public BundleValidator(BundleMetadataCache cache, Maven2OsgiConverter converter, int threads) {
+        this.cache = cache;
+        this.converter = converter;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Returns one message per artifact that is not a valid bundle, in the order of the artifacts.
+     */
+    public List<String> validate(Collection<Artifact> artifacts) throws InterruptedException {
+        List<String> problems = new ArrayList<String>();
+        if (artifacts.isEmpty())
+            return problems;
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, artifacts.size()), new DaemonThreadFactory("cba-validator-"));
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>(artifacts.size());
+            for (Artifact artifact : artifacts) {
+                results.add(executor.submit(new ValidateTask(artifact)));
+            }
+            for (Future<String> result : results) {
+                String problem;
+                try {
+                    problem = result.get();
+                } catch (ExecutionException e) {
+                    problem = String.valueOf(e.getCause());
+                }
+                if (problem != null)
+                    problems.add(problem);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return problems;
+    }
+
+    /**
+     * The problem of a single artifact, or null when it is a valid bundle.
+     */
+    String check(Artifact artifact) {
+        File file = artifact.getFile();
+        if (file == null || !file.isFile())
+            return artifact.getId() + ": file " + file + " does not exist";
+        try {
+            BundleMetadata metadata = cache.get(artifact, converter);
+            if (!metadata.isBundle())
+                return artifact.getId() + ": " + file.getName() + " has no " + BundleMetadata.BUNDLE_SYMBOLIC_NAME;
+            if (!"2".equals(metadata.getManifestVersion()))
+                return artifact.getId() + ": " + file.getName() + " has " + BundleMetadata.BUNDLE_MANIFEST_VERSION + " "
+                    + metadata.getManifestVersion() + " instead of 2";
+            return null;
+        } catch (IOException e) {
+            return artifact.getId() + ": " + file.getName() + " cannot be read: " + e.getMessage();
+        } catch (RuntimeException e) {
+            return artifact.getId() + ": " + file.getName() + " has an invalid manifest: " + e.getMessage();
+        }
+    }
+
+    private class ValidateTask implements Callable<String> {
+
+        private final Artifact artifact;
+
+        ValidateTask(Artifact artifact) {
+            this.artifact = artifact;
+        }
+
+        public String call() {
+            return check(artifact);
+        }
+    }
+}
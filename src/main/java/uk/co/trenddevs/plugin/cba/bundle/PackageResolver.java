@@ -0,0 +1,161 @@
+package uk.co.trenddevs.plugin.cba.bundle;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.co.trenddevs.plugin.cba.manifest.Clause;
+
+/**
+ * Offline check of the package wiring inside a composite bundle.
+ *
+ * Every Import-Package of the content bundles must be satisfied by a content bundle exporting
+ * the package in a matching version, or be imported by the composite itself. Exports are
+ * indexed by package name, so each import is checked by a hash lookup followed by a look at
+ * the few versions exported for that package. Optional imports and java.* packages are not checked.
+ *
+ * @version $Id: $
+ */
+public class PackageResolver {
+
+    private static final String VERSION = "version";
+    private static final String SPECIFICATION_VERSION = "specification-version";
+    private static final String RESOLUTION = "resolution";
+    private static final String OPTIONAL = "optional";
+
+    private final Map<String, List<Export>> exports = new HashMap<String, List<Export>>();
+    private final Map<String, Clause> compositeImports = new HashMap<String, Clause>();
+    private final List<Bundle> bundles = new ArrayList<Bundle>();
+    private final List<String> ignoredPrefixes = new ArrayList<String>();
+    private final Map<String, Boolean> ignoredPackages = new HashMap<String, Boolean>();
+
+    public PackageResolver() {
+        ignore("java.*");
+    }
+
+    /**
+     * Adds a content bundle with its Export-Package and Import-Package clauses.
+     */
+    public void addBundle(String symbolicName, List<Clause> exportClauses, List<Clause> importClauses) {
+        for (Clause export : exportClauses) {
+            List<Export> versions = exports.get(export.getName());
+            if (versions == null) {
+                versions = new ArrayList<Export>(1);
+                exports.put(export.getName(), versions);
+            }
+            versions.add(new Export(symbolicName, Version.parse(getVersion(export))));
+        }
+        bundles.add(new Bundle(symbolicName, importClauses));
+    }
+
+    /**
+     * Adds a package imported by the composite, which satisfies the imports of all content bundles.
+     */
+    public void addCompositeImport(Clause importClause) {
+        compositeImports.put(importClause.getName(), importClause);
+    }
+
+    /**
+     * Packages that are never reported, either names or prefixes ending in ".*".
+     */
+    public void ignore(String pattern) {
+        if (pattern.endsWith(".*"))
+            ignoredPrefixes.add(pattern.substring(0, pattern.length() - 1));
+        else
+            ignoredPackages.put(pattern, Boolean.TRUE);
+    }
+
+    /**
+     * Returns one message per unsatisfied import, bundle by bundle.
+     * @throws IllegalArgumentException for malformed versions
+     */
+    public List<String> resolve() {
+        List<String> problems = new ArrayList<String>();
+        for (Bundle bundle : bundles) {
+            for (Clause importClause : bundle.imports) {
+                String problem = check(bundle, importClause);
+                if (problem != null)
+                    problems.add(problem);
+            }
+        }
+        return problems;
+    }
+
+    private String check(Bundle bundle, Clause importClause) {
+        String name = importClause.getName();
+        if (OPTIONAL.equals(importClause.getDirective(RESOLUTION)) || isIgnored(name) || compositeImports.containsKey(name))
+            return null;
+
+        VersionRange range = VersionRange.parse(getVersion(importClause));
+        List<Export> candidates = exports.get(name);
+        if (candidates == null)
+            return bundle.symbolicName + " imports " + name + " " + range
+                + " which no content bundle exports and the composite does not import";
+        for (Export export : candidates) {
+            if (range.includes(export.version))
+                return null;
+        }
+        return bundle.symbolicName + " imports " + name + " " + range + " but content bundles only export " + candidates;
+    }
+
+    private boolean isIgnored(String name) {
+        if (ignoredPackages.containsKey(name))
+            return true;
+        for (String prefix : ignoredPrefixes) {
+            if (name.startsWith(prefix))
+                return true;
+        }
+        return false;
+    }
+
+    private static String getVersion(Clause clause) {
+        String version = clause.getAttribute(VERSION);
+        return version != null ? version : clause.getAttribute(SPECIFICATION_VERSION);
+    }
+
+    private static class Bundle {
+
+        private final String symbolicName;
+        private final List<Clause> imports;
+
+        Bundle(String symbolicName, List<Clause> imports) {
+            this.symbolicName = symbolicName;
+            this.imports = imports;
+        }
+    }
+
+    private static class Export {
+
+        private final String symbolicName;
+        private final Version version;
+
+        Export(String symbolicName, Version version) {
+            this.symbolicName = symbolicName;
+            this.version = version;
+        }
+
+        public String toString() {
+            return version + " (" + symbolicName + ")";
+        }
+    }
+}
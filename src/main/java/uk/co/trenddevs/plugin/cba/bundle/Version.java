@@ -0,0 +1,90 @@
+package uk.co.trenddevs.plugin.cba.bundle;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * OSGi version: major.minor.micro.qualifier, where missing numbers are 0 and the qualifier
+ * is compared as a string.
+ *
+ * @version $Id: $
+ */
+public class Version implements Comparable<Version> {
+
+    public static final Version EMPTY = new Version(0, 0, 0, "");
+
+    private final int major;
+    private final int minor;
+    private final int micro;
+    private final String qualifier;
+
+    public Version(int major, int minor, int micro, String qualifier) {
+        this.major = major;
+        this.minor = minor;
+        this.micro = micro;
+        this.qualifier = qualifier == null ? "" : qualifier;
+    }
+
+    /**
+     * Parses a version; null and blank values are {@link #EMPTY}.
+     * @throws IllegalArgumentException for anything that is not an OSGi version
+     */
+    public static Version parse(String value) {
+        if (value == null || value.trim().length() == 0)
+            return EMPTY;
+        String[] parts = value.trim().split("\\.", 4);
+        try {
+            return new Version(Integer.parseInt(parts[0]),
+                               parts.length > 1 ? Integer.parseInt(parts[1]) : 0,
+                               parts.length > 2 ? Integer.parseInt(parts[2]) : 0,
+                               parts.length > 3 ? parts[3] : "");
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid version: " + value);
+        }
+    }
+
+    /**
+     * The versions that differ from this one in their qualifier only.
+     */
+    public VersionRange ignoringQualifier() {
+        return new VersionRange(new Version(major, minor, micro, ""), true, new Version(major, minor, micro + 1, ""), false);
+    }
+
+    public int compareTo(Version other) {
+        if (major != other.major)
+            return major < other.major ? -1 : 1;
+        if (minor != other.minor)
+            return minor < other.minor ? -1 : 1;
+        if (micro != other.micro)
+            return micro < other.micro ? -1 : 1;
+        return qualifier.compareTo(other.qualifier);
+    }
+
+    public boolean equals(Object other) {
+        return other instanceof Version && compareTo((Version) other) == 0;
+    }
+
+    public int hashCode() {
+        return ((major * 31 + minor) * 31 + micro) * 31 + qualifier.hashCode();
+    }
+
+    public String toString() {
+        return major + "." + minor + "." + micro + (qualifier.length() > 0 ? "." + qualifier : "");
+    }
+}
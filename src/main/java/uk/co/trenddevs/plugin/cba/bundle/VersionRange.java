@@ -0,0 +1,82 @@
+package uk.co.trenddevs.plugin.cba.bundle;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * OSGi version range such as [1.0,2.0) or (1.0,1.5]. A single version means that version
+ * or any later one, and no version at all means any version.
+ *
+ * @version $Id: $
+ */
+public class VersionRange {
+
+    public static final VersionRange ANY = new VersionRange(Version.EMPTY, true, null, false);
+
+    private final Version floor;
+    private final boolean floorInclusive;
+    private final Version ceiling;
+    private final boolean ceilingInclusive;
+
+    /**
+     * @param ceiling null for no upper bound
+     */
+    public VersionRange(Version floor, boolean floorInclusive, Version ceiling, boolean ceilingInclusive) {
+        this.floor = floor;
+        this.floorInclusive = floorInclusive;
+        this.ceiling = ceiling;
+        this.ceilingInclusive = ceilingInclusive;
+    }
+
+    /**
+     * Parses a range; null and blank values are {@link #ANY}.
+     * @throws IllegalArgumentException for malformed ranges
+     */
+    public static VersionRange parse(String value) {
+        if (value == null || value.trim().length() == 0)
+            return ANY;
+        String range = value.trim();
+        char first = range.charAt(0);
+        if (first != '[' && first != '(')
+            return new VersionRange(Version.parse(range), true, null, false);
+
+        char last = range.charAt(range.length() - 1);
+        int comma = range.indexOf(',');
+        if ((last != ']' && last != ')') || comma < 0)
+            throw new IllegalArgumentException("Invalid version range: " + value);
+        return new VersionRange(Version.parse(range.substring(1, comma)), first == '[',
+                                Version.parse(range.substring(comma + 1, range.length() - 1)), last == ']');
+    }
+
+    public boolean includes(Version version) {
+        int low = version.compareTo(floor);
+        if (low < 0 || (low == 0 && !floorInclusive))
+            return false;
+        if (ceiling == null)
+            return true;
+        int high = version.compareTo(ceiling);
+        return high < 0 || (high == 0 && ceilingInclusive);
+    }
+
+    public String toString() {
+        if (ceiling == null)
+            return floor.toString();
+        return (floorInclusive ? "[" : "(") + floor + "," + ceiling + (ceilingInclusive ? "]" : ")");
+    }
+}
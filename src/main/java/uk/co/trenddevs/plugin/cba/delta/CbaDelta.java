@@ -0,0 +1,420 @@
+package uk.co.trenddevs.plugin.cba.delta;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.Manifest;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+import org.codehaus.plexus.util.IOUtil;
+import uk.co.trenddevs.plugin.cba.archive.ChecksumOutputStream;
+import uk.co.trenddevs.plugin.cba.archive.CompressedEntry;
+import uk.co.trenddevs.plugin.cba.archive.CompressionPolicy;
+import uk.co.trenddevs.plugin.cba.archive.EntryCompressor;
+import uk.co.trenddevs.plugin.cba.archive.ZipReader;
+import uk.co.trenddevs.plugin.cba.archive.ZipWriter;
+
+/**
+ * Creates and applies the delta between a baseline cba and a later one.
+ *
+ * The delta is a zip holding the entries of the later cba that were added or changed,
+ * their data copied as compressed in the cba, along with the names of the removed entries
+ * and a layout describing the later cba byte by byte: ranges copied from the baseline,
+ * entry data taken from the delta, and the few literal bytes around them, such as headers
+ * that differ and the central directory. Entries are unchanged when their name, CRC, size
+ * and compression match. Applying the delta to the baseline therefore rebuilds the later
+ * cba exactly, which the SHA-256 recorded in the delta confirms.
+ *
+ * @version $Id: $
+ */
+public class CbaDelta {
+
+    public static final String MANIFEST_NAME = "META-INF/CBA-DELTA.MF";
+    public static final String REMOVED_NAME = "META-INF/cba-delta/removed.txt";
+    public static final String LAYOUT_NAME = "META-INF/cba-delta/layout";
+
+    private static final String VERSION = "1";
+    private static final String DIGEST = "SHA-256";
+    private static final int FILE_MODE = 0100644;
+    private static final int DIRECTORY_MODE = 040755;
+
+    private static final int COPY = 'C';
+    private static final int BYTES = 'B';
+    private static final int DATA = 'D';
+    private static final int END = 'E';
+
+    private static final Comparator<ZipReader.Entry> BY_OFFSET = new Comparator<ZipReader.Entry>() {
+        public int compare(ZipReader.Entry a, ZipReader.Entry b) {
+            return a.getLocalHeaderOffset() < b.getLocalHeaderOffset() ? -1
+                : a.getLocalHeaderOffset() == b.getLocalHeaderOffset() ? 0 : 1;
+        }
+    };
+
+    private CbaDelta() {
+    }
+
+    /**
+     * Writes the delta turning baseline into target.
+     * @throws ZipException when either file is not a readable zip
+     */
+    public static Result create(File baseline, File target, File delta) throws IOException {
+        Result result = new Result();
+        ZipReader base = new ZipReader(baseline);
+        ZipReader next = null;
+        OutputStream out = null;
+        File temp = new File(delta.getPath() + ".tmp");
+        try {
+            next = new ZipReader(target);
+            Map<String, Long> baseEnds = getEntryEnds(base);
+            EntryCompressor compressor = new EntryCompressor(new CompressionPolicy(Deflater.BEST_COMPRESSION));
+            delta.getAbsoluteFile().getParentFile().mkdirs();
+            out = new BufferedOutputStream(new FileOutputStream(temp), 64 * 1024);
+            ZipWriter writer = new ZipWriter(out);
+            Layout layout = new Layout();
+
+            List<ZipReader.Entry> entries = sortByOffset(next);
+            long position = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                ZipReader.Entry entry = entries.get(i);
+                long start = entry.getLocalHeaderOffset();
+                long end = i + 1 < entries.size() ? entries.get(i + 1).getLocalHeaderOffset() : next.getCentralDirectoryOffset();
+                long dataStart = next.getDataOffset(entry);
+                long dataEnd = dataStart + entry.getCompressedSize();
+                if (start < position || dataEnd > end)
+                    throw new ZipException("Overlapping entries in " + target);
+                layout.bytes(readBytes(next, position, start));
+                byte[] header = readBytes(next, start, dataStart);
+                byte[] trailer = readBytes(next, dataEnd, end);
+
+                ZipReader.Entry old = base.getEntry(entry.getName());
+                if (old != null && isUnchanged(old, entry)) {
+                    long oldStart = old.getLocalHeaderOffset();
+                    long oldDataStart = base.getDataOffset(old);
+                    long oldDataEnd = oldDataStart + old.getCompressedSize();
+                    long oldEnd = baseEnds.get(old.getName()).longValue();
+                    if (Arrays.equals(header, readBytes(base, oldStart, oldDataStart))
+                        && Arrays.equals(trailer, readBytes(base, oldDataEnd, oldEnd))) {
+                        layout.copy(oldStart, end - start);
+                    } else {
+                        layout.bytes(header);
+                        layout.copy(oldDataStart, entry.getCompressedSize());
+                        layout.bytes(trailer);
+                    }
+                    result.copiedBytes += end - start;
+                    result.unchanged++;
+                } else {
+                    layout.bytes(header);
+                    layout.data(entry.getName());
+                    layout.bytes(trailer);
+                    byte[] data = next.readRaw(entry);
+                    writer.write(new CompressedEntry(entry.getName(), entry.getMethod(), entry.getCrc(), entry.getSize(),
+                                                     data, data.length, entry.getTime(), entry.isDirectory() ? DIRECTORY_MODE : FILE_MODE));
+                    result.dataBytes += data.length;
+                    (old == null ? result.added : result.changed).add(entry.getName());
+                }
+                position = end;
+            }
+            layout.bytes(readBytes(next, position, target.length()));
+
+            StringBuffer removed = new StringBuffer();
+            for (ZipReader.Entry entry : base.getEntries()) {
+                if (next.getEntry(entry.getName()) == null) {
+                    result.removed.add(entry.getName());
+                    removed.append(entry.getName()).append('\n');
+                }
+            }
+
+            Manifest manifest = new Manifest();
+            Attributes attributes = manifest.getMainAttributes();
+            attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            attributes.putValue("Delta-Version", VERSION);
+            attributes.putValue("Baseline-Size", String.valueOf(baseline.length()));
+            attributes.putValue("Baseline-" + DIGEST, digest(baseline));
+            attributes.putValue("Target-Size", String.valueOf(target.length()));
+            attributes.putValue("Target-" + DIGEST, digest(target));
+            attributes.putValue("Added-Entries", String.valueOf(result.added.size()));
+            attributes.putValue("Changed-Entries", String.valueOf(result.changed.size()));
+            attributes.putValue("Removed-Entries", String.valueOf(result.removed.size()));
+            attributes.putValue("Unchanged-Entries", String.valueOf(result.unchanged));
+            ByteArrayOutputStream manifestBytes = new ByteArrayOutputStream();
+            manifest.write(manifestBytes);
+
+            long time = target.lastModified();
+            writer.write(compressor.compress(MANIFEST_NAME, manifestBytes.toByteArray(), time, FILE_MODE));
+            writer.write(compressor.compress(REMOVED_NAME, removed.toString().getBytes("UTF-8"), time, FILE_MODE));
+            writer.write(compressor.compress(LAYOUT_NAME, layout.toByteArray(), time, FILE_MODE));
+            writer.finish();
+            out.close();
+            out = null;
+        } finally {
+            IOUtil.close(out);
+            base.close();
+            if (next != null)
+                next.close();
+            if (out != null)
+                temp.delete();
+        }
+        if (!replaced(temp, delta))
+            throw new IOException("Unable to replace " + delta);
+        return result;
+    }
+
+    /**
+     * Rebuilds the cba the delta was made for from its baseline.
+     * @throws IOException when the baseline is not the one the delta was made against, or the rebuilt cba differs
+     */
+    public static void apply(File baseline, File delta, File target) throws IOException {
+        ZipReader reader = new ZipReader(delta);
+        RandomAccessFile base = null;
+        OutputStream out = null;
+        File temp = new File(target.getPath() + ".tmp");
+        try {
+            ZipReader.Entry manifestEntry = reader.getEntry(MANIFEST_NAME);
+            ZipReader.Entry layoutEntry = reader.getEntry(LAYOUT_NAME);
+            if (manifestEntry == null || layoutEntry == null)
+                throw new ZipException(delta + " is not a cba delta");
+            Attributes attributes = new Manifest(new ByteArrayInputStream(reader.readContent(manifestEntry))).getMainAttributes();
+            if (!VERSION.equals(attributes.getValue("Delta-Version")))
+                throw new ZipException("Unsupported cba delta version " + attributes.getValue("Delta-Version") + " in " + delta);
+            if (!String.valueOf(baseline.length()).equals(attributes.getValue("Baseline-Size"))
+                || !digest(baseline).equals(attributes.getValue("Baseline-" + DIGEST)))
+                throw new IOException(baseline + " is not the baseline " + delta + " was made against");
+
+            base = new RandomAccessFile(baseline, "r");
+            target.getAbsoluteFile().getParentFile().mkdirs();
+            ChecksumOutputStream checksum = new ChecksumOutputStream(new FileOutputStream(temp), new String[] {DIGEST});
+            out = new BufferedOutputStream(checksum, 64 * 1024);
+            DataInputStream layout = new DataInputStream(new ByteArrayInputStream(reader.readContent(layoutEntry)));
+            byte[] buffer = new byte[64 * 1024];
+            long size = 0;
+            for (int type = layout.read(); type != END; type = layout.read()) {
+                if (type == COPY) {
+                    base.seek(layout.readLong());
+                    long length = layout.readLong();
+                    size += length;
+                    while (length > 0) {
+                        int read = (int) Math.min(buffer.length, length);
+                        base.readFully(buffer, 0, read);
+                        out.write(buffer, 0, read);
+                        length -= read;
+                    }
+                } else if (type == BYTES) {
+                    byte[] bytes = new byte[layout.readInt()];
+                    layout.readFully(bytes);
+                    out.write(bytes);
+                    size += bytes.length;
+                } else if (type == DATA) {
+                    String name = layout.readUTF();
+                    ZipReader.Entry entry = reader.getEntry(name);
+                    if (entry == null)
+                        throw new ZipException("Entry " + name + " is missing from " + delta);
+                    byte[] data = reader.readRaw(entry);
+                    out.write(data);
+                    size += data.length;
+                } else {
+                    throw new ZipException("Invalid layout in " + delta);
+                }
+            }
+            out.flush();
+            String digest = checksum.getChecksums().get(DIGEST);
+            out.close();
+            out = null;
+            if (!String.valueOf(size).equals(attributes.getValue("Target-Size"))
+                || !digest.equals(attributes.getValue("Target-" + DIGEST))) {
+                temp.delete();
+                throw new IOException("The cba rebuilt from " + delta + " does not match the cba it was made for");
+            }
+        } finally {
+            IOUtil.close(out);
+            if (base != null)
+                base.close();
+            reader.close();
+            if (out != null)
+                temp.delete();
+        }
+        if (!replaced(temp, target))
+            throw new IOException("Unable to replace " + target);
+    }
+
+    private static boolean isUnchanged(ZipReader.Entry old, ZipReader.Entry entry) {
+        return old.getCrc() == entry.getCrc() && old.getSize() == entry.getSize() && old.getMethod() == entry.getMethod()
+            && old.getCompressedSize() == entry.getCompressedSize();
+    }
+
+    /**
+     * Where the record of each entry ends: at the next local header, or at the central directory.
+     */
+    private static Map<String, Long> getEntryEnds(ZipReader zip) {
+        Map<String, Long> ends = new HashMap<String, Long>();
+        List<ZipReader.Entry> entries = sortByOffset(zip);
+        for (int i = 0; i < entries.size(); i++) {
+            long end = i + 1 < entries.size() ? entries.get(i + 1).getLocalHeaderOffset() : zip.getCentralDirectoryOffset();
+            ends.put(entries.get(i).getName(), Long.valueOf(end));
+        }
+        return ends;
+    }
+
+    private static List<ZipReader.Entry> sortByOffset(ZipReader zip) {
+        List<ZipReader.Entry> entries = new ArrayList<ZipReader.Entry>(zip.getEntries());
+        Collections.sort(entries, BY_OFFSET);
+        return entries;
+    }
+
+    private static byte[] readBytes(ZipReader zip, long start, long end) throws IOException {
+        if (end - start > Integer.MAX_VALUE)
+            throw new ZipException("Unexpected data between entries in " + zip.getFile());
+        return end > start ? zip.readBytes(start, (int) (end - start)) : new byte[0];
+    }
+
+    private static String digest(File file) throws IOException {
+        return ChecksumOutputStream.checksum(file, new String[] {DIGEST}).get(DIGEST);
+    }
+
+    private static boolean replaced(File temp, File file) {
+        return (!file.exists() || file.delete()) && temp.renameTo(file);
+    }
+
+    /**
+     * The segments of the later cba, adjacent copies and literal bytes being merged.
+     */
+    private static class Layout {
+
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+        private final ByteArrayOutputStream pendingBytes = new ByteArrayOutputStream();
+        private long copyOffset = -1;
+        private long copyLength;
+
+        void copy(long offset, long length) throws IOException {
+            if (length == 0)
+                return;
+            if (copyOffset >= 0 && copyOffset + copyLength == offset) {
+                copyLength += length;
+                return;
+            }
+            flush();
+            copyOffset = offset;
+            copyLength = length;
+        }
+
+        void bytes(byte[] literal) throws IOException {
+            if (literal.length == 0)
+                return;
+            flushCopy();
+            pendingBytes.write(literal);
+        }
+
+        void data(String name) throws IOException {
+            flush();
+            out.writeByte(DATA);
+            out.writeUTF(name);
+        }
+
+        byte[] toByteArray() throws IOException {
+            flush();
+            out.writeByte(END);
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private void flush() throws IOException {
+            flushCopy();
+            if (pendingBytes.size() > 0) {
+                out.writeByte(BYTES);
+                out.writeInt(pendingBytes.size());
+                pendingBytes.writeTo(out);
+                pendingBytes.reset();
+            }
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyOffset >= 0) {
+                out.writeByte(COPY);
+                out.writeLong(copyOffset);
+                out.writeLong(copyLength);
+                copyOffset = -1;
+            }
+        }
+    }
+
+    /**
+     * What the delta holds.
+     */
+    public static class Result {
+
+        private final List<String> added = new ArrayList<String>();
+        private final List<String> changed = new ArrayList<String>();
+        private final List<String> removed = new ArrayList<String>();
+        private int unchanged;
+        private long copiedBytes;
+        private long dataBytes;
+
+        public List<String> getAdded() {
+            return Collections.unmodifiableList(added);
+        }
+
+        /**
+         * Entries whose content or compression changed.
+         */
+        public List<String> getChanged() {
+            return Collections.unmodifiableList(changed);
+        }
+
+        public List<String> getRemoved() {
+            return Collections.unmodifiableList(removed);
+        }
+
+        public int getUnchanged() {
+            return unchanged;
+        }
+
+        /**
+         * Bytes of the later cba copied from the baseline.
+         */
+        public long getCopiedBytes() {
+            return copiedBytes;
+        }
+
+        /**
+         * Compressed bytes of the added and changed entries.
+         */
+        public long getDataBytes() {
+            return dataBytes;
+        }
+    }
+}
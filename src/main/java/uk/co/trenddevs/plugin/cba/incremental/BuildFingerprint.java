@@ -0,0 +1,223 @@
+package uk.co.trenddevs.plugin.cba.incremental;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Fingerprint of every input that contributes to a cba.
+ *
+ * Inputs are recorded as sorted key/value pairs so that the iteration order of the
+ * project's artifact sets does not affect the result. Files are described by path,
+ * size and modification time, and optionally by a SHA-1 of their content.
+ *
+ * @version $Id: $
+ */
+public class BuildFingerprint {
+
+    /**
+     * Bumped whenever the set of recorded inputs changes, so old fingerprints never match.
+     */
+    private static final String FORMAT_VERSION = "2";
+
+    private static final String DIGEST_KEY = "inputs.sha1";
+    private static final String ARCHIVE_LENGTH_KEY = "archive.length";
+    private static final String ARCHIVE_MODIFIED_KEY = "archive.lastModified";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final SortedMap<String, String> inputs = new TreeMap<String, String>();
+
+    private final boolean hashContents;
+
+    /**
+     * @param hashContents whether file content is hashed in addition to size and modification time
+     */
+    public BuildFingerprint(boolean hashContents) {
+        this.hashContents = hashContents;
+        inputs.put("format", FORMAT_VERSION);
+    }
+
+    /**
+     * Records a plain value, such as a mojo parameter.
+     */
+    public void add(String key, Object value) {
+        inputs.put(key, String.valueOf(value));
+    }
+
+    /**
+     * Records every entry of a map, such as the manifest instructions.
+     */
+    public void addAll(String prefix, Map<?, ?> values) {
+        if (values == null)
+            return;
+        for (Map.Entry<?, ?> entry : values.entrySet()) {
+            add(prefix + "." + entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Records a file; a missing file is recorded as such so that its later appearance is noticed.
+     */
+    public void addFile(String key, File file) throws IOException {
+        if (file == null || !file.isFile()) {
+            add(key, "missing:" + file);
+            return;
+        }
+        StringBuffer value = new StringBuffer();
+        value.append(file.getAbsolutePath()).append('|').append(file.length()).append('|').append(file.lastModified());
+        if (hashContents)
+            value.append('|').append(sha1(file));
+        add(key, value.toString());
+    }
+
+    /**
+     * Records the files of a directory, given as paths relative to it.
+     */
+    public void addDirectory(String key, File directory, String[] relativePaths) throws IOException {
+        add(key, directory.getAbsolutePath());
+        for (int i = 0; i < relativePaths.length; i++) {
+            addFile(key + "/" + relativePaths[i].replace(File.separatorChar, '/'), new File(directory, relativePaths[i]));
+        }
+    }
+
+    /**
+     * Records the subdirectories of a directory, given as paths relative to it, so that empty
+     * directories appearing or disappearing are noticed.
+     */
+    public void addDirectories(String key, String[] relativePaths) {
+        for (int i = 0; i < relativePaths.length; i++) {
+            add(key + "/" + relativePaths[i].replace(File.separatorChar, '/') + "/", "directory");
+        }
+    }
+
+    /**
+     * SHA-1 over all recorded inputs.
+     */
+    public String getDigest() {
+        MessageDigest digest = newDigest();
+        for (Iterator<Map.Entry<String, String>> iter = inputs.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry<String, String> entry = iter.next();
+            update(digest, entry.getKey());
+            update(digest, entry.getValue());
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Whether the stored fingerprint was written for the same inputs and the archive it describes
+     * has not been touched since.
+     */
+    public boolean isUpToDate(File fingerprintFile, File archive) {
+        if (!fingerprintFile.isFile() || !archive.isFile())
+            return false;
+
+        Properties stored = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(fingerprintFile);
+            stored.load(in);
+        } catch (IOException e) {
+            return false;
+        } finally {
+            IOUtil.close(in);
+        }
+
+        return getDigest().equals(stored.getProperty(DIGEST_KEY))
+            && String.valueOf(archive.length()).equals(stored.getProperty(ARCHIVE_LENGTH_KEY))
+            && String.valueOf(archive.lastModified()).equals(stored.getProperty(ARCHIVE_MODIFIED_KEY));
+    }
+
+    /**
+     * Stores this fingerprint together with the size and modification time of the archive built from it.
+     */
+    public void store(File fingerprintFile, File archive) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(DIGEST_KEY, getDigest());
+        properties.setProperty(ARCHIVE_LENGTH_KEY, String.valueOf(archive.length()));
+        properties.setProperty(ARCHIVE_MODIFIED_KEY, String.valueOf(archive.lastModified()));
+
+        fingerprintFile.getParentFile().mkdirs();
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(fingerprintFile);
+            properties.store(out, "cba-maven-plugin input fingerprint");
+        } finally {
+            IOUtil.close(out);
+        }
+    }
+
+    private static String sha1(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            IOUtil.close(in);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        try {
+            digest.update(value.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available: " + e.getMessage());
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+}
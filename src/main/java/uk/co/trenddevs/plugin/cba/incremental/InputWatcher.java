@@ -0,0 +1,168 @@
+package uk.co.trenddevs.plugin.cba.incremental;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for changes of the inputs of a cba, using a {@link WatchService}.
+ *
+ * Directories are watched with everything below them, including directories created later.
+ * Files are watched through their parent directory, whose other files are ignored. Events
+ * arriving until the watched files have been quiet for a while are coalesced into one set of
+ * changed files, so that a build writing many files triggers a single refresh.
+ *
+ * @version $Id: $
+ */
+public class InputWatcher implements Closeable {
+
+    private final WatchService service;
+
+    /** Watched directories, with null for a directory whose every file is an input. */
+    private final Map<Path, Set<Path>> watched = new HashMap<Path, Set<Path>>();
+
+    private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+
+    public InputWatcher() throws IOException {
+        service = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Watches files and directories, in addition to those already watched. A file whose directory
+     * does not exist yet cannot be watched and is skipped.
+     *
+     * @return the number of files and directories watched from now on
+     */
+    public int watch(Collection<File> inputs) throws IOException {
+        int count = 0;
+        for (File input : inputs) {
+            if (input == null)
+                continue;
+            Path path = input.getAbsoluteFile().toPath().normalize();
+            if (Files.isDirectory(path)) {
+                watchTree(path);
+                count++;
+            } else if (path.getParent() != null && Files.isDirectory(path.getParent())) {
+                watchFile(path);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void watchTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                register(dir);
+                watched.put(dir, null);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void watchFile(Path file) throws IOException {
+        Path dir = file.getParent();
+        if (watched.containsKey(dir) && watched.get(dir) == null)
+            return;
+        register(dir);
+        Set<Path> files = watched.get(dir);
+        if (files == null)
+            watched.put(dir, files = new HashSet<Path>());
+        files.add(file.getFileName());
+    }
+
+    private void register(Path dir) throws IOException {
+        if (watched.containsKey(dir))
+            return;
+        keys.put(dir.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+                              StandardWatchEventKinds.ENTRY_MODIFY), dir);
+    }
+
+    /**
+     * Blocks until an input changes, then collects further changes until none arrived for quietMillis.
+     *
+     * @return the changed files and directories; a directory stands for all of its files when events were lost
+     * @throws InterruptedException when the thread is interrupted while waiting, which ends watching
+     */
+    public Set<File> awaitChanges(long quietMillis) throws IOException, InterruptedException {
+        Set<File> changed = new LinkedHashSet<File>();
+        try {
+            while (changed.isEmpty()) {
+                collect(service.take(), changed);
+            }
+            for (WatchKey key = service.poll(quietMillis, TimeUnit.MILLISECONDS); key != null;
+                 key = service.poll(quietMillis, TimeUnit.MILLISECONDS)) {
+                collect(key, changed);
+            }
+        } catch (ClosedWatchServiceException e) {
+            throw new InterruptedException("Input watcher closed");
+        }
+        return changed;
+    }
+
+    private void collect(WatchKey key, Set<File> changed) throws IOException {
+        Path dir = keys.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (dir == null)
+                break;
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed.add(dir.toFile());
+                continue;
+            }
+            Path name = (Path) event.context();
+            Set<Path> files = watched.get(dir);
+            if (files != null && !files.contains(name))
+                continue;
+            Path path = dir.resolve(name);
+            // a directory created in a watched tree is watched too, and its files are inputs
+            if (files == null && event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path))
+                watchTree(path);
+            changed.add(path.toFile());
+        }
+        if (!key.reset()) {
+            keys.remove(key);
+            watched.remove(dir);
+        }
+    }
+
+    public void close() throws IOException {
+        service.close();
+    }
+}
@@ -0,0 +1,195 @@
+package uk.co.trenddevs.plugin.cba.manifest;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One clause of an OSGi header such as CompositeBundle-Content or Import-Package:
+ * a name followed by attributes (name=value) and directives (name:=value).
+ *
+ * Values are always written quoted, with quotes and backslashes escaped, so that commas,
+ * semicolons and version ranges inside them survive a round trip.
+ *
+ * @version $Id: $
+ */
+public class Clause {
+
+    private final String name;
+    private final Map<String, String> attributes = new LinkedHashMap<String, String>();
+    private final Map<String, String> directives = new LinkedHashMap<String, String>();
+
+    public Clause(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Clause setAttribute(String key, String value) {
+        attributes.put(key, value);
+        return this;
+    }
+
+    public String getAttribute(String key) {
+        return attributes.get(key);
+    }
+
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    public Clause setDirective(String key, String value) {
+        directives.put(key, value);
+        return this;
+    }
+
+    public String getDirective(String key) {
+        return directives.get(key);
+    }
+
+    public Map<String, String> getDirectives() {
+        return directives;
+    }
+
+    public String toString() {
+        StringBuffer buffer = new StringBuffer(name);
+        for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+            buffer.append(';').append(attribute.getKey()).append('=');
+            quote(buffer, attribute.getValue());
+        }
+        for (Map.Entry<String, String> directive : directives.entrySet()) {
+            buffer.append(';').append(directive.getKey()).append(":=");
+            quote(buffer, directive.getValue());
+        }
+        return buffer.toString();
+    }
+
+    private static void quote(StringBuffer buffer, String value) {
+        buffer.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                buffer.append('\\');
+            buffer.append(c);
+        }
+        buffer.append('"');
+    }
+
+    /**
+     * Joins clauses into a header value.
+     */
+    public static String toHeaderValue(List<Clause> clauses) {
+        StringBuffer buffer = new StringBuffer();
+        for (Iterator<Clause> iter = clauses.iterator(); iter.hasNext(); ) {
+            buffer.append(iter.next());
+            if (iter.hasNext())
+                buffer.append(',');
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Parses a header value into clauses. Separators inside quoted values are ignored and
+     * escaped characters are unescaped. A clause naming several paths, as in
+     * <code>a;b;version=1.0</code>, yields one clause per path with the same parameters.
+     *
+     * @throws IllegalArgumentException for unterminated quotes or parameters without a value
+     */
+    public static List<Clause> parse(String headerValue) {
+        List<Clause> clauses = new ArrayList<Clause>();
+        if (headerValue == null)
+            return clauses;
+        for (String clauseText : split(headerValue, ',')) {
+            List<String> parts = split(clauseText, ';');
+            if (parts.isEmpty() || parts.get(0).trim().length() == 0)
+                continue;
+            List<Clause> shared = new ArrayList<Clause>();
+            boolean parameters = false;
+            for (String part : parts) {
+                int equals = part.indexOf('=');
+                if (equals < 0) {
+                    if (parameters)
+                        throw new IllegalArgumentException("Parameter without value in clause: " + clauseText);
+                    shared.add(new Clause(part.trim()));
+                    continue;
+                }
+                parameters = true;
+                boolean directive = equals > 0 && part.charAt(equals - 1) == ':';
+                String key = part.substring(0, directive ? equals - 1 : equals).trim();
+                String value = unquote(part.substring(equals + 1).trim());
+                for (Clause clause : shared) {
+                    if (directive)
+                        clause.setDirective(key, value);
+                    else
+                        clause.setAttribute(key, value);
+                }
+            }
+            clauses.addAll(shared);
+        }
+        return clauses;
+    }
+
+    /**
+     * Splits on a separator that is not inside double quotes.
+     */
+    private static List<String> split(String value, char separator) {
+        List<String> parts = new ArrayList<String>();
+        StringBuffer current = new StringBuffer();
+        boolean quoted = false;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (quoted && c == '\\' && i + 1 < value.length()) {
+                current.append(c).append(value.charAt(++i));
+                continue;
+            }
+            if (c == '"')
+                quoted = !quoted;
+            if (c == separator && !quoted) {
+                parts.add(current.toString());
+                current.setLength(0);
+            } else {
+                current.append(c);
+            }
+        }
+        if (quoted)
+            throw new IllegalArgumentException("Unterminated quote in: " + value);
+        parts.add(current.toString());
+        return parts;
+    }
+
+    private static String unquote(String value) {
+        if (value.length() < 2 || value.charAt(0) != '"' || value.charAt(value.length() - 1) != '"')
+            return value;
+        StringBuffer buffer = new StringBuffer(value.length());
+        for (int i = 1; i < value.length() - 1; i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length() - 1)
+                c = value.charAt(++i);
+            buffer.append(c);
+        }
+        return buffer.toString();
+    }
+}
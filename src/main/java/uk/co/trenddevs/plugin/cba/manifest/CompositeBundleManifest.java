@@ -0,0 +1,344 @@
+package uk.co.trenddevs.plugin.cba.manifest;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * In-memory model of META-INF/COMPOSITEBUNDLE.MF.
+ *
+ * Headers keep their insertion order. Clause headers such as CompositeBundle-Content are
+ * accessible as {@link Clause} lists. The manifest is written in one go, with lines wrapped
+ * at 72 bytes as the jar file specification requires; clause lists start every clause on
+ * a continuation line of its own to stay readable.
+ *
+ * Please see <a href="https://www-01.ibm.com/support/knowledgecenter/#!/was_beta/com.ibm.websphere.wdt.doc/topics/ccba.htm">IBM documentation</a> for the headers.
+ *
+ * @version $Id: $
+ */
+public class CompositeBundleManifest {
+
+    public static final String MANIFEST_VERSION = "Manifest-Version";
+    public static final String COMPOSITE_BUNDLE_MANIFEST_VERSION = "CompositeBundle-ManifestVersion";
+    public static final String BUNDLE_NAME = "Bundle-Name";
+    public static final String BUNDLE_DESCRIPTION = "Bundle-Description";
+    public static final String BUNDLE_SYMBOLIC_NAME = "Bundle-SymbolicName";
+    public static final String BUNDLE_VERSION = "Bundle-Version";
+    public static final String COMPOSITE_BUNDLE_CONTENT = "CompositeBundle-Content";
+    public static final String COMPOSITE_BUNDLE_EXPORT_SERVICE = "CompositeBundle-ExportService";
+    public static final String COMPOSITE_BUNDLE_IMPORT_SERVICE = "CompositeBundle-ImportService";
+    public static final String EXPORT_PACKAGE = "Export-Package";
+    public static final String IMPORT_PACKAGE = "Import-Package";
+
+    /**
+     * Headers whose values are clause lists; merging combines their clauses by name.
+     */
+    public static final Set<String> CLAUSE_HEADERS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+        new String[] {COMPOSITE_BUNDLE_CONTENT, COMPOSITE_BUNDLE_EXPORT_SERVICE, COMPOSITE_BUNDLE_IMPORT_SERVICE,
+                      EXPORT_PACKAGE, IMPORT_PACKAGE})));
+
+    /**
+     * Headers written first, in this order, by {@link #normalize()}.
+     */
+    private static final String[] HEADER_ORDER = {MANIFEST_VERSION, COMPOSITE_BUNDLE_MANIFEST_VERSION,
+        BUNDLE_SYMBOLIC_NAME, BUNDLE_VERSION, BUNDLE_NAME, BUNDLE_DESCRIPTION, COMPOSITE_BUNDLE_CONTENT};
+
+    /**
+     * Clause headers whose order carries no meaning, sorted by {@link #normalize()}.
+     */
+    private static final String[] SORTED_CLAUSE_HEADERS = {COMPOSITE_BUNDLE_CONTENT, EXPORT_PACKAGE, IMPORT_PACKAGE};
+
+    private static final int MAX_LINE_BYTES = 72;
+    private static final byte[] NEWLINE = {'\n'};
+    private static final byte[] CONTINUATION = {'\n', ' '};
+
+    private final Map<String, String> headers = new LinkedHashMap<String, String>();
+
+    /**
+     * Sets a header; a null value removes it.
+     */
+    public void setHeader(String name, String value) {
+        if (value == null)
+            headers.remove(name);
+        else
+            headers.put(name, value);
+    }
+
+    public String getHeader(String name) {
+        return headers.get(name);
+    }
+
+    public boolean containsHeader(String name) {
+        return headers.containsKey(name);
+    }
+
+    /**
+     * All headers in the order they will be written.
+     */
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    public void setClauses(String name, List<Clause> clauses) {
+        setHeader(name, Clause.toHeaderValue(clauses));
+    }
+
+    /**
+     * Parses a header into clauses; an absent header yields an empty list.
+     */
+    public List<Clause> getClauses(String name) {
+        return Clause.parse(getHeader(name));
+    }
+
+    public String getBundleSymbolicName() {
+        return getHeader(BUNDLE_SYMBOLIC_NAME);
+    }
+
+    public void setBundleSymbolicName(String symbolicName) {
+        setHeader(BUNDLE_SYMBOLIC_NAME, symbolicName);
+    }
+
+    public String getBundleVersion() {
+        return getHeader(BUNDLE_VERSION);
+    }
+
+    public void setBundleVersion(String version) {
+        setHeader(BUNDLE_VERSION, version);
+    }
+
+    public List<Clause> getContent() {
+        return getClauses(COMPOSITE_BUNDLE_CONTENT);
+    }
+
+    public void setContent(List<Clause> content) {
+        setClauses(COMPOSITE_BUNDLE_CONTENT, content);
+    }
+
+    /**
+     * Adds the headers of another manifest that this one does not define. For clause headers
+     * defined by both, clauses of the other manifest are appended unless this one already has
+     * a clause of the same name: values already present here always win.
+     */
+    public void merge(CompositeBundleManifest other) {
+        for (Map.Entry<String, String> header : other.headers.entrySet()) {
+            String name = header.getKey();
+            if (!headers.containsKey(name)) {
+                headers.put(name, header.getValue());
+            } else if (CLAUSE_HEADERS.contains(name)) {
+                List<Clause> clauses = getClauses(name);
+                Set<String> present = new HashSet<String>();
+                for (Clause clause : clauses) {
+                    present.add(clause.getName());
+                }
+                for (Clause clause : other.getClauses(name)) {
+                    if (present.add(clause.getName()))
+                        clauses.add(clause);
+                }
+                setClauses(name, clauses);
+            }
+        }
+    }
+
+    /**
+     * Puts the headers in a fixed order, well-known headers first and the others by name, and
+     * sorts the content and package clauses by name. Manifests holding the same values are then
+     * written byte for byte the same, whatever order the values were added in.
+     */
+    public void normalize() {
+        Map<String, String> ordered = new LinkedHashMap<String, String>();
+        for (String name : HEADER_ORDER) {
+            if (headers.containsKey(name))
+                ordered.put(name, headers.get(name));
+        }
+        for (String name : new TreeSet<String>(headers.keySet())) {
+            if (!ordered.containsKey(name))
+                ordered.put(name, headers.get(name));
+        }
+        headers.clear();
+        headers.putAll(ordered);
+
+        for (String name : SORTED_CLAUSE_HEADERS) {
+            List<Clause> clauses = headers.containsKey(name) ? parseQuietly(headers.get(name)) : null;
+            if (clauses != null) {
+                Collections.sort(clauses, new Comparator<Clause>() {
+                    public int compare(Clause left, Clause right) {
+                        return left.getName().compareTo(right.getName());
+                    }
+                });
+                setClauses(name, clauses);
+            }
+        }
+    }
+
+    /**
+     * Writes the manifest through a buffer in a single pass.
+     */
+    public void write(OutputStream out) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(headers.size() * 80);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            String name = header.getKey();
+            List<Clause> clauses = CLAUSE_HEADERS.contains(name) ? parseQuietly(header.getValue()) : null;
+            if (clauses != null && !clauses.isEmpty()) {
+                for (int i = 0; i < clauses.size(); i++) {
+                    String text = clauses.get(i) + (i + 1 < clauses.size() ? "," : "");
+                    if (i == 0)
+                        writeWrapped(buffer, name + ": " + text, 0);
+                    else
+                        writeWrapped(buffer, text, 1);
+                }
+            } else {
+                writeWrapped(buffer, name + ": " + header.getValue(), 0);
+            }
+        }
+        out.write(buffer.toByteArray());
+        out.flush();
+    }
+
+    /**
+     * Parses a clause header for layout purposes; values that are not valid clause lists are written as they are.
+     */
+    private static List<Clause> parseQuietly(String value) {
+        try {
+            return Clause.parse(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public void write(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(file));
+            write(out);
+        } finally {
+            IOUtil.close(out);
+        }
+    }
+
+    public byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes text followed by a line break, as a continuation line when indent is 1.
+     * Lines are split at 72 bytes without breaking UTF-8 sequences.
+     */
+    private static void writeWrapped(ByteArrayOutputStream out, String text, int indent) {
+        byte[] bytes = utf8(text);
+        int lineLength = indent;
+        if (indent > 0)
+            out.write(' ');
+        int start = 0;
+        while (start < bytes.length) {
+            int end = Math.min(bytes.length, start + MAX_LINE_BYTES - lineLength);
+            while (end < bytes.length && end > start && (bytes[end] & 0xC0) == 0x80) {
+                end--;
+            }
+            out.write(bytes, start, end - start);
+            start = end;
+            if (start < bytes.length) {
+                out.write(CONTINUATION, 0, CONTINUATION.length);
+                lineLength = 1;
+            }
+        }
+        out.write(NEWLINE, 0, NEWLINE.length);
+    }
+
+    /**
+     * Parses the main section of a manifest.
+     */
+    public static CompositeBundleManifest parse(InputStream in) throws IOException {
+        CompositeBundleManifest manifest = new CompositeBundleManifest();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        String name = null;
+        StringBuffer value = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            // continuation lines start with a space, tabs are accepted as hand-written manifests use them
+            if (line.startsWith(" ") || line.startsWith("\t")) {
+                if (value == null)
+                    throw new IOException("Continuation line without a header: " + line);
+                value.append(line.substring(1));
+                continue;
+            }
+            if (name != null)
+                manifest.setHeader(name, value.toString().trim());
+            if (line.length() == 0)
+                return manifest;
+            int colon = line.indexOf(": ");
+            if (colon < 0) {
+                if (!line.endsWith(":"))
+                    throw new IOException("Invalid manifest header: " + line);
+                colon = line.length() - 1;
+            }
+            name = line.substring(0, colon);
+            value = new StringBuffer(line.substring(Math.min(line.length(), colon + 2)));
+        }
+        if (name != null)
+            manifest.setHeader(name, value.toString().trim());
+        return manifest;
+    }
+
+    public static CompositeBundleManifest parse(File file) throws IOException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return parse(in);
+        } finally {
+            IOUtil.close(in);
+        }
+    }
+
+    private static byte[] utf8(String value) {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package uk.co.trenddevs.plugin.cba.metrics;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import org.codehaus.plexus.util.IOUtil;
+
+/**
+ * Timing and I/O figures of one cba build, phase by phase.
+ *
+ * Each phase records its wall time and the CPU time of the thread running it, plus the CPU
+ * time of helper threads when the phase reports it. Byte counts, entry counts and compression
+ * sizes are only recorded where they are measured, and left out of the report otherwise.
+ * The figures are summarised for the log and written as JSON for CI to track.
+ *
+ * @version $Id: $
+ */
+public class BuildMetrics {
+
+    private static final long NOT_MEASURED = -1;
+
+    private final String module;
+    private final long startTime = System.nanoTime();
+    private final List<Phase> phases = new ArrayList<Phase>();
+    private long wallTime = NOT_MEASURED;
+    private boolean skipped;
+
+    public BuildMetrics(String module) {
+        this.module = module;
+    }
+
+    /**
+     * Starts timing a phase; it is recorded once {@link Phase#end()} is called.
+     */
+    public Phase start(String name) {
+        return new Phase(name);
+    }
+
+    /**
+     * Stops the overall clock.
+     */
+    public void finish() {
+        wallTime = System.nanoTime() - startTime;
+    }
+
+    /**
+     * Marks the build as skipped because the cba was up to date.
+     */
+    public void setSkipped(boolean skipped) {
+        this.skipped = skipped;
+    }
+
+    public boolean isSkipped() {
+        return skipped;
+    }
+
+    public String getModule() {
+        return module;
+    }
+
+    public synchronized List<Phase> getPhases() {
+        return Collections.unmodifiableList(new ArrayList<Phase>(phases));
+    }
+
+    /**
+     * Nanoseconds from creation to {@link #finish()}, or until now when not finished.
+     */
+    public long getWallTime() {
+        return wallTime != NOT_MEASURED ? wallTime : System.nanoTime() - startTime;
+    }
+
+    private synchronized void add(Phase phase) {
+        phases.add(phase);
+    }
+
+    /**
+     * One line per phase, for the build log.
+     */
+    public List<String> getSummary() {
+        List<String> lines = new ArrayList<String>();
+        lines.add("CBA build " + millis(getWallTime()) + " ms" + (skipped ? " (up to date, skipped)" : "") + ":");
+        for (Phase phase : getPhases()) {
+            StringBuffer line = new StringBuffer();
+            line.append(String.format(Locale.ENGLISH, "  %-20s %7d ms wall", phase.name, millis(phase.wallTime)));
+            if (phase.cpuTime != NOT_MEASURED)
+                line.append(String.format(Locale.ENGLISH, ", %7d ms cpu", millis(phase.cpuTime)));
+            if (phase.bytesRead != NOT_MEASURED)
+                line.append(", ").append(formatBytes(phase.bytesRead)).append(" read");
+            if (phase.bytesWritten != NOT_MEASURED)
+                line.append(", ").append(formatBytes(phase.bytesWritten)).append(" written");
+            if (phase.entries != NOT_MEASURED)
+                line.append(", ").append(phase.entries).append(" entries");
+            if (phase.getCompressionRatio() >= 0)
+                line.append(String.format(Locale.ENGLISH, ", ratio %.3f", phase.getCompressionRatio()));
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    /**
+     * The metrics as a JSON object; times are in milliseconds.
+     */
+    public String toJson() {
+        StringBuffer json = new StringBuffer(1024);
+        json.append("{\n");
+        json.append("  \"module\": ").append(quote(module)).append(",\n");
+        json.append("  \"skipped\": ").append(skipped).append(",\n");
+        json.append("  \"wallMillis\": ").append(millis(getWallTime())).append(",\n");
+        json.append("  \"phases\": [");
+        List<Phase> recorded = getPhases();
+        for (int i = 0; i < recorded.size(); i++) {
+            Phase phase = recorded.get(i);
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"name\": ").append(quote(phase.name));
+            json.append(", \"wallMillis\": ").append(millis(phase.wallTime));
+            appendMeasured(json, "cpuMillis", phase.cpuTime == NOT_MEASURED ? NOT_MEASURED : millis(phase.cpuTime));
+            appendMeasured(json, "bytesRead", phase.bytesRead);
+            appendMeasured(json, "bytesWritten", phase.bytesWritten);
+            appendMeasured(json, "entries", phase.entries);
+            appendMeasured(json, "uncompressedBytes", phase.uncompressedBytes);
+            appendMeasured(json, "compressedBytes", phase.compressedBytes);
+            if (phase.getCompressionRatio() >= 0)
+                json.append(String.format(Locale.ENGLISH, ", \"compressionRatio\": %.4f", phase.getCompressionRatio()));
+            json.append("}");
+        }
+        json.append(recorded.isEmpty() ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    /**
+     * Writes {@link #toJson()} to a file, creating its directory.
+     */
+    public void write(File file) throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(toJson().getBytes("UTF-8"));
+        } finally {
+            IOUtil.close(out);
+        }
+    }
+
+    private static void appendMeasured(StringBuffer json, String name, long value) {
+        if (value != NOT_MEASURED)
+            json.append(", \"").append(name).append("\": ").append(value);
+    }
+
+    /**
+     * A JSON string literal of value, or null.
+     */
+    public static String quote(String value) {
+        if (value == null)
+            return "null";
+        StringBuffer quoted = new StringBuffer(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if (c < 0x20)
+                quoted.append(String.format("\\u%04x", Integer.valueOf(c)));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static long millis(long nanos) {
+        return nanos / 1000000L;
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024 * 1024)
+            return String.format(Locale.ENGLISH, "%.1f KB", Double.valueOf(bytes / 1024.0));
+        return String.format(Locale.ENGLISH, "%.1f MB", Double.valueOf(bytes / (1024.0 * 1024.0)));
+    }
+
+    /**
+     * CPU time of the current thread in nanoseconds, or -1 when the JVM does not measure it.
+     */
+    public static long currentThreadCpuTime() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!threads.isCurrentThreadCpuTimeSupported())
+            return NOT_MEASURED;
+        try {
+            return threads.getCurrentThreadCpuTime();
+        } catch (UnsupportedOperationException e) {
+            return NOT_MEASURED;
+        }
+    }
+
+    /**
+     * A phase being timed, or recorded once ended.
+     */
+    public class Phase {
+
+        private final String name;
+        private final long startWall = System.nanoTime();
+        private final long startCpu = currentThreadCpuTime();
+        private long wallTime;
+        private long cpuTime = NOT_MEASURED;
+        private long helperCpuTime;
+        private long bytesRead = NOT_MEASURED;
+        private long bytesWritten = NOT_MEASURED;
+        private long entries = NOT_MEASURED;
+        private long uncompressedBytes = NOT_MEASURED;
+        private long compressedBytes = NOT_MEASURED;
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        public Phase setBytesRead(long bytesRead) {
+            this.bytesRead = bytesRead;
+            return this;
+        }
+
+        public Phase setBytesWritten(long bytesWritten) {
+            this.bytesWritten = bytesWritten;
+            return this;
+        }
+
+        public Phase setEntries(long entries) {
+            this.entries = entries;
+            return this;
+        }
+
+        /**
+         * Sizes of the entries before and after compression.
+         */
+        public Phase setCompression(long uncompressedBytes, long compressedBytes) {
+            this.uncompressedBytes = uncompressedBytes;
+            this.compressedBytes = compressedBytes;
+            return this;
+        }
+
+        /**
+         * Adds CPU time spent by helper threads on behalf of this phase.
+         */
+        public Phase addCpuTime(long nanos) {
+            helperCpuTime += nanos;
+            return this;
+        }
+
+        /**
+         * Stops the clocks and records the phase.
+         */
+        public void end() {
+            wallTime = System.nanoTime() - startWall;
+            long endCpu = currentThreadCpuTime();
+            if (startCpu != NOT_MEASURED && endCpu != NOT_MEASURED)
+                cpuTime = endCpu - startCpu + helperCpuTime;
+            add(this);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getWallTime() {
+            return wallTime;
+        }
+
+        public long getCpuTime() {
+            return cpuTime;
+        }
+
+        public long getBytesRead() {
+            return bytesRead;
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten;
+        }
+
+        public long getEntries() {
+            return entries;
+        }
+
+        /**
+         * Compressed size over uncompressed size, or -1 when not measured.
+         */
+        public double getCompressionRatio() {
+            if (uncompressedBytes <= 0 || compressedBytes == NOT_MEASURED)
+                return NOT_MEASURED;
+            return (double) compressedBytes / uncompressedBytes;
+        }
+    }
+}
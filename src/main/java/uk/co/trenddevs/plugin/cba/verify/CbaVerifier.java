@@ -0,0 +1,320 @@
+package uk.co.trenddevs.plugin.cba.verify;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.codehaus.plexus.util.IOUtil;
+import uk.co.trenddevs.plugin.cba.archive.DaemonThreadFactory;
+import uk.co.trenddevs.plugin.cba.archive.ZipReader;
+import uk.co.trenddevs.plugin.cba.bundle.BundleMetadata;
+import uk.co.trenddevs.plugin.cba.bundle.Version;
+import uk.co.trenddevs.plugin.cba.bundle.VersionRange;
+import uk.co.trenddevs.plugin.cba.manifest.Clause;
+import uk.co.trenddevs.plugin.cba.manifest.CompositeBundleManifest;
+
+/**
+ * Checks an existing cba: the CRC and size of every entry, and that the nested bundles are
+ * those the CompositeBundle-Content header of META-INF/COMPOSITEBUNDLE.MF lists.
+ *
+ * Entries are streamed concurrently from one {@link ZipReader}, each read once. The manifest
+ * of a nested jar is parsed from that same stream as its CRC is computed, so nested jars are
+ * neither extracted nor read twice. Every problem is reported at once.
+ *
+ * @version $Id: $
+ */
+public class CbaVerifier {
+
+    public static final String COMPOSITE_BUNDLE_MF = "META-INF/COMPOSITEBUNDLE.MF";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final int threads;
+
+    private String projectJar;
+
+    /**
+     * @param threads number of entries read at once; values below one select one per available processor
+     */
+    public CbaVerifier(int threads) {
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * The entry name of the project jar, which the cba goal nests when includeJar is set without
+     * listing it in CompositeBundle-Content; it is checked like any entry but never reported as extra.
+     */
+    public void setProjectJar(String projectJar) {
+        this.projectJar = projectJar;
+    }
+
+    /**
+     * Verifies a cba.
+     * @throws IOException when the cba is not a readable zip
+     */
+    public Result verify(File cba) throws IOException, InterruptedException {
+        Result result = new Result();
+        ZipReader zip = new ZipReader(cba);
+        try {
+            List<ZipReader.Entry> entries = new ArrayList<ZipReader.Entry>(zip.getEntries());
+            if (!entries.isEmpty()) {
+                ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, entries.size()),
+                                                                        new DaemonThreadFactory("cba-verifier-"));
+                try {
+                    List<Future<Checked>> checks = new ArrayList<Future<Checked>>(entries.size());
+                    for (ZipReader.Entry entry : entries) {
+                        checks.add(executor.submit(new CheckTask(zip, entry)));
+                    }
+                    for (int i = 0; i < checks.size(); i++) {
+                        Checked checked;
+                        try {
+                            checked = checks.get(i).get();
+                        } catch (ExecutionException e) {
+                            checked = new Checked(0, entries.get(i).getName() + ": " + e.getCause(), null);
+                        }
+                        result.entries++;
+                        result.bytes += checked.size;
+                        if (checked.problem != null)
+                            result.problems.add(checked.problem);
+                        if (checked.metadata != null)
+                            result.nestedJars.put(entries.get(i).getName(), checked.metadata);
+                    }
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+
+            ZipReader.Entry manifestEntry = zip.getEntry(COMPOSITE_BUNDLE_MF);
+            if (manifestEntry == null) {
+                result.problems.add("no " + COMPOSITE_BUNDLE_MF);
+                return result;
+            }
+            InputStream in = zip.openContent(manifestEntry);
+            CompositeBundleManifest manifest;
+            try {
+                manifest = CompositeBundleManifest.parse(in);
+            } finally {
+                IOUtil.close(in);
+            }
+            checkContent(manifest.getContent(), result, projectJar);
+        } finally {
+            zip.close();
+        }
+        return result;
+    }
+
+    /**
+     * Matches every content clause with a nested bundle of its symbolic name and version, the
+     * nested jars other than the project jar matching no clause being extra. A range matches the
+     * versions it includes. A plain version, as the cba goal writes, matches that version whatever
+     * its qualifier: the goal writes it from the artifact version, so 1.0.0.SNAPSHOT stands for a
+     * bundle of a timestamped snapshot just as well.
+     */
+    private static void checkContent(List<Clause> content, Result result, String projectJar) {
+        Map<String, BundleMetadata> unmatched = new LinkedHashMap<String, BundleMetadata>(result.nestedJars);
+        if (projectJar != null)
+            unmatched.remove(projectJar);
+        for (Clause clause : content) {
+            String version = clause.getAttribute("version");
+            VersionRange range;
+            try {
+                range = VersionRange.parse(version);
+                if (version != null && version.trim().length() > 0 && "[(".indexOf(version.trim().charAt(0)) < 0)
+                    range = Version.parse(version).ignoringQualifier();
+            } catch (IllegalArgumentException e) {
+                result.problems.add("content " + clause + " has an invalid version: " + e.getMessage());
+                continue;
+            }
+            String matched = null;
+            List<String> otherVersions = new ArrayList<String>();
+            for (Map.Entry<String, BundleMetadata> nested : unmatched.entrySet()) {
+                BundleMetadata metadata = nested.getValue();
+                if (!clause.getName().equals(metadata.getSymbolicName()))
+                    continue;
+                if (range.includes(getVersion(metadata))) {
+                    matched = nested.getKey();
+                    break;
+                }
+                otherVersions.add(nested.getKey());
+            }
+            if (matched != null) {
+                unmatched.remove(matched);
+            } else if (otherVersions.isEmpty()) {
+                result.problems.add("missing bundle " + clause);
+            } else {
+                // reported here rather than as extra bundles
+                List<String> included = new ArrayList<String>();
+                for (String name : otherVersions) {
+                    included.add(name + " " + unmatched.remove(name).getVersion());
+                }
+                result.problems.add("bundle " + clause + " is included in other versions: " + included);
+            }
+        }
+        for (Map.Entry<String, BundleMetadata> nested : unmatched.entrySet()) {
+            BundleMetadata metadata = nested.getValue();
+            if (metadata.isBundle())
+                result.problems.add("extra bundle " + nested.getKey() + " (" + metadata.getSymbolicName() + " "
+                                    + metadata.getVersion() + ") is not in CompositeBundle-Content");
+            else
+                result.problems.add("extra jar " + nested.getKey() + " is not a bundle");
+        }
+    }
+
+    private static Version getVersion(BundleMetadata metadata) {
+        try {
+            return Version.parse(metadata.getVersion());
+        } catch (IllegalArgumentException e) {
+            return Version.EMPTY;
+        }
+    }
+
+    /**
+     * Reads an entry through, checking its CRC and size and reading the manifest of a nested jar on the way.
+     */
+    static Checked check(ZipReader zip, ZipReader.Entry entry) {
+        String problem = null;
+        BundleMetadata metadata = null;
+        CheckedInputStream in = null;
+        long size = 0;
+        try {
+            in = new CheckedInputStream(zip.openContent(entry), new CRC32());
+            if (!entry.isDirectory() && entry.getName().toLowerCase(Locale.ENGLISH).endsWith(".jar")) {
+                try {
+                    metadata = BundleMetadata.fromAttributes(readManifest(in), entry.getSize(), entry.getTime());
+                } catch (IOException e) {
+                    problem = entry.getName() + ": not a readable jar: " + e.getMessage();
+                }
+            }
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) >= 0) {
+                // the CRC is computed as the entry is read
+            }
+            size = entry.getSize();
+            if (in.getChecksum().getValue() != entry.getCrc())
+                problem = entry.getName() + ": CRC mismatch, " + Long.toHexString(in.getChecksum().getValue())
+                    + " instead of " + Long.toHexString(entry.getCrc());
+        } catch (IOException e) {
+            problem = entry.getName() + ": cannot be read: " + e.getMessage();
+        } finally {
+            IOUtil.close(in);
+        }
+        return new Checked(size, problem, metadata);
+    }
+
+    /**
+     * The main attributes of the manifest of a jar streamed from in, which is left open and only
+     * read up to the manifest; null when there is none.
+     */
+    private static Attributes readManifest(InputStream in) throws IOException {
+        ZipInputStream jar = new ZipInputStream(in);
+        for (ZipEntry entry = jar.getNextEntry(); entry != null; entry = jar.getNextEntry()) {
+            if (entry.getName().equalsIgnoreCase(JarFile.MANIFEST_NAME))
+                return new Manifest(jar).getMainAttributes();
+        }
+        return null;
+    }
+
+    /**
+     * The outcome of one entry.
+     */
+    static class Checked {
+
+        private final long size;
+        private final String problem;
+        private final BundleMetadata metadata;
+
+        Checked(long size, String problem, BundleMetadata metadata) {
+            this.size = size;
+            this.problem = problem;
+            this.metadata = metadata;
+        }
+    }
+
+    private static class CheckTask implements Callable<Checked> {
+
+        private final ZipReader zip;
+        private final ZipReader.Entry entry;
+
+        CheckTask(ZipReader zip, ZipReader.Entry entry) {
+            this.zip = zip;
+            this.entry = entry;
+        }
+
+        public Checked call() {
+            return check(zip, entry);
+        }
+    }
+
+    /**
+     * What was verified and the problems found.
+     */
+    public static class Result {
+
+        private int entries;
+        private long bytes;
+        private final List<String> problems = new ArrayList<String>();
+        private final Map<String, BundleMetadata> nestedJars = new LinkedHashMap<String, BundleMetadata>();
+
+        public int getEntries() {
+            return entries;
+        }
+
+        /**
+         * Uncompressed bytes read.
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * One message per problem, empty when the cba is sound.
+         */
+        public List<String> getProblems() {
+            return Collections.unmodifiableList(problems);
+        }
+
+        /**
+         * The metadata of the nested jars by entry name.
+         */
+        public Map<String, BundleMetadata> getNestedJars() {
+            return Collections.unmodifiableMap(nestedJars);
+        }
+    }
+}
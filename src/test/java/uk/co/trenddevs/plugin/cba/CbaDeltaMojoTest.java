@@ -0,0 +1,88 @@
+package uk.co.trenddevs.plugin.cba;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.artifact.repository.DefaultArtifactRepository;
+import org.apache.maven.artifact.repository.layout.DefaultRepositoryLayout;
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+import org.apache.maven.project.MavenProject;
+import org.codehaus.plexus.util.FileUtils;
+import uk.co.trenddevs.plugin.cba.stubs.CbaSyntheticProjectStub;
+import uk.co.trenddevs.plugin.cba.stubs.SyntheticBundles;
+
+public class CbaDeltaMojoTest extends AbstractMojoTestCase {
+
+    public void testDeltaAgainstInstalledBaselineRebuildsTheCba() throws Exception {
+        File pluginConfig = new File( getBasedir(), "target/test-classes/unit/basic-cba-delta/plugin-config.xml" );
+        File workDir = new File( getBasedir(), "target/unit/basic-cba-delta" );
+        FileUtils.deleteDirectory( workDir );
+        new File( workDir, "src/main/cba" ).mkdirs();
+        File cba = new File( workDir, "target/test-cba-delta.cba" );
+        List<Artifact> artifacts = SyntheticBundles.create( new File( workDir, "bundles" ), 4, 64 * 1024 );
+
+        // the baseline, installed as version 1.0 of the project's cba
+        build( pluginConfig, artifacts.subList( 0, 3 ) );
+        File repository = new File( workDir, "repository" );
+        File baseline = new File( repository, "org/apache/maven/test/maven-cba-test/1.0/maven-cba-test-1.0.cba" );
+        FileUtils.copyFile( cba, baseline );
+
+        // bundle 2 changes, bundle 3 is added
+        SyntheticBundles.writeBundle( artifacts.get( 2 ).getFile(), SyntheticBundles.GROUP_ID + ".bundle2", "1.0.2",
+                                      "synthetic.bundle2;version=\"1.0.0\"", null, 64 * 1024, new Random( 22 ) );
+        MavenProject project = build( pluginConfig, artifacts );
+
+        File deltaConfig = new File( getBasedir(), "target/test-classes/unit/basic-cba-delta/delta-config.xml" );
+        File delta = new File( workDir, "target/test-cba-delta-delta.zip" );
+        CbaDeltaMojo deltaMojo = (CbaDeltaMojo) lookupMojo( "delta", deltaConfig );
+        setVariableValueToObject( deltaMojo, "project", project );
+        setVariableValueToObject( deltaMojo, "cbaFile", cba );
+        setVariableValueToObject( deltaMojo, "baseline", "1.0" );
+        setVariableValueToObject( deltaMojo, "localRepository", new DefaultArtifactRepository(
+            "local", repository.toURI().toString(), new DefaultRepositoryLayout() ) );
+        deltaMojo.execute();
+        assertTrue( delta.length() < cba.length() / 2 );
+        assertEquals( "delta", ( (Artifact) project.getAttachedArtifacts().get( 0 ) ).getClassifier() );
+
+        File rebuilt = new File( workDir, "rebuilt/test-cba-delta.cba" );
+        CbaApplyDeltaMojo applyMojo = (CbaApplyDeltaMojo) lookupMojo( "apply-delta", deltaConfig );
+        setVariableValueToObject( applyMojo, "baselineFile", baseline );
+        setVariableValueToObject( applyMojo, "deltaFile", delta );
+        setVariableValueToObject( applyMojo, "cbaFile", rebuilt );
+        applyMojo.execute();
+        assertTrue( Arrays.equals( FileUtils.fileRead( cba, "ISO-8859-1" ).getBytes( "ISO-8859-1" ),
+                                   FileUtils.fileRead( rebuilt, "ISO-8859-1" ).getBytes( "ISO-8859-1" ) ) );
+    }
+
+    private MavenProject build( File pluginConfig, List<Artifact> artifacts ) throws Exception {
+        MavenProject project = new CbaSyntheticProjectStub( new ArrayList<Artifact>( artifacts ) );
+        CbaMojo mojo = (CbaMojo) lookupMojo( "cba", pluginConfig );
+        setVariableValueToObject( mojo, "project", project );
+        setVariableValueToObject( mojo, "checksums", "" );
+        mojo.execute();
+        return project;
+    }
+}
@@ -22,15 +22,34 @@ package uk.co.trenddevs.plugin.cba;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Random;
+import java.util.TimeZone;
 
+import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+import org.apache.maven.project.MavenProject;
+import org.apache.maven.shared.osgi.DefaultMaven2OsgiConverter;
 import org.codehaus.plexus.archiver.zip.ZipEntry;
 import org.codehaus.plexus.archiver.zip.ZipFile;
 import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import uk.co.trenddevs.plugin.cba.archive.ChecksumOutputStream;
+import uk.co.trenddevs.plugin.cba.archive.CompressedEntryCache;
+import uk.co.trenddevs.plugin.cba.archive.ParallelZipArchiver;
+import uk.co.trenddevs.plugin.cba.bundle.BundleIndex;
+import uk.co.trenddevs.plugin.cba.manifest.Clause;
+import uk.co.trenddevs.plugin.cba.manifest.CompositeBundleManifest;
+import uk.co.trenddevs.plugin.cba.stubs.CbaArtifactStub;
+import uk.co.trenddevs.plugin.cba.stubs.CbaSyntheticProjectStub;
+import uk.co.trenddevs.plugin.cba.stubs.SyntheticBundles;
 
 public class CbaMojoTest extends AbstractMojoTestCase  {
 
@@ -85,6 +104,571 @@ public class CbaMojoTest extends AbstractMojoTestCase  {
         assertTrue("Found CompositeBundle-ImportService:", foundAppImport);
     }
 
+    public void testUnchangedCbaIsNotRebuilt() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-up-to-date/plugin-config.xml";
+        testConfiguration(pluginConfig);
+
+        File cbaFile = new File( getBasedir(), "target/unit/basic-cba-up-to-date/target/test-cba-up-to-date.cba" );
+        long lastModified = cbaFile.lastModified();
+        Thread.sleep( 1100 );
+
+        testConfiguration(pluginConfig);
+        assertEquals( "Unchanged CBA was rebuilt", lastModified, cbaFile.lastModified() );
+
+        CbaMojo mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        setVariableValueToObject( mojo, "forceCreation", Boolean.TRUE );
+        mojo.execute();
+        assertTrue( "Forced CBA was not rebuilt", lastModified != cbaFile.lastModified() );
+    }
+
+    public void testEmptyDirectoriesAndChecksAreFingerprinted() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-up-to-date/plugin-config.xml";
+        File source = new File( getBasedir(), "target/unit/basic-cba-up-to-date/src/main/cba" );
+        FileUtils.deleteDirectory( source );
+        source.mkdirs();
+        File cbaFile = new File( getBasedir(), "target/unit/basic-cba-up-to-date/target/test-cba-up-to-date.cba" );
+
+        CbaMojo mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        setVariableValueToObject( mojo, "cbaSourceDirectory", source );
+        mojo.execute();
+        long lastModified = cbaFile.lastModified();
+        Thread.sleep( 1100 );
+
+        new File( source, "empty" ).mkdirs();
+        mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        setVariableValueToObject( mojo, "cbaSourceDirectory", source );
+        mojo.execute();
+        assertTrue( "CBA was not rebuilt with a new empty directory", lastModified != cbaFile.lastModified() );
+        lastModified = cbaFile.lastModified();
+        Thread.sleep( 1100 );
+
+        mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        setVariableValueToObject( mojo, "cbaSourceDirectory", source );
+        setVariableValueToObject( mojo, "wiringCheck", "warn" );
+        mojo.execute();
+        assertTrue( "CBA was not rebuilt with another wiringCheck", lastModified != cbaFile.lastModified() );
+    }
+
+    public void testZipArchiverMatchesParallelArchiver() throws Exception {
+        ZipFile zipCba = testConfiguration("target/test-classes/unit/basic-cba-zip-archiver/plugin-config.xml" );
+        ZipFile parallelCba = testConfiguration("target/test-classes/unit/basic-cba-up-to-date/plugin-config.xml" );
+
+        Enumeration entries = zipCba.getEntries();
+        while ( entries.hasMoreElements() ) {
+            ZipEntry entry = ( ZipEntry ) entries.nextElement();
+            ZipEntry other = parallelCba.getEntry( entry.getName() );
+            assertNotNull( "Missing entry " + entry.getName(), other );
+            assertEquals( entry.getName(), entry.isDirectory(), other.isDirectory() );
+            if ( entry.getName().endsWith( ".jar" ) ) {
+                assertEquals( entry.getName(), IOUtil.toString( zipCba.getInputStream( entry ) ),
+                              IOUtil.toString( parallelCba.getInputStream( other ) ) );
+            }
+        }
+
+        // the JDK reader verifies sizes and CRCs of every entry
+        java.util.zip.ZipFile jdkZip = new java.util.zip.ZipFile(
+            new File( getBasedir(), "target/unit/basic-cba-up-to-date/target/test-cba-up-to-date.cba" ) );
+        for ( Enumeration e = jdkZip.entries(); e.hasMoreElements(); ) {
+            IOUtil.toByteArray( jdkZip.getInputStream( ( java.util.zip.ZipEntry ) e.nextElement() ) );
+        }
+        jdkZip.close();
+    }
+
+    public void testDefaultCompressionStoresJars() throws Exception {
+        ZipFile cba = testConfiguration("target/test-classes/unit/basic-cba-up-to-date/plugin-config.xml" );
+        assertEquals( ZipEntry.STORED, cba.getEntry( "maven-artifact01-1.0-SNAPSHOT.jar" ).getMethod() );
+        assertEquals( ZipEntry.DEFLATED, cba.getEntry( "META-INF/COMPOSITEBUNDLE.MF" ).getMethod() );
+    }
+
+    public void testCompressionRules() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-compression-rules/plugin-config.xml";
+        ZipFile cba = testConfiguration( pluginConfig );
+        assertEquals( ZipEntry.DEFLATED, cba.getEntry( "maven-artifact01-1.0-SNAPSHOT.jar" ).getMethod() );
+        assertEquals( ZipEntry.STORED, cba.getEntry( "maven-artifact02-1.0-SNAPSHOT.jar" ).getMethod() );
+        assertEquals( ZipEntry.DEFLATED, cba.getEntry( "META-INF/COMPOSITEBUNDLE.MF" ).getMethod() );
+
+        // no entry saves 99% when deflated, so adaptive compression stores all of them
+        CbaMojo mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        setVariableValueToObject( mojo, "adaptiveCompression", Boolean.TRUE );
+        setVariableValueToObject( mojo, "adaptiveMinSavings", Integer.valueOf( 99 ) );
+        mojo.execute();
+        cba = new ZipFile( new File( getBasedir(), "target/unit/basic-cba-compression-rules/target/test-cba-compression-rules.cba" ) );
+        assertEquals( ZipEntry.STORED, cba.getEntry( "maven-artifact01-1.0-SNAPSHOT.jar" ).getMethod() );
+        assertEquals( ZipEntry.STORED, cba.getEntry( "META-INF/COMPOSITEBUNDLE.MF" ).getMethod() );
+    }
+
+    public void testCompositeBundleManifestMerge() throws Exception {
+        ZipFile cba = testConfiguration("target/test-classes/unit/basic-cba-merge-manifest/plugin-config.xml" );
+
+        CompositeBundleManifest manifest = CompositeBundleManifest.parse( cba.getInputStream( cba.getEntry( "META-INF/COMPOSITEBUNDLE.MF" ) ) );
+        assertEquals( "com.mybank.account.app", manifest.getBundleSymbolicName() );
+        assertEquals( "1.0", manifest.getBundleVersion() );
+
+        List<String> content = new ArrayList<String>();
+        for ( Clause clause : manifest.getContent() ) {
+            content.add( clause.getName() );
+        }
+        assertEquals( Arrays.asList( "com.mybank.account.bankWeb", "com.mybank.account.bankAccount", "com.mybank.account.common",
+                                     "com.mybank.account.utility" ), content.subList( 0, 4 ) );
+        assertEquals( 6, content.size() );
+        assertEquals( "com.mybank.security.UserAuthService;filter=\"(security=strong)\"",
+                      manifest.getHeader( "CompositeBundle-ImportService" ) );
+    }
+
+    public void testResourcesAreNotStaged() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-with-descriptor/plugin-config.xml";
+        CbaMojo mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        File workDir = new File( ( String ) getVariableValueFromObject( mojo, "workDirectory" ) );
+        FileUtils.deleteDirectory( workDir );
+
+        testConfiguration( pluginConfig );
+        assertFalse( "Work directory was created", workDir.exists() );
+
+        mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        setVariableValueToObject( mojo, "useWorkDirectory", Boolean.TRUE );
+        setVariableValueToObject( mojo, "forceCreation", Boolean.TRUE );
+        mojo.execute();
+        assertTrue( "Work directory was not created", new File( workDir, "META-INF/COMPOSITEBUNDLE.MF" ).exists() );
+    }
+
+    public void testCustomManifestOfAnotherNameKeepsTheSourceManifest() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-with-descriptor/plugin-config.xml";
+        File customManifest = new File( getBasedir(), "target/unit/basic-cba-with-descriptor/CUSTOM.MF" );
+        customManifest.getParentFile().mkdirs();
+        FileUtils.fileWrite( customManifest.getPath(), "UTF-8", "Manifest-Version: 1.0\n" );
+
+        CbaMojo mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        setVariableValueToObject( mojo, "archiver", "parallel" );
+        setVariableValueToObject( mojo, "generateManifest", Boolean.FALSE );
+        setVariableValueToObject( mojo, "compositeBundleManifestFile", customManifest );
+        setVariableValueToObject( mojo, "forceCreation", Boolean.TRUE );
+        mojo.execute();
+
+        File outputDirectory = new File( ( String ) getVariableValueFromObject( mojo, "outputDirectory" ) );
+        String finalName = ( String ) getVariableValueFromObject( mojo, "finalName" );
+        ZipFile cba = new ZipFile( new File( outputDirectory, finalName + ".cba" ) );
+        assertNotNull( cba.getEntry( "META-INF/COMPOSITEBUNDLE.MF" ) );
+        assertNotNull( cba.getEntry( "META-INF/CUSTOM.MF" ) );
+        cba.close();
+    }
+
+    public void testIncrementalUpdateReusesUnchangedEntries() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-incremental/plugin-config.xml";
+        File cbaFile = new File( getBasedir(), "target/unit/basic-cba-incremental/target/test-cba-incremental.cba" );
+        cbaFile.delete();
+
+        CbaMojo mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        mojo.execute();
+        ParallelZipArchiver archiver = (ParallelZipArchiver) getVariableValueFromObject( mojo, "parallelZipArchiver" );
+        assertEquals( 0, archiver.getReusedEntries() );
+
+        testConfiguration( pluginConfig );
+        mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        mojo.execute();
+        archiver = (ParallelZipArchiver) getVariableValueFromObject( mojo, "parallelZipArchiver" );
+        // both jars, pom.xml and the manifest; pom.properties carries a timestamp
+        assertTrue( "Reused " + archiver.getReusedEntries(), archiver.getReusedEntries() >= 4 );
+
+        java.util.zip.ZipFile jdkZip = new java.util.zip.ZipFile( cbaFile );
+        for ( Enumeration e = jdkZip.entries(); e.hasMoreElements(); ) {
+            IOUtil.toByteArray( jdkZip.getInputStream( ( java.util.zip.ZipEntry ) e.nextElement() ) );
+        }
+        jdkZip.close();
+        assertFalse( new File( cbaFile.getPath() + ".tmp" ).exists() );
+    }
+
+    public void testCorruptPreviousCbaIsRebuiltInFull() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-incremental/plugin-config.xml";
+        File cbaFile = new File( getBasedir(), "target/unit/basic-cba-incremental/target/test-cba-incremental.cba" );
+        cbaFile.delete();
+        CbaMojo mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        mojo.execute();
+
+        // the end of central directory claims one entry more than the directory holds
+        byte[] bytes = FileUtils.fileRead( cbaFile, "ISO-8859-1" ).getBytes( "ISO-8859-1" );
+        int end = new String( bytes, "ISO-8859-1" ).lastIndexOf( "PK\u0005\u0006" );
+        java.io.RandomAccessFile file = new java.io.RandomAccessFile( cbaFile, "rw" );
+        try {
+            for ( int field = end + 8; field <= end + 10; field += 2 ) {
+                file.seek( field );
+                file.write( bytes[field] + 1 );
+            }
+        } finally {
+            file.close();
+        }
+
+        mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        mojo.execute();
+        ParallelZipArchiver archiver = (ParallelZipArchiver) getVariableValueFromObject( mojo, "parallelZipArchiver" );
+        assertEquals( 0, archiver.getReusedEntries() );
+        java.util.zip.ZipFile jdkZip = new java.util.zip.ZipFile( cbaFile );
+        assertTrue( jdkZip.size() > 0 );
+        jdkZip.close();
+    }
+
+    public void testParallelModulesShareCompressedEntries() throws Exception {
+        String[] pluginConfigs = {
+            "target/test-classes/unit/basic-cba-test/plugin-config.xml",
+            "target/test-classes/unit/basic-cba-with-descriptor/plugin-config.xml"
+        };
+        CompressedEntryCache cache = CompressedEntryCache.getSessionCache();
+        cache.clear();
+        int hits = cache.getHits();
+
+        final List<Exception> failures = Collections.synchronizedList( new ArrayList<Exception>() );
+        List<Thread> modules = new ArrayList<Thread>();
+        for ( String pluginConfig : pluginConfigs ) {
+            final CbaMojo mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+            setVariableValueToObject( mojo, "archiver", "parallel" );
+            setVariableValueToObject( mojo, "forceCreation", Boolean.TRUE );
+            setVariableValueToObject( mojo, "entryCacheSize", Integer.valueOf( 128 ) );
+            // stored jars are never cached
+            CompressionRule deflateJars = new CompressionRule();
+            deflateJars.setPattern( "*.jar" );
+            deflateJars.setMethod( "deflate" );
+            setVariableValueToObject( mojo, "compressionRules", Collections.singletonList( deflateJars ) );
+            modules.add( new Thread( new Runnable() {
+                public void run() {
+                    try {
+                        mojo.execute();
+                    } catch ( Exception e ) {
+                        failures.add( e );
+                    }
+                }
+            } ) );
+        }
+        for ( Thread module : modules ) {
+            module.start();
+        }
+        for ( Thread module : modules ) {
+            module.join();
+        }
+
+        assertEquals( failures.toString(), 0, failures.size() );
+        // both modules include the same two jars, which are compressed once
+        assertEquals( 2, cache.getHits() - hits );
+    }
+
+    public void testReproducibleCbaIsByteIdentical() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-reproducible/plugin-config.xml";
+        File cbaFile = new File( getBasedir(), "target/unit/basic-cba-reproducible/target/test-cba-reproducible.cba" );
+        File readme = new File( getBasedir(), "target/test-classes/unit/basic-cba-reproducible/src/main/cba/docs/README.txt" );
+
+        lookupMojo( "cba", new File( getBasedir(), pluginConfig ) ).execute();
+        byte[] first = FileUtils.fileRead( cbaFile, "ISO-8859-1" ).getBytes( "ISO-8859-1" );
+        readme.setLastModified( readme.lastModified() - 3600 * 1000L );
+        lookupMojo( "cba", new File( getBasedir(), pluginConfig ) ).execute();
+        byte[] second = FileUtils.fileRead( cbaFile, "ISO-8859-1" ).getBytes( "ISO-8859-1" );
+        assertTrue( "Rebuilt cba differs", Arrays.equals( first, second ) );
+
+        java.util.zip.ZipFile jdkZip = new java.util.zip.ZipFile( cbaFile );
+        List<String> names = new ArrayList<String>();
+        for ( Enumeration e = jdkZip.entries(); e.hasMoreElements(); ) {
+            java.util.zip.ZipEntry entry = ( java.util.zip.ZipEntry ) e.nextElement();
+            names.add( entry.getName() );
+            long time = entry.getTime();
+            assertEquals( entry.getName(), 1577836800000L, time + TimeZone.getDefault().getOffset( time ) );
+        }
+        String pomProperties = IOUtil.toString( jdkZip.getInputStream(
+            jdkZip.getEntry( "META-INF/maven/org.apache.maven.test/maven-cba-test/pom.properties" ) ) );
+        jdkZip.close();
+
+        List<String> sorted = new ArrayList<String>( names );
+        Collections.sort( sorted, new Comparator<String>() {
+            public int compare( String left, String right ) {
+                // directories come first
+                if ( left.endsWith( "/" ) != right.endsWith( "/" ) )
+                    return left.endsWith( "/" ) ? -1 : 1;
+                return left.compareTo( right );
+            }
+        } );
+        assertEquals( sorted, names );
+        assertEquals( "#Generated by Maven\nartifactId=maven-cba-test\ngroupId=org.apache.maven.test\nversion=",
+                      pomProperties.substring( 0, pomProperties.indexOf( "version=" ) + 8 ) );
+    }
+
+    public void testPrefetchingDoesNotChangeTheCba() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-reproducible/plugin-config.xml";
+        File cbaFile = new File( getBasedir(), "target/unit/basic-cba-reproducible/target/test-cba-reproducible.cba" );
+        // bundles from 1 MB on are memory-mapped when prefetched
+        List<Artifact> artifacts = SyntheticBundles.create(
+            new File( getBasedir(), "target/unit/basic-cba-reproducible/bundles" ), 3, 2 * 1024 * 1024 );
+
+        byte[][] cbas = new byte[3][];
+        int[][] settings = { { 0, 64 }, { 2, 64 }, { 2, 0 } };
+        for ( int i = 0; i < settings.length; i++ ) {
+            CbaMojo mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+            setVariableValueToObject( mojo, "project", new CbaSyntheticProjectStub( artifacts ) );
+            setVariableValueToObject( mojo, "entryCacheSize", Integer.valueOf( 0 ) );
+            setVariableValueToObject( mojo, "prefetchThreads", Integer.valueOf( settings[i][0] ) );
+            setVariableValueToObject( mojo, "maxBufferedMemory", Integer.valueOf( settings[i][1] ) );
+            mojo.execute();
+            cbas[i] = FileUtils.fileRead( cbaFile, "ISO-8859-1" ).getBytes( "ISO-8859-1" );
+        }
+        assertTrue( "Prefetched cba differs", Arrays.equals( cbas[0], cbas[1] ) );
+        assertTrue( "Cba built one entry at a time differs", Arrays.equals( cbas[0], cbas[2] ) );
+    }
+
+    public void testMetricsAreWritten() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-test/plugin-config.xml";
+        File metricsFile = new File( getBasedir(), "target/unit/basic-cba-test/target/cba-metrics.json" );
+        metricsFile.delete();
+
+        CbaMojo mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        setVariableValueToObject( mojo, "metricsFile", metricsFile );
+        setVariableValueToObject( mojo, "archiver", "parallel" );
+        setVariableValueToObject( mojo, "forceCreation", Boolean.TRUE );
+        mojo.execute();
+
+        String json = FileUtils.fileRead( metricsFile, "UTF-8" );
+        assertTrue( json, json.indexOf( "\"module\": \"org.apache.maven.test:maven-cba-test:" ) > 0 );
+        for ( String phase : new String[] { "dependency selection", "manifest generation", "resources", "archive" } ) {
+            assertTrue( phase, json.indexOf( "{\"name\": \"" + phase + "\", \"wallMillis\": " ) > 0 );
+        }
+        assertTrue( json, json.indexOf( "\"entries\": 9" ) > 0 );
+        assertTrue( json, json.indexOf( "\"compressionRatio\": " ) > 0 );
+    }
+
+    public void testChecksumsAreWrittenAndAttached() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-test/plugin-config.xml";
+        File cbaFile = new File( getBasedir(), "target/unit/basic-cba-test/target/test-cba.cba" );
+
+        for ( String archiver : new String[] { "parallel", "zip" } ) {
+            CbaMojo mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+            setVariableValueToObject( mojo, "archiver", archiver );
+            setVariableValueToObject( mojo, "forceCreation", Boolean.TRUE );
+            setVariableValueToObject( mojo, "checksums", "SHA-1,SHA-256,SHA-512" );
+            mojo.execute();
+
+            byte[] cba = FileUtils.fileRead( cbaFile, "ISO-8859-1" ).getBytes( "ISO-8859-1" );
+            for ( String algorithm : new String[] { "SHA-1", "SHA-256", "SHA-512" } ) {
+                String extension = algorithm.toLowerCase().replace( "-", "" );
+                StringBuffer expected = new StringBuffer();
+                for ( byte b : MessageDigest.getInstance( algorithm ).digest( cba ) ) {
+                    expected.append( String.format( "%02x", Integer.valueOf( b & 0xff ) ) );
+                }
+                assertEquals( archiver + " " + algorithm, expected.toString(),
+                              FileUtils.fileRead( new File( cbaFile.getPath() + "." + extension ), "US-ASCII" ) );
+            }
+            MavenProject project = (MavenProject) getVariableValueFromObject( mojo, "project" );
+            List<String> attachedFiles = new ArrayList<String>();
+            for ( Object attached : project.getAttachedArtifacts() ) {
+                assertEquals( "checksum", ( (Artifact) attached ).getClassifier() );
+                attachedFiles.add( ( (Artifact) attached ).getFile().getName() );
+            }
+            assertEquals( Arrays.asList( "test-cba.cba.sha1", "test-cba.cba.sha256", "test-cba.cba.sha512" ), attachedFiles );
+        }
+    }
+
+    public void testDuplicateArtifactsAreDropped() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-deduplication/plugin-config.xml";
+        File workDir = new File( getBasedir(), "target/unit/basic-cba-deduplication" );
+        FileUtils.deleteDirectory( workDir );
+        new File( workDir, "src/main/cba" ).mkdirs();
+
+        List<Artifact> artifacts = new ArrayList<Artifact>( SyntheticBundles.create( new File( workDir, "bundles" ), 2, 4096 ) );
+        CbaArtifactStub alias = new CbaArtifactStub( SyntheticBundles.GROUP_ID, "alias", "1.0.0" );
+        alias.setScope( Artifact.SCOPE_COMPILE );
+        alias.setFile( new File( workDir, "bundles/alias-1.0.0.jar" ) );
+        FileUtils.copyFile( artifacts.get( 0 ).getFile(), alias.getFile() );
+        artifacts.add( alias );
+        CbaArtifactStub upgrade = new CbaArtifactStub( SyntheticBundles.GROUP_ID, "bundle1-upgrade", "2.0" );
+        upgrade.setScope( Artifact.SCOPE_COMPILE );
+        upgrade.setFile( new File( workDir, "bundles/bundle1-upgrade-2.0.jar" ) );
+        SyntheticBundles.writeBundle( upgrade.getFile(), SyntheticBundles.GROUP_ID + ".bundle1", "2.0.0",
+                                      "synthetic.bundle1;version=\"2.0.0\"", null, 4096, new Random( 1 ) );
+        artifacts.add( upgrade );
+
+        CbaMojo mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        setVariableValueToObject( mojo, "project", new CbaSyntheticProjectStub( artifacts ) );
+        mojo.execute();
+
+        ZipFile cba = new ZipFile( new File( workDir, "target/test-cba-deduplication.cba" ) );
+        assertNotNull( cba.getEntry( "bundle0-1.0.0.jar" ) );
+        assertNull( cba.getEntry( "alias-1.0.0.jar" ) );
+        assertNull( cba.getEntry( "bundle1-1.0.1.jar" ) );
+        assertNotNull( cba.getEntry( "bundle1-upgrade-2.0.jar" ) );
+        CompositeBundleManifest manifest = CompositeBundleManifest.parse(
+            cba.getInputStream( cba.getEntry( "META-INF/COMPOSITEBUNDLE.MF" ) ) );
+        assertEquals( 2, manifest.getContent().size() );
+        cba.close();
+
+        String report = FileUtils.fileRead( new File( workDir, "target/cba-deduplication.txt" ), "UTF-8" );
+        long saved = alias.getFile().length() + artifacts.get( 1 ).getFile().length();
+        assertTrue( report, report.startsWith( "4 artifact(s), 2 dropped, " + saved + " bytes saved\n" ) );
+    }
+
+    public void testNonJarContentIsNamedAfterItsCoordinates() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-deduplication/plugin-config.xml";
+        File workDir = new File( getBasedir(), "target/unit/basic-cba-deduplication" );
+        FileUtils.deleteDirectory( workDir );
+        new File( workDir, "src/main/cba" ).mkdirs();
+
+        List<Artifact> artifacts = new ArrayList<Artifact>( SyntheticBundles.create( new File( workDir, "bundles" ), 2, 4096 ) );
+        CbaArtifactStub pom = new CbaArtifactStub( SyntheticBundles.GROUP_ID, "parent", "1.0" );
+        pom.setScope( Artifact.SCOPE_COMPILE );
+        pom.setType( "pom" );
+        pom.setFile( new File( workDir, "bundles/parent-1.0.pom" ) );
+        FileUtils.fileWrite( pom.getFile().getPath(), "<project/>" );
+        artifacts.add( pom );
+
+        CbaMojo mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        setVariableValueToObject( mojo, "project", new CbaSyntheticProjectStub( artifacts ) );
+        setVariableValueToObject( mojo, "wiringCheck", "warn" );
+        mojo.execute();
+
+        ZipFile cba = new ZipFile( new File( workDir, "target/test-cba-deduplication.cba" ) );
+        assertNotNull( cba.getEntry( "parent-1.0.pom" ) );
+        CompositeBundleManifest manifest = CompositeBundleManifest.parse(
+            cba.getInputStream( cba.getEntry( "META-INF/COMPOSITEBUNDLE.MF" ) ) );
+        cba.close();
+        List<String> content = new ArrayList<String>();
+        for ( Clause clause : manifest.getContent() ) {
+            content.add( clause.getName() );
+        }
+        assertEquals( 3, content.size() );
+        String coordinatesName = new DefaultMaven2OsgiConverter().getBundleSymbolicName(
+            new CbaArtifactStub( SyntheticBundles.GROUP_ID, "parent", "1.0" ) );
+        assertTrue( content.toString(), content.contains( coordinatesName ) );
+    }
+
+    public void testExplodedCbaLinksBundles() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-exploded/plugin-config.xml";
+        File workDir = new File( getBasedir(), "target/unit/basic-cba-exploded" );
+        FileUtils.deleteDirectory( workDir );
+        new File( workDir, "src/main/cba" ).mkdirs();
+        List<Artifact> artifacts = SyntheticBundles.create( new File( workDir, "bundles" ), 3, 4096 );
+
+        CbaMojo mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        setVariableValueToObject( mojo, "project", new CbaSyntheticProjectStub( artifacts ) );
+        mojo.execute();
+
+        File exploded = new File( workDir, "target/test-cba-exploded-exploded" );
+        assertTrue( new File( exploded, "META-INF/COMPOSITEBUNDLE.MF" ).isFile() );
+        assertFalse( new File( workDir, "target/test-cba-exploded.cba" ).exists() );
+        for ( Artifact artifact : artifacts ) {
+            File bundle = new File( exploded, artifact.getFile().getName() );
+            assertTrue( bundle.getName(), Files.isSameFile( artifact.getFile().toPath(), bundle.toPath() ) );
+        }
+
+        mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        setVariableValueToObject( mojo, "project", new CbaSyntheticProjectStub( artifacts.subList( 0, 2 ) ) );
+        mojo.execute();
+        assertTrue( new File( exploded, artifacts.get( 1 ).getFile().getName() ).exists() );
+        assertFalse( new File( exploded, artifacts.get( 2 ).getFile().getName() ).exists() );
+        assertTrue( artifacts.get( 2 ).getFile().exists() );
+    }
+
+    public void testNestedJarsAreStoredAndDeflatedInTheCba() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-stored-jars/plugin-config.xml";
+        File workDir = new File( getBasedir(), "target/unit/basic-cba-stored-jars" );
+        FileUtils.deleteDirectory( workDir );
+        new File( workDir, "src/main/cba" ).mkdirs();
+        List<Artifact> artifacts = SyntheticBundles.create( new File( workDir, "bundles" ), 3, 64 * 1024 );
+        signJar( artifacts.get( 2 ).getFile() );
+
+        CbaMojo mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        setVariableValueToObject( mojo, "project", new CbaSyntheticProjectStub( artifacts ) );
+        mojo.execute();
+
+        ZipFile cba = new ZipFile( new File( workDir, "target/test-cba-stored-jars.cba" ) );
+        File extracted = new File( workDir, "extracted.jar" );
+        for ( Artifact artifact : artifacts.subList( 0, 2 ) ) {
+            ZipEntry entry = cba.getEntry( artifact.getFile().getName() );
+            assertEquals( ZipEntry.DEFLATED, entry.getMethod() );
+            FileUtils.fileWrite( extracted.getPath(), "ISO-8859-1",
+                                 new String( IOUtil.toByteArray( cba.getInputStream( entry ) ), "ISO-8859-1" ) );
+
+            java.util.jar.JarFile stored = new java.util.jar.JarFile( extracted );
+            java.util.jar.JarFile original = new java.util.jar.JarFile( artifact.getFile() );
+            assertEquals( original.getManifest(), stored.getManifest() );
+            assertEquals( original.size(), stored.size() );
+            for ( Enumeration e = original.entries(); e.hasMoreElements(); ) {
+                java.util.zip.ZipEntry originalEntry = ( java.util.zip.ZipEntry ) e.nextElement();
+                java.util.zip.ZipEntry storedEntry = stored.getEntry( originalEntry.getName() );
+                assertEquals( java.util.zip.ZipEntry.STORED, storedEntry.getMethod() );
+                assertTrue( originalEntry.getName(), Arrays.equals( IOUtil.toByteArray( original.getInputStream( originalEntry ) ),
+                                                                    IOUtil.toByteArray( stored.getInputStream( storedEntry ) ) ) );
+            }
+            original.close();
+            stored.close();
+        }
+
+        // the signed jar is copied as it is
+        ZipEntry signed = cba.getEntry( artifacts.get( 2 ).getFile().getName() );
+        assertEquals( ZipEntry.STORED, signed.getMethod() );
+        assertTrue( Arrays.equals( FileUtils.fileRead( artifacts.get( 2 ).getFile(), "ISO-8859-1" ).getBytes( "ISO-8859-1" ),
+                                   IOUtil.toByteArray( cba.getInputStream( signed ) ) ) );
+        cba.close();
+
+        String json = FileUtils.fileRead( new File( workDir, "target/cba-metrics.json" ), "UTF-8" );
+        assertTrue( json, json.matches( "(?s).*\"nested jar storing\"[^}]*\"entries\": 2\\}.*" ) );
+
+        // stored jars are reused while their jars are unchanged
+        File stored = new File( workDir, "target/cba-stored-jars/" + artifacts.get( 0 ).getFile().getName() );
+        assertEquals( artifacts.get( 0 ).getFile().lastModified(), stored.lastModified() );
+        mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+        setVariableValueToObject( mojo, "project", new CbaSyntheticProjectStub( artifacts ) );
+        mojo.execute();
+        json = FileUtils.fileRead( new File( workDir, "target/cba-metrics.json" ), "UTF-8" );
+        assertTrue( json, json.matches( "(?s).*\"nested jar storing\"[^}]*\"entries\": 0\\}.*" ) );
+    }
+
+    public void testBundleIndexListsNestedJars() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-index/plugin-config.xml";
+        File workDir = new File( getBasedir(), "target/unit/basic-cba-index" );
+        FileUtils.deleteDirectory( workDir );
+        new File( workDir, "src/main/cba" ).mkdirs();
+        List<Artifact> artifacts = SyntheticBundles.create( new File( workDir, "bundles" ), 2, 32 * 1024 );
+
+        String[] indexes = new String[2];
+        for ( int i = 0; i < indexes.length; i++ ) {
+            CbaMojo mojo = (CbaMojo) lookupMojo( "cba", new File( getBasedir(), pluginConfig ) );
+            setVariableValueToObject( mojo, "project", new CbaSyntheticProjectStub( artifacts ) );
+            // added from memory, then staged in the work directory
+            setVariableValueToObject( mojo, "useWorkDirectory", Boolean.valueOf( i == 1 ) );
+            mojo.execute();
+
+            ZipFile cba = new ZipFile( new File( workDir, "target/test-cba-index.cba" ) );
+            indexes[i] = new String( IOUtil.toByteArray( cba.getInputStream( cba.getEntry( BundleIndex.ENTRY_NAME ) ) ), "UTF-8" );
+            cba.close();
+        }
+        assertEquals( indexes[0], indexes[1] );
+
+        String index = indexes[0];
+        assertTrue( index, index.startsWith( "{\n  \"formatVersion\": 1,\n  \"jars\": [\n" ) );
+        for ( Artifact artifact : artifacts ) {
+            File jar = artifact.getFile();
+            String sha1 = ChecksumOutputStream.checksum( jar, new String[] { "SHA-1" } ).get( "SHA-1" );
+            assertTrue( index, index.indexOf( "{\"entry\": \"" + jar.getName() + "\", \"artifact\": \""
+                + SyntheticBundles.GROUP_ID + ":" + artifact.getArtifactId() + ":" + artifact.getVersion()
+                + "\", \"size\": " + jar.length() + ", \"sha1\": \"" + sha1 + "\"" ) > 0 );
+        }
+        assertTrue( index, index.indexOf( "\"bundle\": true, \"symbolicName\": \"" + SyntheticBundles.GROUP_ID
+            + ".bundle1\", \"version\": \"1.0.1\",\n     \"exports\": [\"synthetic.bundle1;version=\\\"1.0.0\\\"\"],\n"
+            + "     \"imports\": [\"synthetic.bundle0;version=\\\"[1.0,2)\\\"\"]}" ) > 0 );
+    }
+
+    /**
+     * Adds a signature file to a jar; the signature is not valid, but marks the jar as signed.
+     */
+    private static void signJar( File jar ) throws Exception {
+        File signed = new File( jar.getPath() + ".signed" );
+        java.util.zip.ZipFile in = new java.util.zip.ZipFile( jar );
+        java.util.zip.ZipOutputStream out = new java.util.zip.ZipOutputStream( new java.io.FileOutputStream( signed ) );
+        for ( Enumeration e = in.entries(); e.hasMoreElements(); ) {
+            java.util.zip.ZipEntry entry = ( java.util.zip.ZipEntry ) e.nextElement();
+            out.putNextEntry( new java.util.zip.ZipEntry( entry.getName() ) );
+            IOUtil.copy( in.getInputStream( entry ), out );
+            if ( entry.getName().equals( "META-INF/MANIFEST.MF" ) ) {
+                out.putNextEntry( new java.util.zip.ZipEntry( "META-INF/SIGNER.SF" ) );
+                out.write( "Signature-Version: 1.0\r\n".getBytes( "US-ASCII" ) );
+            }
+        }
+        in.close();
+        out.close();
+        assertTrue( jar.delete() && signed.renameTo( jar ) );
+    }
 
     private ZipFile testConfiguration(String pluginConfigFile) throws Exception
     {
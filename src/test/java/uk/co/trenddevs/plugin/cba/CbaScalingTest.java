@@ -0,0 +1,164 @@
+package uk.co.trenddevs.plugin.cba;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+import org.codehaus.plexus.util.FileUtils;
+import uk.co.trenddevs.plugin.cba.archive.ZipReader;
+import uk.co.trenddevs.plugin.cba.stubs.CbaSyntheticProjectStub;
+import uk.co.trenddevs.plugin.cba.stubs.SyntheticBundles;
+
+/**
+ * Runs the cba goal over thousands of synthetic bundles and checks that build time and peak
+ * heap grow no faster than the number of bundles.
+ *
+ * Build time is the CPU time the build reports in its metrics, including that of the compression
+ * threads. Wall time is printed too, but how much of the content the page cache holds weighs
+ * more on it than the plugin does once the content outgrows memory.
+ *
+ * The test is slow and writes gigabytes, so it only runs with the scaling profile, which also
+ * constrains the heap: <code>mvn test -Pscaling</code>. The sizes are set with the system
+ * properties cba.scaling.sizes (comma separated bundle counts), cba.scaling.bundleSize (bytes
+ * per bundle), cba.scaling.tolerance (how much worse than linear a larger build may be),
+ * cba.scaling.archiver (parallel by default, as the zip archiver cannot write Zip64) and
+ * cba.scaling.dir (where the bundles are generated, and kept for the next run).
+ */
+public class CbaScalingTest extends AbstractMojoTestCase {
+
+    private static final long MB = 1024 * 1024;
+
+    private static final Pattern CPU_MILLIS = Pattern.compile( "\"cpuMillis\": (\\d+)" );
+
+    public void testTimeAndHeapGrowLinearly() throws Exception {
+        int[] sizes = getSizes( System.getProperty( "cba.scaling.sizes", "1000,2000,5000" ) );
+        long bundleSize = Long.parseLong( System.getProperty( "cba.scaling.bundleSize", String.valueOf( MB ) ) );
+        double tolerance = Double.parseDouble( System.getProperty( "cba.scaling.tolerance", "1.5" ) );
+        File bundleDir = new File( System.getProperty( "cba.scaling.dir",
+            getBasedir() + "/target/unit/basic-cba-scaling/bundles-" + bundleSize ) );
+
+        // bundle i only depends on bundle i - 1, so each size takes a prefix of the largest set
+        List<Artifact> bundles = SyntheticBundles.create( bundleDir, sizes[sizes.length - 1], bundleSize );
+        new File( getBasedir(), "target/unit/basic-cba-scaling/src/main/cba" ).mkdirs();
+
+        // warms up the JIT, so that the smallest build is not measured cold
+        build( bundles.subList( 0, sizes[0] ) );
+
+        List<Run> runs = new ArrayList<Run>();
+        for ( int size : sizes ) {
+            Run run = build( bundles.subList( 0, size ) );
+            runs.add( run );
+            System.out.println( String.format( Locale.ENGLISH,
+                "%5d bundles, %6d MB: %7d ms cpu, %7d ms wall, peak heap %5d MB (max %d MB)",
+                Integer.valueOf( size ), Long.valueOf( size * bundleSize / MB ), Long.valueOf( run.cpuMillis ),
+                Long.valueOf( run.wallMillis ), Long.valueOf( run.peakHeap / MB ),
+                Long.valueOf( Runtime.getRuntime().maxMemory() / MB ) ) );
+        }
+
+        Run base = runs.get( 0 );
+        for ( Run run : runs.subList( 1, runs.size() ) ) {
+            double growth = ( double ) run.size / base.size;
+            assertTrue( run.size + " bundles took " + run.cpuMillis + " ms of cpu, " + base.size + " took "
+                        + base.cpuMillis + " ms", run.cpuMillis <= Math.max( base.cpuMillis, 1 ) * growth * tolerance );
+            assertTrue( run.size + " bundles peaked at " + run.peakHeap / MB + " MB of heap, " + base.size
+                        + " at " + base.peakHeap / MB + " MB", run.peakHeap <= base.peakHeap * growth * tolerance );
+        }
+    }
+
+    private Run build( List<Artifact> bundles ) throws Exception {
+        File pluginConfig = new File( getBasedir(), "target/test-classes/unit/basic-cba-scaling/plugin-config.xml" );
+        File cba = new File( getBasedir(), "target/unit/basic-cba-scaling/target/test-cba-scaling.cba" );
+        File metrics = new File( getBasedir(), "target/unit/basic-cba-scaling/target/cba-metrics.json" );
+        cba.delete();
+        FileUtils.deleteDirectory( new File( getBasedir(), "target/unit/basic-cba-scaling/target/cba-test-scaling" ) );
+
+        CbaMojo mojo = (CbaMojo) lookupMojo( "cba", pluginConfig );
+        setVariableValueToObject( mojo, "project", new CbaSyntheticProjectStub( bundles ) );
+        setVariableValueToObject( mojo, "archiver", System.getProperty( "cba.scaling.archiver", "parallel" ) );
+
+        List<MemoryPoolMXBean> heap = getHeapPools();
+        System.gc();
+        for ( MemoryPoolMXBean pool : heap ) {
+            pool.resetPeakUsage();
+        }
+        long start = System.currentTimeMillis();
+        mojo.execute();
+        Run run = new Run( bundles.size(), System.currentTimeMillis() - start );
+        Matcher phases = CPU_MILLIS.matcher( FileUtils.fileRead( metrics, "UTF-8" ) );
+        while ( phases.find() ) {
+            run.cpuMillis += Long.parseLong( phases.group( 1 ) );
+        }
+        for ( MemoryPoolMXBean pool : heap ) {
+            run.peakHeap += pool.getPeakUsage().getUsed();
+        }
+
+        // beyond 4GB the cba is a Zip64 archive
+        ZipReader zip = new ZipReader( cba );
+        try {
+            assertNotNull( zip.getEntry( "META-INF/COMPOSITEBUNDLE.MF" ) );
+            assertNotNull( zip.getEntry( bundles.get( bundles.size() - 1 ).getFile().getName() ) );
+        } finally {
+            zip.close();
+        }
+        cba.delete();
+        return run;
+    }
+
+    private static List<MemoryPoolMXBean> getHeapPools() {
+        List<MemoryPoolMXBean> heap = new ArrayList<MemoryPoolMXBean>();
+        for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+            if ( pool.getType() == MemoryType.HEAP && pool.isValid() )
+                heap.add( pool );
+        }
+        return heap;
+    }
+
+    private static int[] getSizes( String property ) {
+        String[] values = property.split( "," );
+        int[] sizes = new int[values.length];
+        for ( int i = 0; i < values.length; i++ ) {
+            sizes[i] = Integer.parseInt( values[i].trim() );
+        }
+        return sizes;
+    }
+
+    private static class Run {
+
+        private final int size;
+        private final long wallMillis;
+        private long cpuMillis;
+        private long peakHeap;
+
+        Run( int size, long wallMillis ) {
+            this.size = size;
+            this.wallMillis = wallMillis;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package uk.co.trenddevs.plugin.cba;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import uk.co.trenddevs.plugin.cba.stubs.CbaSyntheticProjectStub;
+import uk.co.trenddevs.plugin.cba.stubs.SyntheticBundles;
+
+public class CbaVerifyMojoTest extends AbstractMojoTestCase {
+
+    public void testBuiltCbaVerifiesAndCbaMissingABundleFails() throws Exception {
+        File workDir = new File( getBasedir(), "target/unit/basic-cba-verify" );
+        FileUtils.deleteDirectory( workDir );
+        new File( workDir, "src/main/cba" ).mkdirs();
+        List<Artifact> artifacts = SyntheticBundles.create( new File( workDir, "bundles" ), 3, 32 * 1024 );
+
+        File pluginConfig = new File( getBasedir(), "target/test-classes/unit/basic-cba-verify/plugin-config.xml" );
+        CbaMojo mojo = (CbaMojo) lookupMojo( "cba", pluginConfig );
+        setVariableValueToObject( mojo, "project", new CbaSyntheticProjectStub( new ArrayList<Artifact>( artifacts ) ) );
+        setVariableValueToObject( mojo, "checksums", "" );
+        // the project jar is nested without being listed in CompositeBundle-Content
+        setVariableValueToObject( mojo, "includeJar", Boolean.TRUE );
+        File projectJar = new File( workDir, "target/test-cba-verify.jar" );
+        projectJar.getParentFile().mkdirs();
+        new JarOutputStream( new FileOutputStream( projectJar ), new Manifest() ).close();
+        mojo.execute();
+
+        File verifyConfig = new File( getBasedir(), "target/test-classes/unit/basic-cba-verify/verify-config.xml" );
+        CbaVerifyMojo verifyMojo = (CbaVerifyMojo) lookupMojo( "verify", verifyConfig );
+        verifyMojo.execute();
+
+        // drops a nested bundle from the cba, keeping its manifest
+        File cba = new File( workDir, "target/test-cba-verify.cba" );
+        File trimmed = new File( workDir, "target/trimmed.cba" );
+        ZipFile zip = new ZipFile( cba );
+        ZipOutputStream out = new ZipOutputStream( new FileOutputStream( trimmed ) );
+        try {
+            for ( Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                if ( entry.getName().startsWith( "bundle1" ) )
+                    continue;
+                out.putNextEntry( new ZipEntry( entry.getName() ) );
+                IOUtil.copy( zip.getInputStream( entry ), out );
+            }
+        } finally {
+            out.close();
+            zip.close();
+        }
+        setVariableValueToObject( verifyMojo, "cbaFile", trimmed );
+        try {
+            verifyMojo.execute();
+            fail( "verified a cba missing a bundle" );
+        } catch ( MojoExecutionException e ) {
+            assertTrue( e.getMessage(), e.getMessage().indexOf( "missing bundle " + SyntheticBundles.GROUP_ID + ".bundle1" ) > 0 );
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package uk.co.trenddevs.plugin.cba;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.plugin.testing.AbstractMojoTestCase;
+import org.codehaus.plexus.archiver.zip.ZipFile;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import uk.co.trenddevs.plugin.cba.stubs.CbaSyntheticProjectStub;
+import uk.co.trenddevs.plugin.cba.stubs.SyntheticBundles;
+
+public class CbaWatchMojoTest extends AbstractMojoTestCase {
+
+    private static final long TIMEOUT = 30000;
+
+    private File cba;
+
+    public void testChangedInputsRefreshTheCba() throws Exception {
+        String pluginConfig = "target/test-classes/unit/basic-cba-watch/plugin-config.xml";
+        File workDir = new File( getBasedir(), "target/unit/basic-cba-watch" );
+        FileUtils.deleteDirectory( workDir );
+        File sourceDir = new File( workDir, "src/main/cba" );
+        sourceDir.mkdirs();
+        List<Artifact> artifacts = SyntheticBundles.create( new File( workDir, "bundles" ), 2, 4096 );
+        cba = new File( workDir, "target/test-cba-watch.cba" );
+
+        final CbaMojo mojo = (CbaMojo) lookupMojo( "watch", new File( getBasedir(), pluginConfig ) );
+        setVariableValueToObject( mojo, "project", new CbaSyntheticProjectStub( artifacts ) );
+        setVariableValueToObject( mojo, "quietPeriod", Long.valueOf( 100 ) );
+        final Exception[] failure = new Exception[1];
+        Thread watch = new Thread( new Runnable() {
+            public void run() {
+                try {
+                    mojo.execute();
+                } catch ( Exception e ) {
+                    failure[0] = e;
+                }
+            }
+        }, "cba-watch" );
+        watch.start();
+        try {
+            assertTrue( "initial build", awaitEntry( "META-INF/COMPOSITEBUNDLE.MF", true ) );
+
+            FileUtils.fileWrite( new File( sourceDir, "extra.txt" ).getPath(), "extra" );
+            assertTrue( "added resource", awaitEntry( "extra.txt", true ) );
+            new File( sourceDir, "extra.txt" ).delete();
+            assertTrue( "removed resource", awaitEntry( "extra.txt", false ) );
+
+            // a dependency changing its symbolic name regenerates the manifest
+            Artifact bundle = artifacts.get( 0 );
+            SyntheticBundles.writeBundle( bundle.getFile(), "renamed", "1.0.0", "renamed;version=\"1.0\"", null, 8192,
+                                          new Random( 1 ) );
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (readManifest().indexOf( "renamed" ) < 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep( 100 );
+            }
+            assertTrue( readManifest(), readManifest().indexOf( "renamed" ) >= 0 );
+        } finally {
+            watch.interrupt();
+            watch.join( TIMEOUT );
+        }
+        assertFalse( watch.isAlive() );
+        assertNull( failure[0] );
+    }
+
+    private boolean awaitEntry( String name, boolean present ) throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (System.currentTimeMillis() < deadline) {
+            if (hasEntry( name ) == present)
+                return true;
+            Thread.sleep( 100 );
+        }
+        return false;
+    }
+
+    private boolean hasEntry( String name ) {
+        try {
+            ZipFile zip = new ZipFile( cba );
+            try {
+                return zip.getEntry( name ) != null;
+            } finally {
+                zip.close();
+            }
+        } catch ( IOException e ) {
+            // not written yet, or being replaced
+            return false;
+        }
+    }
+
+    private String readManifest() throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                ZipFile zip = new ZipFile( cba );
+                try {
+                    return IOUtil.toString( zip.getInputStream( zip.getEntry( CbaMojo.COMPOSITE_BUNDLE_MF_URI ) ), "UTF-8" );
+                } finally {
+                    zip.close();
+                }
+            } catch ( IOException e ) {
+                if (attempt == 10)
+                    throw e;
+            }
+        }
+    }
+}
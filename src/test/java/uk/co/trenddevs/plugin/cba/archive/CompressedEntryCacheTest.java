@@ -0,0 +1,128 @@
+package uk.co.trenddevs.plugin.cba.archive;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.zip.Deflater;
+
+import junit.framework.TestCase;
+import org.codehaus.plexus.PlexusTestCase;
+import org.codehaus.plexus.util.FileUtils;
+
+public class CompressedEntryCacheTest extends TestCase {
+
+    private final EntryCompressor compressor = new EntryCompressor(new CompressionPolicy(Deflater.BEST_SPEED));
+
+    private File workDir;
+
+    protected void setUp() throws Exception {
+        workDir = new File( PlexusTestCase.getBasedir(), "target/unit/compressed-entry-cache" );
+        FileUtils.deleteDirectory( workDir );
+        workDir.mkdirs();
+    }
+
+    public void testEntriesAreAddressedByContent() throws Exception {
+        File a = write( "a.txt", "shared content shared content shared content" );
+        File b = write( "b.txt", "shared content shared content shared content" );
+        File c = write( "c.txt", "other content" );
+        CompressedEntryCache cache = new CompressedEntryCache( 1024 * 1024 );
+
+        CompressedEntry first = get( cache, a, null );
+        assertSame( first, get( cache, b, null ) );
+        assertNotSame( first, get( cache, c, null ) );
+        assertEquals( 2, cache.getMisses() );
+        assertEquals( 1, cache.getHits() );
+        assertEquals( EntryCompressor.crc( a ), first.getCrc() );
+    }
+
+    public void testContentAlreadyReadIsHashed() throws Exception {
+        File a = write( "a.txt", "read once read once read once" );
+        final File b = write( "b.txt", "read once read once read once" );
+        CompressedEntryCache cache = new CompressedEntryCache( 1024 * 1024 );
+        CompressedEntry first = get( cache, a, null );
+
+        CompressedEntry second = cache.get( b, new ByteArrayInputStream( FileUtils.fileRead( b ).getBytes() ),
+                                            compressor.getSettingsKey( b.getName() ), null, new Callable<CompressedEntry>() {
+            public CompressedEntry call() throws Exception {
+                return compressor.compress( b.getName(), b, b.lastModified(), 0100644 );
+            }
+        } );
+        assertSame( first, second );
+        assertEquals( 1, cache.getHits() );
+    }
+
+    public void testLeastRecentlyUsedEntriesAreEvicted() throws Exception {
+        File a = write( "a.txt", "aaaa" );
+        File b = write( "b.txt", "bbbb" );
+        File c = write( "c.txt", "cccc" );
+        CompressedEntryCache cache = new CompressedEntryCache( 0 );
+        long entrySize = get( cache, a, null ).getCompressedSize();
+        assertEquals( 0, cache.getEntryCount() );
+
+        cache.setMaxBytes( 2 * entrySize );
+        CompressedEntry cached = get( cache, a, null );
+        assertEquals( "the compressor's buffer is not kept", entrySize, cached.getData().length );
+        get( cache, b, null );
+        get( cache, a, null );
+        get( cache, c, null );
+        assertEquals( 2, cache.getEntryCount() );
+        assertEquals( 2 * entrySize, cache.getSize() );
+
+        int misses = cache.getMisses();
+        get( cache, a, null );
+        assertEquals( "a was used more recently than b", misses, cache.getMisses() );
+        get( cache, b, null );
+        assertEquals( misses + 1, cache.getMisses() );
+    }
+
+    public void testEntriesAreKeptInDirectory() throws Exception {
+        File a = write( "a.txt", "kept between builds kept between builds" );
+        File directory = new File( workDir, "entries" );
+        CompressedEntry compressed = get( new CompressedEntryCache( 1024 * 1024 ), a, directory );
+
+        CompressedEntryCache next = new CompressedEntryCache( 1024 * 1024 );
+        CompressedEntry loaded = get( next, a, directory );
+        assertEquals( 0, next.getMisses() );
+        assertEquals( 1, next.getDiskHits() );
+        assertEquals( compressed.getMethod(), loaded.getMethod() );
+        assertEquals( compressed.getCrc(), loaded.getCrc() );
+        assertEquals( compressed.getSize(), loaded.getSize() );
+        assertEquals( compressed.getCompressedSize(), loaded.getCompressedSize() );
+        for ( int i = 0; i < loaded.getCompressedSize(); i++ ) {
+            assertEquals( compressed.getData()[i], loaded.getData()[i] );
+        }
+    }
+
+    private CompressedEntry get( CompressedEntryCache cache, final File file, File directory ) throws Exception {
+        return cache.get( file, compressor.getSettingsKey( file.getName() ), directory, new Callable<CompressedEntry>() {
+            public CompressedEntry call() throws Exception {
+                return compressor.compress( file.getName(), file, file.lastModified(), 0100644 );
+            }
+        } );
+    }
+
+    private File write( String name, String content ) throws Exception {
+        File file = new File( workDir, name );
+        FileUtils.fileWrite( file.getPath(), content );
+        return file;
+    }
+}
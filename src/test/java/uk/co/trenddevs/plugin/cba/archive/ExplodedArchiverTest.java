@@ -0,0 +1,98 @@
+package uk.co.trenddevs.plugin.cba.archive;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.nio.file.Files;
+
+import junit.framework.TestCase;
+import org.codehaus.plexus.PlexusTestCase;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.codehaus.plexus.util.FileUtils;
+
+public class ExplodedArchiverTest extends TestCase {
+
+    private File workDir;
+
+    private File source;
+
+    private File directory;
+
+    protected void setUp() throws Exception {
+        workDir = new File( PlexusTestCase.getBasedir(), "target/unit/exploded-archiver" );
+        FileUtils.deleteDirectory( workDir );
+        ExplodedArchiver.getIndexFile( new File( workDir, "exploded" ) ).delete();
+        source = new File( workDir, "source" );
+        directory = new File( workDir, "exploded" );
+        source.mkdirs();
+        FileUtils.fileWrite( new File( source, "a.jar" ).getPath(), "a" );
+        FileUtils.fileWrite( new File( source, "b.jar" ).getPath(), "b" );
+    }
+
+    public void testFilesAreHardLinkedAndUpdated() throws Exception {
+        ExplodedArchiver archiver = createArchiver( ExplodedArchiver.HARD_LINK );
+        archiver.addFile( new File( source, "a.jar" ), "a.jar" );
+        archiver.addFile( new File( source, "b.jar" ), "lib/b.jar" );
+        archiver.addContent( "Manifest-Version: 1\n".getBytes( "UTF-8" ), "META-INF/COMPOSITEBUNDLE.MF" );
+        archiver.createArchive();
+        assertEquals( 2, archiver.getLinkedCount() );
+        assertEquals( 1, archiver.getCopiedCount() );
+        assertTrue( Files.isSameFile( new File( source, "a.jar" ).toPath(), new File( directory, "a.jar" ).toPath() ) );
+        assertEquals( "Manifest-Version: 1\n", FileUtils.fileRead( new File( directory, "META-INF/COMPOSITEBUNDLE.MF" ) ) );
+
+        // a file the archiver did not place is never removed
+        FileUtils.fileWrite( new File( directory, "notes.txt" ).getPath(), "mine" );
+
+        archiver = createArchiver( ExplodedArchiver.HARD_LINK );
+        archiver.addFile( new File( source, "a.jar" ), "a.jar" );
+        archiver.addContent( "Manifest-Version: 1\n".getBytes( "UTF-8" ), "META-INF/COMPOSITEBUNDLE.MF" );
+        archiver.createArchive();
+        assertEquals( 2, archiver.getUnchangedCount() );
+        assertEquals( 0, archiver.getLinkedCount() + archiver.getCopiedCount() );
+        assertEquals( 1, archiver.getRemovedCount() );
+        assertFalse( new File( directory, "lib" ).exists() );
+        assertTrue( new File( directory, "notes.txt" ).exists() );
+        assertEquals( "b", FileUtils.fileRead( new File( source, "b.jar" ) ) );
+    }
+
+    public void testFilesAreSymbolicallyLinked() throws Exception {
+        ExplodedArchiver archiver = createArchiver( ExplodedArchiver.SYMBOLIC_LINK );
+        archiver.addFile( new File( source, "a.jar" ), "a.jar" );
+        archiver.createArchive();
+        assertTrue( Files.isSymbolicLink( new File( directory, "a.jar" ).toPath() ) );
+
+        // switching to copies replaces the link rather than writing through it
+        archiver = createArchiver( ExplodedArchiver.COPY );
+        archiver.addFile( new File( source, "a.jar" ), "a.jar" );
+        archiver.createArchive();
+        assertEquals( 1, archiver.getCopiedCount() );
+        assertFalse( Files.isSymbolicLink( new File( directory, "a.jar" ).toPath() ) );
+        assertEquals( "a", FileUtils.fileRead( new File( directory, "a.jar" ) ) );
+    }
+
+    private ExplodedArchiver createArchiver( String linkMode ) {
+        ExplodedArchiver archiver = new ExplodedArchiver();
+        archiver.enableLogging( new ConsoleLogger( Logger.LEVEL_WARN, "exploded" ) );
+        archiver.setLinkMode( linkMode );
+        archiver.setDestFile( directory );
+        return archiver;
+    }
+}
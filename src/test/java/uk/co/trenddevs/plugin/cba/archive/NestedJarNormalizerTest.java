@@ -0,0 +1,89 @@
+package uk.co.trenddevs.plugin.cba.archive;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+import org.codehaus.plexus.PlexusTestCase;
+import org.codehaus.plexus.util.FileUtils;
+
+public class NestedJarNormalizerTest extends TestCase {
+
+    private File workDir;
+
+    protected void setUp() throws Exception {
+        workDir = new File( PlexusTestCase.getBasedir(), "target/unit/nested-jar-normalizer" );
+        FileUtils.deleteDirectory( workDir );
+        workDir.mkdirs();
+    }
+
+    public void testJarChangedWithinTheSameTimeIsStoredAgain() throws Exception {
+        File jar = writeJar( "a.jar", "first" );
+        NestedJarNormalizer normalizer = new NestedJarNormalizer( new File( workDir, "stored" ) );
+        File stored = normalizer.normalize( jar, "a.jar" );
+        assertEquals( 1, normalizer.getStoredCount() );
+
+        normalizer.normalize( jar, "a.jar" );
+        assertEquals( 1, normalizer.getReusedCount() );
+
+        long time = jar.lastModified();
+        writeJar( "a.jar", "second, longer" );
+        jar.setLastModified( time );
+        normalizer.normalize( jar, "a.jar" );
+        assertEquals( 2, normalizer.getStoredCount() );
+        assertEquals( 1, normalizer.getReusedCount() );
+        ZipReader reader = new ZipReader( stored );
+        try {
+            assertEquals( "second, longer", new String( reader.readContent( reader.getEntry( "content.txt" ) ), "UTF-8" ) );
+        } finally {
+            reader.close();
+        }
+    }
+
+    public void testJarThatCannotBeStoredIsLeftAsItIs() throws Exception {
+        File jar = writeJar( "a.jar", "content" );
+        File directory = new File( workDir, "stored" );
+        // a directory where the stored jar belongs cannot be replaced
+        new File( directory, "a.jar/in-the-way" ).mkdirs();
+        NestedJarNormalizer normalizer = new NestedJarNormalizer( directory );
+
+        assertSame( jar, normalizer.normalize( jar, "a.jar" ) );
+        assertEquals( 0, normalizer.getStoredCount() );
+        assertTrue( normalizer.getFailures().containsKey( "a.jar" ) );
+        assertFalse( new File( directory, "a.jar.tmp" ).exists() );
+    }
+
+    private File writeJar( String name, String content ) throws Exception {
+        File file = new File( workDir, name );
+        JarOutputStream out = new JarOutputStream( new FileOutputStream( file ), new Manifest() );
+        try {
+            out.putNextEntry( new JarEntry( "content.txt" ) );
+            out.write( content.getBytes( "UTF-8" ) );
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,116 @@
+package uk.co.trenddevs.plugin.cba.bundle;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.shared.osgi.DefaultMaven2OsgiConverter;
+import org.codehaus.plexus.PlexusTestCase;
+import org.codehaus.plexus.util.FileUtils;
+import uk.co.trenddevs.plugin.cba.stubs.CbaArtifactStub;
+import uk.co.trenddevs.plugin.cba.stubs.SyntheticBundles;
+
+public class ArtifactDeduplicatorTest extends TestCase {
+
+    private File workDir;
+
+    private Artifact bundle;
+
+    private Artifact alias;
+
+    private Artifact older;
+
+    private Artifact newer;
+
+    protected void setUp() throws Exception {
+        workDir = new File( PlexusTestCase.getBasedir(), "target/unit/artifact-deduplicator" );
+        FileUtils.deleteDirectory( workDir );
+        workDir.mkdirs();
+
+        bundle = createBundle( "bundle", "1.0", "a", "1.0.0" );
+        alias = createArtifact( "alias", "1.0", new File( workDir, "alias.jar" ) );
+        FileUtils.copyFile( bundle.getFile(), alias.getFile() );
+        older = createBundle( "older", "1.0", "b", "1.0.0" );
+        newer = createBundle( "newer", "1.1", "b", "1.1.0" );
+    }
+
+    public void testIdenticalJarsAreDropped() throws Exception {
+        ArtifactDeduplicator.Result result = deduplicate( false, bundle, alias, older );
+
+        assertEquals( Arrays.asList( bundle, older ), new ArrayList<Artifact>( result.getSelected() ) );
+        assertSame( bundle, result.getDuplicates().get( alias ) );
+        assertEquals( alias.getFile().length(), result.getBytesSaved() );
+        assertTrue( result.getConflicts().isEmpty() );
+    }
+
+    public void testVersionConflictsAreReported() throws Exception {
+        ArtifactDeduplicator.Result result = deduplicate( false, older, newer );
+
+        assertEquals( 2, result.getSelected().size() );
+        assertEquals( 1, result.getConflicts().size() );
+        assertTrue( result.getConflicts().get( 0 ), result.getConflicts().get( 0 ).startsWith( "b is included in versions 1.0.0" ) );
+        assertEquals( 0, result.getBytesSaved() );
+    }
+
+    public void testHighestVersionIsKept() throws Exception {
+        ArtifactDeduplicator.Result result = deduplicate( true, newer, bundle, older );
+
+        assertEquals( Arrays.asList( newer, bundle ), new ArrayList<Artifact>( result.getSelected() ) );
+        assertSame( newer, result.getOverridden().get( older ) );
+        List<String> report = result.getReport();
+        assertEquals( "3 artifact(s), 1 dropped, " + older.getFile().length() + " bytes saved", report.get( 0 ) );
+        assertEquals( "overridden " + older.getId() + " by " + newer.getId(), report.get( 1 ) );
+    }
+
+    public void testJarsAreNotOpenedWhenConflictsAreNotLookedFor() throws Exception {
+        BundleMetadataCache cache = new BundleMetadataCache();
+        ArtifactDeduplicator.Result result = new ArtifactDeduplicator( cache, new DefaultMaven2OsgiConverter(), false, false, false )
+            .deduplicate( Arrays.asList( older, newer ) );
+
+        assertEquals( 2, result.getSelected().size() );
+        assertTrue( result.getConflicts().isEmpty() );
+        assertEquals( 0, cache.size() );
+    }
+
+    private ArtifactDeduplicator.Result deduplicate( boolean keepHighest, Artifact... artifacts ) throws Exception {
+        return new ArtifactDeduplicator( new BundleMetadataCache(), new DefaultMaven2OsgiConverter(), true, keepHighest )
+            .deduplicate( Arrays.asList( artifacts ) );
+    }
+
+    private Artifact createBundle( String artifactId, String version, String symbolicName, String bundleVersion )
+        throws Exception {
+        File jar = new File( workDir, artifactId + ".jar" );
+        SyntheticBundles.writeBundle( jar, symbolicName, bundleVersion, symbolicName + ";version=\"1.0\"", null, 1024,
+                                      new Random( artifactId.hashCode() ) );
+        return createArtifact( artifactId, version, jar );
+    }
+
+    private Artifact createArtifact( String artifactId, String version, File file ) {
+        CbaArtifactStub artifact = new CbaArtifactStub( "org.apache.maven.test", artifactId, version );
+        artifact.setFile( file );
+        return artifact;
+    }
+}
@@ -0,0 +1,100 @@
+package uk.co.trenddevs.plugin.cba.bundle;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.shared.osgi.DefaultMaven2OsgiConverter;
+import org.codehaus.plexus.PlexusTestCase;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import uk.co.trenddevs.plugin.cba.manifest.Clause;
+import uk.co.trenddevs.plugin.cba.stubs.CbaArtifactStub;
+
+public class BundleAnalyzerTest extends TestCase {
+
+    public void testClassesAreAnalyzedOnce() throws Exception {
+        File workDir = new File( PlexusTestCase.getBasedir(), "target/unit/bundle-analyzer" );
+        FileUtils.deleteDirectory( workDir );
+        workDir.mkdirs();
+
+        // BundleMetadata refers to the archive and manifest packages, which the jar does not contain
+        File jar = new File( workDir, "analyzed.jar" );
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        manifest.getMainAttributes().putValue( BundleMetadata.BUNDLE_SYMBOLIC_NAME, "analyzed" );
+        manifest.getMainAttributes().putValue( BundleMetadata.EXPORT_PACKAGE, "uk.co.trenddevs.plugin.cba.bundle;version=1.0" );
+        JarOutputStream out = new JarOutputStream( new FileOutputStream( jar ), manifest );
+        for ( Class type : new Class[] { BundleMetadata.class, Version.class } ) {
+            String name = type.getName().replace( '.', '/' ) + ".class";
+            out.putNextEntry( new JarEntry( name ) );
+            IOUtil.copy( getClass().getResourceAsStream( "/" + name ), out );
+        }
+        out.close();
+
+        CbaArtifactStub artifact = new CbaArtifactStub( "org.apache.maven.test", "analyzed", "1.0" );
+        artifact.setFile( jar );
+        BundleMetadataCache cache = new BundleMetadataCache();
+        BundleAnalyzer analyzer = new BundleAnalyzer( cache, new DefaultMaven2OsgiConverter(), 2 );
+        List<BundleMetadata> bundles = analyzer.analyze( Collections.singletonList( ( Artifact ) artifact ) );
+
+        List<Clause> exports = BundleAnalyzer.getCompositeExports( bundles );
+        assertEquals( 1, exports.size() );
+        assertEquals( "uk.co.trenddevs.plugin.cba.bundle", exports.get( 0 ).getName() );
+        assertEquals( "1.0", exports.get( 0 ).getAttribute( "version" ) );
+        assertTrue( names( BundleAnalyzer.getCompositeImports( bundles ) ).containsAll( Arrays.asList(
+            "uk.co.trenddevs.plugin.cba.archive", "uk.co.trenddevs.plugin.cba.manifest" ) ) );
+
+        assertSame( bundles.get( 0 ), analyzer.analyze( Collections.singletonList( ( Artifact ) artifact ) ).get( 0 ) );
+    }
+
+    public void testCompositeImportsExcludeContentExports() {
+        List<BundleMetadata> bundles = new ArrayList<BundleMetadata>();
+        bundles.add( analyzed( "a;version=\"1.0\"", "a,b;resolution:=optional,c,java.util" ) );
+        bundles.add( analyzed( "", "b,c;version=\"[1,2)\"" ) );
+
+        List<Clause> imports = BundleAnalyzer.getCompositeImports( bundles );
+        assertEquals( Arrays.asList( "b", "c" ), names( imports ) );
+        assertNull( "b is not optional for the second bundle", imports.get( 0 ).getDirective( "resolution" ) );
+    }
+
+    private BundleMetadata analyzed( String exports, String imports ) {
+        return new BundleMetadata( 0, 0, true, "test", "2", "1.0", null, null ).withAnalysis( exports, imports );
+    }
+
+    private List<String> names( List<Clause> clauses ) {
+        List<String> names = new ArrayList<String>();
+        for ( Clause clause : clauses ) {
+            names.add( clause.getName() );
+        }
+        return names;
+    }
+}
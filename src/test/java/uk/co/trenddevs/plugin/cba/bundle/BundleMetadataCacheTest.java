@@ -0,0 +1,148 @@
+package uk.co.trenddevs.plugin.cba.bundle;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+import org.apache.maven.shared.osgi.DefaultMaven2OsgiConverter;
+import org.apache.maven.shared.osgi.Maven2OsgiConverter;
+import org.codehaus.plexus.PlexusTestCase;
+import org.codehaus.plexus.util.FileUtils;
+import uk.co.trenddevs.plugin.cba.stubs.CbaArtifactStub;
+
+public class BundleMetadataCacheTest extends TestCase {
+
+    private final Maven2OsgiConverter converter = new DefaultMaven2OsgiConverter();
+
+    private File workDir;
+
+    protected void setUp() throws Exception {
+        workDir = new File( PlexusTestCase.getBasedir(), "target/unit/bundle-metadata-cache" );
+        FileUtils.deleteDirectory( workDir );
+        workDir.mkdirs();
+    }
+
+    public void testBundleIsReadOnce() throws Exception {
+        File jar = new File( workDir, "maven-artifact01-1.0-SNAPSHOT.jar" );
+        FileUtils.copyFile( new File( PlexusTestCase.getBasedir(),
+            "src/test/remote-repo/org/apache/maven/test/maven-artifact01/1.0-SNAPSHOT/maven-artifact01-1.0-SNAPSHOT.jar" ), jar );
+        CbaArtifactStub artifact = createArtifact( "maven-artifact01", jar );
+
+        BundleMetadataCache cache = new BundleMetadataCache();
+        BundleMetadata metadata = cache.get( artifact, converter );
+        assertTrue( metadata.isBundle() );
+        assertEquals( "maven-artifact01-1.0-SNAPSHOT", metadata.getSymbolicName() );
+        assertEquals( "1.0.0.SNAPSHOT", metadata.getVersion() );
+        assertSame( metadata, cache.get( artifact, converter ) );
+
+        // a changed jar is read again
+        jar.setLastModified( jar.lastModified() - 10000 );
+        assertNotSame( metadata, cache.get( artifact, converter ) );
+    }
+
+    public void testStoreAndLoad() throws Exception {
+        File jar = new File( workDir, "plain.jar" );
+        JarOutputStream out = new JarOutputStream( new FileOutputStream( jar ), new Manifest() );
+        out.close();
+        CbaArtifactStub artifact = createArtifact( "plain", jar );
+
+        BundleMetadataCache cache = new BundleMetadataCache();
+        BundleMetadata metadata = cache.get( artifact, converter );
+        assertFalse( metadata.isBundle() );
+        assertEquals( converter.getBundleSymbolicName( artifact ), metadata.getSymbolicName() );
+        assertTrue( cache.isModified() );
+        String hash = cache.getContentHash( artifact );
+        assertEquals( 40, hash.length() );
+
+        File stored = new File( workDir, "cache.properties" );
+        cache.store( stored );
+        assertFalse( cache.isModified() );
+
+        BundleMetadataCache loaded = new BundleMetadataCache();
+        loaded.load( stored );
+        assertEquals( 1, loaded.size() );
+        BundleMetadata cached = loaded.get( artifact, converter );
+        assertFalse( loaded.isModified() );
+        assertEquals( metadata.getSymbolicName(), cached.getSymbolicName() );
+        assertNull( cached.getExportPackage() );
+        assertEquals( hash, loaded.getContentHash( artifact ) );
+        assertFalse( "the hash is not computed again", loaded.isModified() );
+    }
+
+    public void testBuildsStoreOnlyTheirOwnEntries() throws Exception {
+        CbaArtifactStub first = createArtifact( "first", createJar( "first.jar" ) );
+        CbaArtifactStub second = createArtifact( "second", createJar( "second.jar" ) );
+        BundleMetadataCache session = new BundleMetadataCache();
+
+        BundleMetadataCache firstBuild = session.forBuild();
+        firstBuild.get( first, converter );
+        File firstStored = new File( workDir, "first.properties" );
+        firstBuild.store( firstStored );
+
+        BundleMetadataCache secondBuild = session.forBuild();
+        secondBuild.get( second, converter );
+        File secondStored = new File( workDir, "second.properties" );
+        secondBuild.store( secondStored );
+
+        BundleMetadataCache loaded = new BundleMetadataCache();
+        loaded.load( secondStored );
+        assertEquals( "only the jar the second build used", 1, loaded.size() );
+        assertEquals( 2, session.size() );
+
+        // an entry read by another build is still new to this build's file
+        BundleMetadataCache again = session.forBuild();
+        again.load( firstStored );
+        again.get( first, converter );
+        assertFalse( again.isModified() );
+        again.get( second, converter );
+        assertTrue( again.isModified() );
+    }
+
+    public void testArtifactsWithoutAJarAreNamedAfterTheirCoordinates() throws Exception {
+        String expected = converter.getBundleSymbolicName( createArtifact( "plain", null ) );
+        File pom = new File( workDir, "plain.pom" );
+        FileUtils.fileWrite( pom.getPath(), "<project/>" );
+
+        BundleMetadataCache cache = new BundleMetadataCache();
+        for ( File file : new File[] { null, workDir, pom } ) {
+            BundleMetadata metadata = cache.getAnalyzed( createArtifact( "plain", file ), converter );
+            assertFalse( metadata.isBundle() );
+            assertEquals( expected, metadata.getSymbolicName() );
+            assertEquals( "", metadata.getAnalyzedExportPackage() );
+        }
+    }
+
+    private File createJar( String name ) throws Exception {
+        File jar = new File( workDir, name );
+        JarOutputStream out = new JarOutputStream( new FileOutputStream( jar ), new Manifest() );
+        out.close();
+        return jar;
+    }
+
+    private CbaArtifactStub createArtifact( String artifactId, File file ) {
+        CbaArtifactStub artifact = new CbaArtifactStub( "org.apache.maven.test", artifactId, "1.0-SNAPSHOT" );
+        artifact.setFile( file );
+        return artifact;
+    }
+}
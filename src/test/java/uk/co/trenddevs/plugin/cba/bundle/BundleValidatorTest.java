@@ -0,0 +1,73 @@
+package uk.co.trenddevs.plugin.cba.bundle;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+import org.apache.maven.artifact.Artifact;
+import org.apache.maven.shared.osgi.DefaultMaven2OsgiConverter;
+import org.codehaus.plexus.PlexusTestCase;
+import org.codehaus.plexus.util.FileUtils;
+import uk.co.trenddevs.plugin.cba.stubs.CbaArtifactStub;
+
+public class BundleValidatorTest extends TestCase {
+
+    public void testAllProblemsAreReported() throws Exception {
+        File workDir = new File( PlexusTestCase.getBasedir(), "target/unit/bundle-validator" );
+        FileUtils.deleteDirectory( workDir );
+        workDir.mkdirs();
+
+        List<Artifact> artifacts = new ArrayList<Artifact>();
+        artifacts.add( createArtifact( "maven-artifact01", new File( PlexusTestCase.getBasedir(),
+            "src/test/remote-repo/org/apache/maven/test/maven-artifact01/1.0-SNAPSHOT/maven-artifact01-1.0-SNAPSHOT.jar" ) ) );
+        artifacts.add( createArtifact( "plain", createJar( new File( workDir, "plain.jar" ), null ) ) );
+        artifacts.add( createArtifact( "missing", new File( workDir, "missing.jar" ) ) );
+        artifacts.add( createArtifact( "r3", createJar( new File( workDir, "r3.jar" ), "r3.bundle" ) ) );
+
+        List<String> problems = new BundleValidator( new BundleMetadataCache(), new DefaultMaven2OsgiConverter(), 2 )
+            .validate( artifacts );
+        assertEquals( problems.toString(), 3, problems.size() );
+        assertTrue( problems.get( 0 ), problems.get( 0 ).indexOf( "plain.jar has no Bundle-SymbolicName" ) > 0 );
+        assertTrue( problems.get( 1 ), problems.get( 1 ).indexOf( "does not exist" ) > 0 );
+        assertTrue( problems.get( 2 ), problems.get( 2 ).indexOf( "Bundle-ManifestVersion null" ) > 0 );
+    }
+
+    private File createJar( File file, String symbolicName ) throws Exception {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        if ( symbolicName != null )
+            manifest.getMainAttributes().putValue( BundleMetadata.BUNDLE_SYMBOLIC_NAME, symbolicName );
+        new JarOutputStream( new FileOutputStream( file ), manifest ).close();
+        return file;
+    }
+
+    private Artifact createArtifact( String artifactId, File file ) {
+        CbaArtifactStub artifact = new CbaArtifactStub( "org.apache.maven.test", artifactId, "1.0-SNAPSHOT" );
+        artifact.setFile( file );
+        return artifact;
+    }
+}
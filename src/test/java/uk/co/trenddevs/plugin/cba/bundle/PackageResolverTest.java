@@ -0,0 +1,58 @@
+package uk.co.trenddevs.plugin.cba.bundle;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.List;
+
+import junit.framework.TestCase;
+import uk.co.trenddevs.plugin.cba.manifest.Clause;
+
+public class PackageResolverTest extends TestCase {
+
+    public void testImportsAreCheckedAgainstExportsAndCompositeImports() {
+        PackageResolver resolver = new PackageResolver();
+        resolver.addBundle( "api", Clause.parse( "com.example.api;com.example.spi;version=\"1.2.0\"" ),
+                            Clause.parse( "javax.servlet;version=\"[2.5,3)\"" ) );
+        resolver.addBundle( "impl", Clause.parse( "" ),
+                            Clause.parse( "com.example.api;version=\"[1.0,2.0)\",com.example.spi;version=\"[2.0,3.0)\","
+                                          + "com.example.missing,com.example.optional;resolution:=optional,java.util" ) );
+        resolver.addCompositeImport( new Clause( "javax.servlet" ) );
+
+        List<String> problems = resolver.resolve();
+        assertEquals( problems.toString(), 2, problems.size() );
+        assertTrue( problems.get( 0 ), problems.get( 0 ).startsWith( "impl imports com.example.spi [2.0.0,3.0.0) but" ) );
+        assertTrue( problems.get( 0 ), problems.get( 0 ).indexOf( "1.2.0 (api)" ) > 0 );
+        assertTrue( problems.get( 1 ), problems.get( 1 ).startsWith( "impl imports com.example.missing 0.0.0 which" ) );
+
+        resolver.ignore( "com.example.*" );
+        resolver.ignore( "javax.servlet" );
+        assertTrue( resolver.resolve().isEmpty() );
+    }
+
+    public void testVersionRanges() {
+        VersionRange range = VersionRange.parse( "(1.0,2.0]" );
+        assertFalse( range.includes( Version.parse( "1.0" ) ) );
+        assertTrue( range.includes( Version.parse( "1.0.0.SNAPSHOT" ) ) );
+        assertTrue( range.includes( Version.parse( "2" ) ) );
+        assertFalse( range.includes( Version.parse( "2.0.0.a" ) ) );
+        assertTrue( VersionRange.parse( "1.5" ).includes( Version.parse( "99" ) ) );
+        assertTrue( VersionRange.parse( null ).includes( Version.EMPTY ) );
+    }
+}
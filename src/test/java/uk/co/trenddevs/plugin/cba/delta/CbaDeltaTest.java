@@ -0,0 +1,137 @@
+package uk.co.trenddevs.plugin.cba.delta;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+import org.codehaus.plexus.PlexusTestCase;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+
+public class CbaDeltaTest extends TestCase {
+
+    private static final long TIME = 1262304000000L;
+
+    private File workDir;
+
+    private File baseline;
+
+    private File target;
+
+    protected void setUp() throws Exception {
+        workDir = new File( PlexusTestCase.getBasedir(), "target/unit/cba-delta" );
+        FileUtils.deleteDirectory( workDir );
+        workDir.mkdirs();
+
+        // zips written by the JDK have data descriptors after each entry's data
+        baseline = writeZip( "baseline.cba", new String[][] {
+            { "META-INF/COMPOSITEBUNDLE.MF", "Bundle-Version: 1.0" }, { "a.jar", content( 'a' ) },
+            { "b.jar", content( 'b' ) }, { "c.jar", content( 'c' ) }, { "touched.jar", content( 't' ) } }, TIME );
+        target = writeZip( "target.cba", new String[][] {
+            { "META-INF/COMPOSITEBUNDLE.MF", "Bundle-Version: 1.1" }, { "a.jar", content( 'a' ) },
+            { "b.jar", content( 'B' ) }, { "d.jar", content( 'd' ) } }, TIME );
+        // same content, other time: only its headers differ
+        writeZip( "touched.cba", new String[][] { { "touched.jar", content( 't' ) } }, TIME + 60000 );
+    }
+
+    public void testDeltaRebuildsTheCbaExactly() throws Exception {
+        File delta = new File( workDir, "target-delta.zip" );
+        CbaDelta.Result result = CbaDelta.create( baseline, target, delta );
+
+        assertEquals( Collections.singletonList( "d.jar" ), result.getAdded() );
+        assertEquals( Arrays.asList( "META-INF/COMPOSITEBUNDLE.MF", "b.jar" ), result.getChanged() );
+        assertEquals( Arrays.asList( "c.jar", "touched.jar" ), result.getRemoved() );
+        assertEquals( 1, result.getUnchanged() );
+
+        ZipFile zip = new ZipFile( delta );
+        assertNull( zip.getEntry( "a.jar" ) );
+        assertEquals( content( 'd' ), new String( IOUtil.toByteArray( zip.getInputStream( zip.getEntry( "d.jar" ) ) ), "UTF-8" ) );
+        assertEquals( "c.jar\ntouched.jar\n",
+                      new String( IOUtil.toByteArray( zip.getInputStream( zip.getEntry( CbaDelta.REMOVED_NAME ) ) ), "UTF-8" ) );
+        zip.close();
+
+        File rebuilt = new File( workDir, "rebuilt.cba" );
+        CbaDelta.apply( baseline, delta, rebuilt );
+        assertTrue( Arrays.equals( read( target ), read( rebuilt ) ) );
+    }
+
+    public void testChangedHeadersAreKept() throws Exception {
+        File touched = new File( workDir, "touched.cba" );
+        File delta = new File( workDir, "touched-delta.zip" );
+        CbaDelta.Result result = CbaDelta.create( baseline, touched, delta );
+        assertEquals( 1, result.getUnchanged() );
+        assertEquals( 0, result.getDataBytes() );
+
+        // applied in place, replacing the baseline
+        File copy = new File( workDir, "baseline-copy.cba" );
+        FileUtils.copyFile( baseline, copy );
+        CbaDelta.apply( copy, delta, copy );
+        assertTrue( Arrays.equals( read( touched ), read( copy ) ) );
+    }
+
+    public void testOtherBaselineIsRefused() throws Exception {
+        File delta = new File( workDir, "target-delta.zip" );
+        CbaDelta.create( baseline, target, delta );
+        File rebuilt = new File( workDir, "rebuilt.cba" );
+        try {
+            CbaDelta.apply( target, delta, rebuilt );
+            fail( "applied to the wrong baseline" );
+        } catch ( IOException e ) {
+            assertTrue( e.getMessage(), e.getMessage().indexOf( "is not the baseline" ) > 0 );
+        }
+        assertFalse( rebuilt.exists() );
+    }
+
+    private File writeZip( String name, String[][] entries, long time ) throws IOException {
+        File file = new File( workDir, name );
+        ZipOutputStream out = new ZipOutputStream( new FileOutputStream( file ) );
+        try {
+            for ( String[] entry : entries ) {
+                ZipEntry zipEntry = new ZipEntry( entry[0] );
+                zipEntry.setTime( time );
+                out.putNextEntry( zipEntry );
+                out.write( entry[1].getBytes( "UTF-8" ) );
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static String content( char c ) {
+        StringBuffer content = new StringBuffer();
+        for ( int i = 0; i < 1000; i++ ) {
+            content.append( c ).append( i );
+        }
+        return content.toString();
+    }
+
+    private static byte[] read( File file ) throws IOException {
+        return FileUtils.fileRead( file, "ISO-8859-1" ).getBytes( "ISO-8859-1" );
+    }
+}
@@ -0,0 +1,115 @@
+package uk.co.trenddevs.plugin.cba.manifest;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.jar.Manifest;
+
+import junit.framework.TestCase;
+
+public class CompositeBundleManifestTest extends TestCase {
+
+    public void testLinesAreWrappedAt72Bytes() throws Exception {
+        CompositeBundleManifest manifest = new CompositeBundleManifest();
+        manifest.setHeader( "Manifest-Version", "1.0" );
+        StringBuffer description = new StringBuffer();
+        for ( int i = 0; i < 40; i++ ) {
+            description.append( "\u00e9l\u00e8ve " );
+        }
+        manifest.setHeader( CompositeBundleManifest.BUNDLE_DESCRIPTION, description.toString().trim() );
+        List<Clause> content = new ArrayList<Clause>();
+        for ( int i = 0; i < 20; i++ ) {
+            content.add( new Clause( "com.example.a.rather.long.bundle.symbolic.name.number" + i ).setAttribute( "version", "[1.0.0,2.0.0)" ) );
+        }
+        manifest.setContent( content );
+
+        byte[] bytes = manifest.toByteArray();
+        String text = new String( bytes, "UTF-8" );
+        String[] lines = text.split( "\n" );
+        for ( int i = 0; i < lines.length; i++ ) {
+            assertTrue( "Line too long: " + lines[i], lines[i].getBytes( "UTF-8" ).length <= 72 );
+        }
+
+        // the JDK reader understands the result
+        Manifest jdk = new Manifest( new ByteArrayInputStream( bytes ) );
+        assertEquals( description.toString().trim(), jdk.getMainAttributes().getValue( CompositeBundleManifest.BUNDLE_DESCRIPTION ) );
+
+        CompositeBundleManifest parsed = CompositeBundleManifest.parse( new ByteArrayInputStream( bytes ) );
+        assertEquals( manifest.getHeaders(), parsed.getHeaders() );
+        assertEquals( 20, parsed.getContent().size() );
+        assertEquals( "[1.0.0,2.0.0)", parsed.getContent().get( 7 ).getAttribute( "version" ) );
+    }
+
+    public void testNormalizedManifestsAreIdentical() {
+        CompositeBundleManifest first = new CompositeBundleManifest();
+        first.setHeader( "X-Custom", "x" );
+        first.setHeader( CompositeBundleManifest.COMPOSITE_BUNDLE_CONTENT, "b;version=\"2.0\",a;version=\"1.0\"" );
+        first.setBundleSymbolicName( "composite" );
+        first.setHeader( CompositeBundleManifest.MANIFEST_VERSION, "1" );
+
+        CompositeBundleManifest second = new CompositeBundleManifest();
+        second.setHeader( CompositeBundleManifest.MANIFEST_VERSION, "1" );
+        second.setBundleSymbolicName( "composite" );
+        second.setHeader( CompositeBundleManifest.COMPOSITE_BUNDLE_CONTENT, "a;version=\"1.0\",b;version=\"2.0\"" );
+        second.setHeader( "X-Custom", "x" );
+
+        first.normalize();
+        second.normalize();
+        assertEquals( new ArrayList<String>( first.getHeaders().keySet() ),
+                      Arrays.asList( CompositeBundleManifest.MANIFEST_VERSION, CompositeBundleManifest.BUNDLE_SYMBOLIC_NAME,
+                                     CompositeBundleManifest.COMPOSITE_BUNDLE_CONTENT, "X-Custom" ) );
+        assertTrue( Arrays.equals( first.toByteArray(), second.toByteArray() ) );
+    }
+
+    public void testClauseEscaping() {
+        Clause clause = new Clause( "com.example.Service" )
+            .setAttribute( "filter", "(name=\"a,b;c\")" )
+            .setDirective( "resolution", "optional" );
+        assertEquals( "com.example.Service;filter=\"(name=\\\"a,b;c\\\")\";resolution:=\"optional\"", clause.toString() );
+
+        List<Clause> parsed = Clause.parse( clause + ",other" );
+        assertEquals( 2, parsed.size() );
+        assertEquals( "(name=\"a,b;c\")", parsed.get( 0 ).getAttribute( "filter" ) );
+        assertEquals( "optional", parsed.get( 0 ).getDirective( "resolution" ) );
+        assertEquals( "other", parsed.get( 1 ).getName() );
+    }
+
+    public void testMergeKeepsExistingValues() {
+        CompositeBundleManifest custom = new CompositeBundleManifest();
+        custom.setBundleSymbolicName( "custom.name" );
+        custom.setHeader( CompositeBundleManifest.COMPOSITE_BUNDLE_CONTENT, "a;version=\"1.0\",b;version=\"2.0\"" );
+
+        CompositeBundleManifest generated = new CompositeBundleManifest();
+        generated.setBundleSymbolicName( "generated.name" );
+        generated.setBundleVersion( "1.0.0" );
+        generated.setHeader( CompositeBundleManifest.COMPOSITE_BUNDLE_CONTENT, "b;version=\"3.0\",c;version=\"4.0\"" );
+
+        custom.merge( generated );
+        assertEquals( "custom.name", custom.getBundleSymbolicName() );
+        assertEquals( "1.0.0", custom.getBundleVersion() );
+        List<Clause> content = custom.getContent();
+        assertEquals( 3, content.size() );
+        assertEquals( "2.0", content.get( 1 ).getAttribute( "version" ) );
+        assertEquals( "c", content.get( 2 ).getName() );
+    }
+}
@@ -21,6 +21,9 @@ package uk.co.trenddevs.plugin.cba.stubs;
 
 import java.io.File;
 
+import org.apache.maven.artifact.handler.ArtifactHandler;
+import org.apache.maven.artifact.handler.DefaultArtifactHandler;
+import org.apache.maven.artifact.versioning.VersionRange;
 import org.apache.maven.plugin.testing.stubs.ArtifactStub;
 
 public class CbaArtifactStub extends ArtifactStub  {
@@ -109,4 +112,14 @@ public class CbaArtifactStub extends ArtifactStub  {
     {
         return getVersion();
     }
+
+    public VersionRange getVersionRange()
+    {
+        return VersionRange.createFromVersion( getVersion() );
+    }
+
+    public ArtifactHandler getArtifactHandler()
+    {
+        return new DefaultArtifactHandler( getType() );
+    }
 }
@@ -0,0 +1,42 @@
+package uk.co.trenddevs.plugin.cba.stubs;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.apache.maven.artifact.Artifact;
+
+/**
+ * Project whose dependencies are given artifacts, typically generated by {@link SyntheticBundles}.
+ */
+public class CbaSyntheticProjectStub extends CbaMavenProjectStub {
+
+    private final Set<Artifact> artifacts;
+
+    public CbaSyntheticProjectStub( Collection<Artifact> artifacts ) {
+        this.artifacts = new LinkedHashSet<Artifact>( artifacts );
+    }
+
+    public Set getArtifacts() {
+        return artifacts;
+    }
+}
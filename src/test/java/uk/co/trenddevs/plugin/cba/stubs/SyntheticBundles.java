@@ -0,0 +1,148 @@
+package uk.co.trenddevs.plugin.cba.stubs;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.apache.maven.artifact.Artifact;
+
+/**
+ * Generates bundle jars of a given size for benchmarks and scaling tests.
+ *
+ * Bundle i exports package synthetic.bundleN and imports the package of bundle i - 1, so the
+ * set wires up. Entries are deflated like those of real jars and hold a mix of repeated text
+ * and random bytes, so the jars compress about as well as typical class files do. Content is
+ * derived from a fixed seed, and jars already present are reused as they are.
+ */
+public class SyntheticBundles {
+
+    public static final String GROUP_ID = "uk.co.trenddevs.synthetic";
+
+    private static final int ENTRY_SIZE = 16 * 1024;
+
+    private static final byte[] TEXT =
+        "public class Synthetic { private final String name; public String getName() { return name; } }\n".getBytes();
+
+    /**
+     * Creates the artifacts of count bundles of about bytesPerBundle bytes each in a directory.
+     */
+    public static List<Artifact> create( File directory, int count, long bytesPerBundle ) throws IOException {
+        directory.mkdirs();
+        List<Artifact> artifacts = new ArrayList<Artifact>( count );
+        for ( int i = 0; i < count; i++ ) {
+            String artifactId = "bundle" + i;
+            String version = "1.0." + i;
+            File file = new File( directory, artifactId + "-" + version + ".jar" );
+            if ( !file.isFile() ) {
+                String imports = i > 0 ? "synthetic.bundle" + ( i - 1 ) + ";version=\"[1.0,2)\"" : null;
+                writeBundle( file, GROUP_ID + "." + artifactId, version, "synthetic." + artifactId + ";version=\"1.0.0\"",
+                             imports, bytesPerBundle, new Random( i ) );
+            }
+            CbaArtifactStub artifact = new CbaArtifactStub( GROUP_ID, artifactId, version );
+            artifact.setScope( Artifact.SCOPE_COMPILE );
+            artifact.setFile( file );
+            artifacts.add( artifact );
+        }
+        return artifacts;
+    }
+
+    /**
+     * Writes a bundle jar of about size bytes.
+     */
+    public static void writeBundle( File file, String symbolicName, String version, String exports, String imports,
+                                    long size, Random random ) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        attributes.putValue( "Bundle-ManifestVersion", "2" );
+        attributes.putValue( "Bundle-SymbolicName", symbolicName );
+        attributes.putValue( "Bundle-Version", version );
+        attributes.putValue( "Export-Package", exports );
+        if ( imports != null )
+            attributes.putValue( "Import-Package", imports );
+
+        File tmp = new File( file.getPath() + ".tmp" );
+        CountingOutputStream counter = new CountingOutputStream( new FileOutputStream( tmp ) );
+        JarOutputStream out = new JarOutputStream( counter, manifest );
+        try {
+            String packageDir = exports.substring( 0, exports.indexOf( ';' ) ).replace( '.', '/' ) + "/";
+            byte[] content = new byte[ENTRY_SIZE];
+            for ( int entry = 0; counter.count < size; entry++ ) {
+                fill( content, random );
+                out.putNextEntry( new JarEntry( packageDir + "Synthetic" + entry + ".class" ) );
+                out.write( content );
+                out.closeEntry();
+                out.flush();
+            }
+        } finally {
+            out.close();
+        }
+        if ( !tmp.renameTo( file ) )
+            throw new IOException( "Unable to create " + file );
+    }
+
+    /**
+     * Half repeated text, half random bytes, in runs.
+     */
+    private static void fill( byte[] content, Random random ) {
+        for ( int offset = 0; offset < content.length; offset += 256 ) {
+            int length = Math.min( 256, content.length - offset );
+            if ( random.nextBoolean() ) {
+                for ( int i = 0; i < length; i++ ) {
+                    content[offset + i] = TEXT[( offset + i ) % TEXT.length];
+                }
+            } else {
+                for ( int i = 0; i < length; i++ ) {
+                    content[offset + i] = ( byte ) random.nextInt();
+                }
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+
+        private long count;
+
+        CountingOutputStream( OutputStream out ) {
+            super( out );
+        }
+
+        public void write( int b ) throws IOException {
+            out.write( b );
+            count++;
+        }
+
+        public void write( byte[] bytes, int offset, int length ) throws IOException {
+            out.write( bytes, offset, length );
+            count += length;
+        }
+    }
+}
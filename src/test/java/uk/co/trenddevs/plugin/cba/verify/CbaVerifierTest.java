@@ -0,0 +1,168 @@
+package uk.co.trenddevs.plugin.cba.verify;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *  http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+import org.codehaus.plexus.PlexusTestCase;
+import org.codehaus.plexus.util.FileUtils;
+
+public class CbaVerifierTest extends TestCase {
+
+    private File workDir;
+
+    protected void setUp() throws Exception {
+        workDir = new File( PlexusTestCase.getBasedir(), "target/unit/cba-verifier" );
+        FileUtils.deleteDirectory( workDir );
+        workDir.mkdirs();
+    }
+
+    public void testSoundCbaHasNoProblems() throws Exception {
+        File cba = writeCba( "sound.cba", "a;version=\"1.0.0\",b;version=\"[1.0,2.0)\"", false, "a:1.0.0", "b:1.5.0" );
+        CbaVerifier.Result result = new CbaVerifier( 2 ).verify( cba );
+
+        assertEquals( Collections.EMPTY_LIST, result.getProblems() );
+        assertEquals( 3, result.getEntries() );
+        assertEquals( "b", result.getNestedJars().get( "b.jar" ).getSymbolicName() );
+        assertEquals( "1.5.0", result.getNestedJars().get( "b.jar" ).getVersion() );
+    }
+
+    public void testMissingAndExtraBundlesAreReported() throws Exception {
+        File cba = writeCba( "content.cba", "a;version=\"1.0.0\",b;version=\"1.0.0\",c;version=\"1.0.0\"", false,
+                             "a:1.0.0", "b:1.1.0", "d:1.0.0", "plain" );
+        CbaVerifier.Result result = new CbaVerifier( 0 ).verify( cba );
+
+        assertEquals( Arrays.asList( "bundle b;version=\"1.0.0\" is included in other versions: [b.jar 1.1.0]",
+                                     "missing bundle c;version=\"1.0.0\"",
+                                     "extra bundle d.jar (d 1.0.0) is not in CompositeBundle-Content",
+                                     "extra jar plain.jar is not a bundle" ), result.getProblems() );
+    }
+
+    public void testPlainVersionsIgnoreQualifiersAndTheProjectJarIsNotExtra() throws Exception {
+        File cba = writeCba( "snapshot.cba", "a;version=\"1.0.0.SNAPSHOT\",b;version=\"1.0.0.SNAPSHOT\"", false,
+                             "a:1.0.0.201401011200", "b:1.0.1.SNAPSHOT", "project" );
+        CbaVerifier verifier = new CbaVerifier( 1 );
+        verifier.setProjectJar( "project.jar" );
+
+        assertEquals( Collections.singletonList( "bundle b;version=\"1.0.0.SNAPSHOT\" is included in other versions: [b.jar 1.0.1.SNAPSHOT]" ),
+                      verifier.verify( cba ).getProblems() );
+    }
+
+    public void testCorruptedEntryIsReported() throws Exception {
+        File cba = writeCba( "corrupted.cba", "a;version=\"1.0.0\"", true, "a:1.0.0" );
+        byte[] bytes = FileUtils.fileRead( cba, "ISO-8859-1" ).getBytes( "ISO-8859-1" );
+        int offset = new String( bytes, "ISO-8859-1" ).lastIndexOf( "payload" );
+        RandomAccessFile file = new RandomAccessFile( cba, "rw" );
+        try {
+            file.seek( offset );
+            file.write( 'P' );
+        } finally {
+            file.close();
+        }
+        CbaVerifier.Result result = new CbaVerifier( 0 ).verify( cba );
+
+        assertEquals( 1, result.getProblems().size() );
+        assertTrue( result.getProblems().get( 0 ), result.getProblems().get( 0 ).startsWith( "a.jar: " ) );
+    }
+
+    public void testCbaWithoutManifestIsReported() throws Exception {
+        File cba = new File( workDir, "empty.cba" );
+        ZipOutputStream out = new ZipOutputStream( new FileOutputStream( cba ) );
+        out.putNextEntry( new ZipEntry( "readme.txt" ) );
+        out.write( "readme".getBytes( "UTF-8" ) );
+        out.close();
+
+        assertEquals( Collections.singletonList( "no " + CbaVerifier.COMPOSITE_BUNDLE_MF ),
+                      new CbaVerifier( 1 ).verify( cba ).getProblems() );
+    }
+
+    /**
+     * Writes a cba with the given content header and nested jars, given as symbolicName:version
+     * or as the name of a jar that is not a bundle; stored entries keep the nested jars' bytes
+     * as they are in the cba.
+     */
+    private File writeCba( String name, String content, boolean stored, String... jars ) throws IOException {
+        File file = new File( workDir, name );
+        ZipOutputStream out = new ZipOutputStream( new FileOutputStream( file ) );
+        try {
+            out.putNextEntry( new ZipEntry( CbaVerifier.COMPOSITE_BUNDLE_MF ) );
+            out.write( ( "Manifest-Version: 1.0\r\nCompositeBundle-Content: " + content + "\r\n\r\n" ).getBytes( "UTF-8" ) );
+            for ( String nested : jars ) {
+                String[] nameAndVersion = nested.split( ":" );
+                byte[] jar = jar( nameAndVersion.length == 2 ? nameAndVersion : null );
+                ZipEntry entry = new ZipEntry( nameAndVersion[0] + ".jar" );
+                if ( stored ) {
+                    CRC32 crc = new CRC32();
+                    crc.update( jar );
+                    entry.setMethod( ZipEntry.STORED );
+                    entry.setSize( jar.length );
+                    entry.setCrc( crc.getValue() );
+                }
+                out.putNextEntry( entry );
+                out.write( jar );
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * A jar with one stored entry, a bundle when nameAndVersion is given.
+     */
+    private static byte[] jar( String[] nameAndVersion ) throws IOException {
+        Manifest manifest = new Manifest();
+        Attributes attributes = manifest.getMainAttributes();
+        attributes.put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+        if ( nameAndVersion != null ) {
+            attributes.putValue( "Bundle-ManifestVersion", "2" );
+            attributes.putValue( "Bundle-SymbolicName", nameAndVersion[0] );
+            attributes.putValue( "Bundle-Version", nameAndVersion[1] );
+        }
+        byte[] payload = "payload payload payload".getBytes( "UTF-8" );
+        CRC32 crc = new CRC32();
+        crc.update( payload );
+        JarEntry entry = new JarEntry( "payload.txt" );
+        entry.setMethod( ZipEntry.STORED );
+        entry.setSize( payload.length );
+        entry.setCrc( crc.getValue() );
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JarOutputStream out = new JarOutputStream( bytes, manifest );
+        out.putNextEntry( entry );
+        out.write( payload );
+        out.close();
+        return bytes.toByteArray();
+    }
+}